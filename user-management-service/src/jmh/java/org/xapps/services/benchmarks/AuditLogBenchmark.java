@@ -0,0 +1,58 @@
+package org.xapps.services.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.xapps.services.services.audit.AuditEvent;
+import org.xapps.services.services.audit.AuditLog;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Cost of recording an audit event on the handler thread, from concurrent threads into a temporary directory.
+ * Under the block policy the score includes waiting for the writer, so it tracks how fast batches reach the disk,
+ * the drop policy shows the enqueue alone. The audit.* counters are printed after every trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Threads(8)
+public class AuditLogBenchmark {
+    @Param({"block", "drop"})
+    public String queueFullPolicy;
+
+    @Param({"true", "false"})
+    public boolean fsync;
+
+    private Path directory;
+    private AuditLog auditLog;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("audit-benchmark");
+        auditLog = new AuditLog(directory, 65536, AuditLog.QueueFullPolicy.fromName(queueFullPolicy), 100, 1024, 64L << 20, 4, fsync, 50_000);
+        auditLog.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        auditLog.close();
+        System.out.printf("%nenqueued %d, dropped %d, blocked %d, written %d, average batch %.1f, average commit latency %.1f us%n",
+                auditLog.enqueued(), auditLog.dropped(), auditLog.blocked(), auditLog.written(),
+                auditLog.averageBatchSize(), auditLog.averageCommitLatencyMicros());
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public void offer(Blackhole blackhole) {
+        blackhole.consume(auditLog.offer(AuditEvent.now(AuditEvent.Type.LOGIN, 1L, 1L, "root@gmail.com")));
+    }
+}
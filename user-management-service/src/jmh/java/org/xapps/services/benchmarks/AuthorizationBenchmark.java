@@ -0,0 +1,57 @@
+package org.xapps.services.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.xapps.services.entities.Role;
+import org.xapps.services.entities.User;
+import org.xapps.services.server.utils.AccessPolicy;
+import org.xapps.services.server.utils.Principal;
+import org.xapps.services.server.utils.RoleMask;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Authorization of PUT /users/{id}, the rule reading the most roles, evaluated over role lists as the routes
+ * used to and over role masks through the policy table.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AuthorizationBenchmark {
+    @Param({"administrator", "owner", "other"})
+    public String caller;
+
+    private User principalUser;
+    private Principal principal;
+    private User body;
+    private Long target;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        List<Role> roles = "administrator".equals(caller)
+                ? List.of(new Role(2L, Role.GUEST), new Role(1L, Role.ADMINISTRATOR))
+                : List.of(new Role(2L, Role.GUEST));
+        principalUser = new User("user1@gmail.com", "<<protected>>", "First", "Last", roles);
+        principalUser.setId(1L);
+        principal = Principal.of(principalUser);
+        body = new User("user1@gmail.com", null, "First", "Last", List.of(new Role(2L, Role.GUEST)));
+        target = "other".equals(caller) ? 2L : 1L;
+    }
+
+    @Benchmark
+    public boolean roleList() {
+        return principalUser.isAdministrator() || (Objects.equals(principalUser.getId(), target) && !body.isAdministrator());
+    }
+
+    @Benchmark
+    public boolean roleMask() {
+        return AccessPolicy.UPDATE_USER.allows(principal, target, RoleMask.of(body.getRoles()));
+    }
+
+    // Mask of the principal built per request, as the routes do after reading the token
+    @Benchmark
+    public boolean roleMaskWithPrincipal() {
+        return AccessPolicy.UPDATE_USER.allows(Principal.of(principalUser), target, RoleMask.of(body.getRoles()));
+    }
+}
@@ -0,0 +1,59 @@
+package org.xapps.services.benchmarks;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.openjdk.jmh.annotations.*;
+import org.xapps.services.entities.User;
+import org.xapps.services.repositories.UserRepository;
+import org.xapps.services.repositories.utils.SessionFactoryProvider;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * User inserts from concurrent threads against the test database (gradlew composeUp), comparing id allocation
+ * sizes. An allocation size of 1 reads and bumps the sequence table on every insert, as GenerationType.AUTO did.
+ * Every param combination runs in its own fork, so the allocation size is applied before Hibernate starts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(16)
+public class ConcurrentInsertBenchmark {
+    @Param({"1", "50", "500"})
+    public int allocationSize;
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final String run = UUID.randomUUID().toString().substring(0, 8);
+    private UserRepository userRepository;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        System.setProperty("persistence.id-allocation-size", String.valueOf(allocationSize));
+        System.setProperty("hibernate.connection.url", System.getProperty("hibernate.connection.url", "jdbc:mysql://localhost:3306/users_management"));
+        System.setProperty("hibernate.connection.password", System.getProperty("hibernate.connection.password", "test"));
+        userRepository = new UserRepository();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        SessionFactory sessionFactory = SessionFactoryProvider.getInstance().getSessionFactory();
+        Session session = sessionFactory.openSession();
+        session.beginTransaction();
+        session.createNativeQuery("DELETE FROM users WHERE email LIKE :prefix")
+                .setParameter("prefix", "bench-" + run + "-%")
+                .executeUpdate();
+        session.getTransaction().commit();
+        session.close();
+        sessionFactory.close();
+    }
+
+    @Benchmark
+    public Long insert() {
+        long n = sequence.incrementAndGet();
+        User user = new User("bench-" + run + "-" + n + "@gmail.com", "<<protected>>", "First" + n, "Last" + n, List.of());
+        return userRepository.create(user).getId();
+    }
+}
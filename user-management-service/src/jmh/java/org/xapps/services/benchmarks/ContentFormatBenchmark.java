@@ -0,0 +1,76 @@
+package org.xapps.services.benchmarks;
+
+import akka.util.ByteString;
+import org.openjdk.jmh.annotations.*;
+import org.xapps.services.entities.Role;
+import org.xapps.services.entities.User;
+import org.xapps.services.server.utils.ContentFormat;
+import org.xapps.services.services.requests.Login;
+import org.xapps.services.services.responses.*;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.LongStream;
+
+/**
+ * Encode and decode cost of the negotiated body formats for the hottest service-to-service payloads.
+ * Encoded sizes are printed once per trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ContentFormatBenchmark {
+    @Param({"JSON", "CBOR", "SMILE"})
+    public ContentFormat format;
+
+    @Param({"login", "loginResponse", "userResponse", "usersResponse"})
+    public String payload;
+
+    private Object value;
+    private Class<?> type;
+    private byte[] encoded;
+
+    private static User user(long id) {
+        User user = new User("user" + id + "@gmail.com", "<<protected>>", "First" + id, "Last" + id,
+                List.of(new Role(1L, Role.ADMINISTRATOR), new Role(2L, Role.GUEST)));
+        user.setId(id);
+        user.setCreatedAt(new Date(1_650_000_000_000L + id));
+        user.setUpdatedAt(new Date(1_650_000_000_000L + id));
+        return user;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        switch (payload) {
+            case "login" -> {
+                value = new Login("root@gmail.com", "123456");
+                type = Login.class;
+            }
+            case "loginResponse" -> {
+                value = new LoginResponse(ResponseType.OK, new Authentication("eyJ0eXAiOiJKV1QiLCJhbGciOiJIUzI1NiJ9." + "x".repeat(400), 1_700_000_000_000L));
+                type = LoginResponse.class;
+            }
+            case "userResponse" -> {
+                value = new UserResponse(ResponseType.OK, user(1));
+                type = UserResponse.class;
+            }
+            default -> {
+                value = new UsersResponse(ResponseType.OK, LongStream.rangeClosed(1, 100).mapToObj(ContentFormatBenchmark::user).toList());
+                type = UsersResponse.class;
+            }
+        }
+        encoded = format.encode(value).toArray();
+        System.out.println(format + " " + payload + ": " + encoded.length + " bytes");
+    }
+
+    @Benchmark
+    public ByteString encode() throws Exception {
+        return format.encode(value);
+    }
+
+    @Benchmark
+    public Object decode() throws Exception {
+        return format.mapper().readValue(encoded, type);
+    }
+}
@@ -0,0 +1,98 @@
+package org.xapps.services.benchmarks;
+
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.http.javadsl.Http;
+import akka.http.javadsl.ServerBinding;
+import akka.http.javadsl.model.HttpHeader;
+import akka.http.javadsl.model.HttpRequest;
+import akka.http.javadsl.model.HttpResponse;
+import akka.stream.Materializer;
+import akka.stream.javadsl.Flow;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.algorithms.Algorithm;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import org.xapps.services.entities.Role;
+import org.xapps.services.entities.User;
+import org.xapps.services.server.UserRoutes;
+import org.xapps.services.services.UserService;
+import org.xapps.services.services.responses.ResponseType;
+import org.xapps.services.services.responses.UserResponse;
+import org.xapps.services.services.utils.PropertiesProvider;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Issues many small GET /users/{id} calls over a single connection, serially over HTTP/1.1
+ * and multiplexed over HTTP/2 (h2c prior knowledge). UserService is replaced by a stub so
+ * only the HTTP layer is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class Http2MultiplexingBenchmark {
+    @Param({"http1", "http2"})
+    public String protocol;
+
+    @Param({"1000"})
+    public int requests;
+
+    private ActorSystem<UserService.Command> system;
+    private Materializer materializer;
+    private ServerBinding binding;
+    private Flow<HttpRequest, HttpResponse, ?> connection;
+    private HttpHeader authorization;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        User user = new User("root@gmail.com", "<<protected>>", "Root", "Administrator", List.of(new Role(1L, Role.ADMINISTRATOR)));
+        user.setId(1L);
+        system = ActorSystem.create(Behaviors.receive(UserService.Command.class)
+                .onMessage(UserService.ReadCommand.class, command -> {
+                    command.replyTo().tell(new UserResponse(ResponseType.OK, user));
+                    return Behaviors.same();
+                })
+                .build(), "Http2MultiplexingBenchmark");
+        materializer = Materializer.matFromSystem(system);
+        UserRoutes userRoutes = new UserRoutes(system, system);
+        binding = Http.get(system).newServerAt("127.0.0.1", 0)
+                .bind(userRoutes.create())
+                .toCompletableFuture()
+                .get(10, TimeUnit.SECONDS);
+        int port = binding.localAddress().getPort();
+        if (protocol.equals("http2")) {
+            connection = Http.get(system).connectionTo("127.0.0.1").toPort(port).http2WithPriorKnowledge();
+        } else {
+            connection = Http.get(system).connectionTo("127.0.0.1").toPort(port).http();
+        }
+        String token = JWT.create()
+                .withIssuer("XApps")
+                .withSubject(new ObjectMapper().writeValueAsString(user))
+                .sign(Algorithm.HMAC256(PropertiesProvider.getInstance().current().securityTokenKey()));
+        authorization = HttpHeader.parse("Authorization", "Bearer " + token);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        binding.unbind().toCompletableFuture().get(10, TimeUnit.SECONDS);
+        system.terminate();
+        system.getWhenTerminated().toCompletableFuture().get(10, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public void getUsers() throws Exception {
+        Source.range(1, requests)
+                .map(i -> HttpRequest.GET("/users/1").addHeader(authorization))
+                .concat(Source.maybe())
+                .via(connection)
+                .take(requests)
+                .mapAsyncUnordered(64, response -> response.discardEntityBytes(materializer).completionStage())
+                .runWith(Sink.ignore(), materializer)
+                .toCompletableFuture()
+                .get(60, TimeUnit.SECONDS);
+    }
+}
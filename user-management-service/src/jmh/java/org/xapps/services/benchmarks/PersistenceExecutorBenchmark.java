@@ -0,0 +1,87 @@
+package org.xapps.services.benchmarks;
+
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.DispatcherSelector;
+import akka.actor.typed.javadsl.Behaviors;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.openjdk.jmh.annotations.*;
+import org.xapps.services.entities.Role;
+import org.xapps.services.entities.User;
+import org.xapps.services.repositories.AsyncUserRepository;
+import org.xapps.services.repositories.RoleRepository;
+import org.xapps.services.repositories.UserRepository;
+import org.xapps.services.repositories.utils.DatabaseCircuitBreaker;
+import org.xapps.services.repositories.utils.SessionFactoryProvider;
+import org.xapps.services.repositories.utils.VirtualThreadExecutor;
+import org.xapps.services.services.utils.PropertiesProvider;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.*;
+
+/**
+ * Thousands of reads by id in flight at once against the test database (gradlew composeUp), through the
+ * repository path of the service on the executor of each persistence backend: the persistence-dispatcher of the
+ * async backend and virtual threads bounded by persistence.max-concurrency. Both end at the same Hibernate
+ * connection pool, so the score shows what the executor adds in front of it.
+ * The virtual backend needs the benchmarks to run on a Java 21 JVM, on older ones its trials fail at setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PersistenceExecutorBenchmark {
+    @Param({"1000", "5000", "10000"})
+    public int concurrentReads;
+
+    @Param({"async", "virtual"})
+    public String backend;
+
+    private final String email = "bench-" + UUID.randomUUID().toString().substring(0, 8) + "@gmail.com";
+    private ActorSystem<Void> system;
+    private AsyncUserRepository userRepository;
+    private Long id;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        System.setProperty("hibernate.connection.url", System.getProperty("hibernate.connection.url", "jdbc:mysql://localhost:3306/users_management"));
+        System.setProperty("hibernate.connection.password", System.getProperty("hibernate.connection.password", "test"));
+        system = ActorSystem.create(Behaviors.empty(), "PersistenceExecutorBenchmark");
+        Executor executor = backend.equals("virtual")
+                ? VirtualThreadExecutor.bounded(PropertiesProvider.getInstance().current().persistenceMaxConcurrency())
+                : system.dispatchers().lookup(DispatcherSelector.fromConfig("persistence-dispatcher"));
+        UserRepository repository = new UserRepository();
+        userRepository = new AsyncUserRepository(repository, executor, DatabaseCircuitBreaker.get(system));
+        RoleRepository roleRepository = new RoleRepository();
+        if (roleRepository.getByName(Role.GUEST) == null) {
+            roleRepository.create(new Role(Role.GUEST));
+        }
+        id = repository.create(new User(email, "<<protected>>", "Bench", "User", List.of(roleRepository.getByName(Role.GUEST)))).getId();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        SessionFactory sessionFactory = SessionFactoryProvider.getInstance().getSessionFactory();
+        Session session = sessionFactory.openSession();
+        session.beginTransaction();
+        session.createNativeQuery("DELETE ur FROM users_roles ur JOIN users u ON u.id = ur.user_id WHERE u.email = :email")
+                .setParameter("email", email)
+                .executeUpdate();
+        session.createNativeQuery("DELETE FROM users WHERE email = :email")
+                .setParameter("email", email)
+                .executeUpdate();
+        session.getTransaction().commit();
+        session.close();
+        system.terminate();
+    }
+
+    @Benchmark
+    public int readById() throws InterruptedException {
+        CountDownLatch completed = new CountDownLatch(concurrentReads);
+        for (int i = 0; i < concurrentReads; i++) {
+            userRepository.read(id).whenComplete((user, throwable) -> completed.countDown());
+        }
+        completed.await();
+        return concurrentReads;
+    }
+}
@@ -0,0 +1,121 @@
+package org.xapps.services.benchmarks;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.openjdk.jmh.annotations.*;
+import org.xapps.services.entities.Role;
+import org.xapps.services.entities.User;
+import org.xapps.services.repositories.RoleRepository;
+import org.xapps.services.repositories.UserRepository;
+import org.xapps.services.repositories.utils.SessionFactoryProvider;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every read method of the repositories against the test database (gradlew composeUp), through regular sessions,
+ * read-only sessions and read-only sessions with the MySQL read-only transaction hint. The gc profiler of the jmh
+ * task reports gc.alloc.rate.norm next to the latency, the bytes allocated per read.
+ * Every param combination runs in its own fork, so the settings are applied before Hibernate starts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ReadOnlySessionBenchmark {
+    private static final int USERS = 500;
+
+    @Param({"regular", "read-only", "read-only-hint"})
+    public String session;
+
+    private final String run = UUID.randomUUID().toString().substring(0, 8);
+    private final List<Long> ids = new ArrayList<>();
+    private UserRepository userRepository;
+    private RoleRepository roleRepository;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        System.setProperty("persistence.read-only.enabled", String.valueOf(!"regular".equals(session)));
+        System.setProperty("persistence.read-only.transaction-hint", String.valueOf("read-only-hint".equals(session)));
+        System.setProperty("hibernate.connection.url", System.getProperty("hibernate.connection.url", "jdbc:mysql://localhost:3306/users_management"));
+        System.setProperty("hibernate.connection.password", System.getProperty("hibernate.connection.password", "test"));
+        userRepository = new UserRepository();
+        roleRepository = new RoleRepository();
+        if (roleRepository.getByName(Role.GUEST) == null) {
+            roleRepository.create(new Role(Role.GUEST));
+        }
+        List<Role> guest = List.of(roleRepository.getByName(Role.GUEST));
+        for (int i = 0; i < USERS; i++) {
+            User user = new User(email(i), "<<protected>>", "First" + i, "Last" + i, guest);
+            ids.add(userRepository.create(user).getId());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        SessionFactory sessionFactory = SessionFactoryProvider.getInstance().getSessionFactory();
+        Session session = sessionFactory.openSession();
+        session.beginTransaction();
+        session.createNativeQuery("DELETE ur FROM users_roles ur JOIN users u ON u.id = ur.user_id WHERE u.email LIKE :prefix")
+                .setParameter("prefix", "bench-" + run + "-%")
+                .executeUpdate();
+        session.createNativeQuery("DELETE FROM users WHERE email LIKE :prefix")
+                .setParameter("prefix", "bench-" + run + "-%")
+                .executeUpdate();
+        session.getTransaction().commit();
+        session.close();
+        sessionFactory.close();
+    }
+
+    private String email(int i) {
+        return "bench-" + run + "-" + i + "@gmail.com";
+    }
+
+    private int randomIndex() {
+        return ThreadLocalRandom.current().nextInt(USERS);
+    }
+
+    @Benchmark
+    public User read() {
+        return userRepository.read(ids.get(randomIndex()));
+    }
+
+    @Benchmark
+    public Object readByIds() {
+        int from = ThreadLocalRandom.current().nextInt(USERS - 20);
+        return userRepository.readByIds(ids.subList(from, from + 20));
+    }
+
+    @Benchmark
+    public List<User> readAll() {
+        return userRepository.readAll();
+    }
+
+    @Benchmark
+    public Long count() {
+        return userRepository.count();
+    }
+
+    @Benchmark
+    public User getByEmail() {
+        return userRepository.getByEmail(email(randomIndex()));
+    }
+
+    @Benchmark
+    public long forEachEmail() {
+        return userRepository.forEachEmail(email -> {
+        });
+    }
+
+    @Benchmark
+    public Role roleByName() {
+        return roleRepository.getByName(Role.GUEST);
+    }
+
+    @Benchmark
+    public List<Role> rolesReadAll() {
+        return roleRepository.readAll();
+    }
+}
@@ -1,10 +1,23 @@
 package org.xapps.services;
 
 import akka.actor.typed.ActorSystem;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.xapps.services.repositories.utils.SessionFactoryProvider;
 import org.xapps.services.server.UserServer;
+import org.xapps.services.services.utils.PropertiesProvider;
 
 public class Main {
     public static void main(String[] args) {
-        ActorSystem.create(UserServer.create(), "UserManagementService");
+        Config config = ConfigFactory.load();
+        PropertiesProvider.getInstance().watch();
+        if (PropertiesProvider.getInstance().current().clusterEnabled()) {
+            config = ConfigFactory.parseString("akka.actor.provider = cluster").withFallback(config);
+        }
+        ActorSystem<UserServer.Command> system = ActorSystem.create(UserServer.create(SessionFactoryProvider.bootstrap()), "UserManagementService", config);
+        if (UserServer.isTrainingRun()) {
+            system.getWhenTerminated().toCompletableFuture().join();
+            System.exit(0);
+        }
     }
 }
@@ -2,6 +2,9 @@ package org.xapps.services.entities;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.*;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
 
 import javax.persistence.*;
 
@@ -18,7 +21,9 @@ public class Role {
     public static final String GUEST = "Guest";
 
     @Id
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(generator = "roles_id")
+    @GenericGenerator(name = "roles_id", strategy = "org.xapps.services.repositories.utils.PooledIdGenerator",
+            parameters = @Parameter(name = SequenceStyleGenerator.SEQUENCE_PARAM, value = "roles_sequence"))
     @Column(name = "id")
     @JsonProperty("id")
     private Long id;
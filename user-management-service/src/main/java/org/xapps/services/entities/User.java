@@ -3,8 +3,14 @@ package org.xapps.services.entities;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.*;
+import org.hibernate.annotations.CreationTimestamp;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+import org.hibernate.annotations.UpdateTimestamp;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
 
 import javax.persistence.*;
+import java.util.Date;
 import java.util.List;
 import java.util.Objects;
 
@@ -15,10 +21,21 @@ import java.util.Objects;
 @ToString
 @EqualsAndHashCode
 @Entity(name = "users")
-@Table(name = "users")
+@Table(name = "users", uniqueConstraints = {
+        @UniqueConstraint(name = User.EMAIL_CONSTRAINT, columnNames = "email")
+}, indexes = {
+        @Index(name = "idx_users_last_name_first_name", columnList = "last_name, first_name"),
+        @Index(name = "idx_users_created_at", columnList = "created_at"),
+        @Index(name = "idx_users_updated_at", columnList = "updated_at")
+})
 public class User {
+    // Unique key on the email, its index also serves the lookups by email
+    public static final String EMAIL_CONSTRAINT = "uk_users_email";
+
     @Id
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(generator = "users_id")
+    @GenericGenerator(name = "users_id", strategy = "org.xapps.services.repositories.utils.PooledIdGenerator",
+            parameters = @Parameter(name = SequenceStyleGenerator.SEQUENCE_PARAM, value = "users_sequence"))
     @Column(name = "id")
     @JsonProperty("id")
     private Long id;
@@ -46,6 +63,18 @@ public class User {
     @JsonProperty("roles")
     private List<Role> roles;
 
+    @CreationTimestamp
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "created_at", updatable = false)
+    @JsonProperty("createdAt")
+    private Date createdAt;
+
+    @UpdateTimestamp
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "updated_at")
+    @JsonProperty("updatedAt")
+    private Date updatedAt;
+
     public User(String email, String password, String firstName, String lastName, List<Role> roles) {
         this.email = email;
         this.password = password;
@@ -13,7 +13,9 @@ import java.io.Serializable;
 @ToString
 @EqualsAndHashCode
 @Entity(name = "users_roles")
-@Table(name = "users_roles")
+@Table(name = "users_roles", indexes = {
+        @Index(name = "idx_users_roles_role_id", columnList = "role_id")
+})
 public class UserRole {
     @EmbeddedId
     private UserRoleId id;
@@ -0,0 +1,30 @@
+package org.xapps.services.repositories;
+
+import org.xapps.services.entities.Role;
+import org.xapps.services.repositories.utils.AsyncRepository;
+import org.xapps.services.repositories.utils.DatabaseCircuitBreaker;
+
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+
+public class AsyncRoleRepository extends AsyncRepository<Role, Long> {
+    private final RoleRepository roleRepository;
+
+    public AsyncRoleRepository(RoleRepository roleRepository, Executor executor, DatabaseCircuitBreaker circuitBreaker) {
+        super(roleRepository, executor, circuitBreaker);
+        this.roleRepository = roleRepository;
+    }
+
+    public CompletionStage<Role> getByName(String name) {
+        return supply("getByName", () -> roleRepository.getByName(name));
+    }
+
+    public CompletionStage<List<Role>> getByNames(List<String> names) {
+        return supply("getByNames", () -> roleRepository.getByNames(names));
+    }
+
+    public CompletionStage<List<Role>> getByIds(List<Long> ids) {
+        return supply("getByIds", () -> roleRepository.getByIds(ids));
+    }
+}
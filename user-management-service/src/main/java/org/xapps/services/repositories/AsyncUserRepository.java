@@ -0,0 +1,58 @@
+package org.xapps.services.repositories;
+
+import org.xapps.services.entities.User;
+import org.xapps.services.repositories.utils.AsyncRepository;
+import org.xapps.services.repositories.utils.DatabaseCircuitBreaker;
+import org.xapps.services.services.requests.UserFields;
+import org.xapps.services.services.requests.UserSearch;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+public class AsyncUserRepository extends AsyncRepository<User, Long> {
+    private final UserRepository userRepository;
+
+    public AsyncUserRepository(UserRepository userRepository, Executor executor, DatabaseCircuitBreaker circuitBreaker) {
+        super(userRepository, executor, circuitBreaker);
+        this.userRepository = userRepository;
+    }
+
+    public CompletionStage<User> getByEmail(String email) {
+        return supply("getByEmail", () -> userRepository.getByEmail(email));
+    }
+
+    public CompletionStage<User> getByEmailFromPrimary(String email) {
+        return supply("getByEmailFromPrimary", () -> userRepository.getByEmailFromPrimary(email));
+    }
+
+    public CompletionStage<User> update(User user, String previousEmail) {
+        return supply("update", () -> userRepository.update(user, previousEmail));
+    }
+
+    public CompletionStage<Long> forEachEmail(Consumer<String> consumer) {
+        return supplyUnguarded("forEachEmail", () -> userRepository.forEachEmail(consumer));
+    }
+
+    public CompletionStage<User> getByNotIdAndEmail(Long id, String email) {
+        return supply("getByNotIdAndEmail", () -> userRepository.getByNotIdAndEmail(id, email));
+    }
+
+    public CompletionStage<List<User>> search(UserSearch search) {
+        return supply("search", () -> userRepository.search(search));
+    }
+
+    public CompletionStage<List<Long>> searchIds(UserSearch search) {
+        return supply("searchIds", () -> userRepository.searchIds(search));
+    }
+
+    public CompletionStage<List<Map<String, Object>>> readFieldsIn(List<Long> ids, UserFields fields) {
+        return supply("readFieldsIn", () -> userRepository.readFieldsIn(ids, fields));
+    }
+
+    public CompletionStage<Map<String, Object>> readFields(Long id, UserFields fields) {
+        return supply("readFields", () -> userRepository.readFields(id, fields));
+    }
+}
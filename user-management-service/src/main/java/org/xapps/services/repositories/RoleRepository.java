@@ -1,7 +1,6 @@
 package org.xapps.services.repositories;
 
 import lombok.extern.slf4j.Slf4j;
-import org.hibernate.Session;
 import org.xapps.services.entities.Role;
 import org.xapps.services.repositories.utils.Repository;
 
@@ -12,55 +11,61 @@ import java.util.stream.Collectors;
 
 @Slf4j
 public class RoleRepository extends Repository<Role, Long> {
+    private static final String ROLES_KEY = "roles";
+
     public RoleRepository() {
         super(Role.class);
     }
 
-    public Role getByName(String name) {
-        Session session = sessionFactory.openSession();
-        session.beginTransaction();
-        TypedQuery<Role> query = session.createQuery("SELECT r FROM roles r WHERE r.name = :name", Role.class);
-        query.setParameter("name", name);
-        Role role = null;
-        try {
-            role = query.getSingleResult();
-        } catch (NoResultException ex) {
-            log.debug("No role found with name " + name);
+    // Roles have no collections, the list is read without a persistence context
+    @Override
+    public List<Role> readAll() {
+        if (!readOnlySessions()) {
+            return super.readAll();
         }
-        session.getTransaction().commit();
-        session.close();
-        return role;
+        return readRouter.read(ROLES_KEY, readSessionFactory -> inStatelessReadTransaction(readSessionFactory, session ->
+                session.createQuery("SELECT r FROM roles r", Role.class).getResultList()));
+    }
+
+    public Role getByName(String name) {
+        return readRouter.read(ROLES_KEY, readSessionFactory -> inReadTransaction(readSessionFactory, session -> {
+            TypedQuery<Role> query = session.createQuery("SELECT r FROM roles r WHERE r.name = :name", Role.class);
+            query.setParameter("name", name);
+            Role role = null;
+            try {
+                role = query.getSingleResult();
+            } catch (NoResultException ex) {
+                log.debug("No role found with name " + name);
+            }
+            return role;
+        }));
     }
 
     public List<Role> getByNames(List<String> names) {
-        Session session = sessionFactory.openSession();
-        session.beginTransaction();
-        TypedQuery<Role> query = session.createQuery("SELECT r FROM roles r WHERE r.name IN :names", Role.class);
-        query.setParameter("names", names);
-        List<Role> roles = null;
-        try {
-            roles = query.getResultList();
-        } catch (NoResultException ex) {
-            log.debug("No roles found with names " + String.join(", ", names));
-        }
-        session.getTransaction().commit();
-        session.close();
-        return roles;
+        return readRouter.read(ROLES_KEY, readSessionFactory -> inReadTransaction(readSessionFactory, session -> {
+            TypedQuery<Role> query = session.createQuery("SELECT r FROM roles r WHERE r.name IN :names", Role.class);
+            query.setParameter("names", names);
+            List<Role> roles = null;
+            try {
+                roles = query.getResultList();
+            } catch (NoResultException ex) {
+                log.debug("No roles found with names " + String.join(", ", names));
+            }
+            return roles;
+        }));
     }
 
     public List<Role> getByIds(List<Long> ids) {
-        Session session = sessionFactory.openSession();
-        session.beginTransaction();
-        TypedQuery<Role> query = session.createQuery("SELECT r FROM roles r WHERE r.id IN :ids", Role.class);
-        query.setParameter("ids", ids);
-        List<Role> roles = null;
-        try {
-            roles = query.getResultList();
-        } catch (NoResultException ex) {
-            log.debug("No roles found for ids " + ids.stream().map(Object::toString).collect(Collectors.joining(", ")));
-        }
-        session.getTransaction().commit();
-        session.close();
-        return roles;
+        return readRouter.read(ROLES_KEY, readSessionFactory -> inReadTransaction(readSessionFactory, session -> {
+            TypedQuery<Role> query = session.createQuery("SELECT r FROM roles r WHERE r.id IN :ids", Role.class);
+            query.setParameter("ids", ids);
+            List<Role> roles = null;
+            try {
+                roles = query.getResultList();
+            } catch (NoResultException ex) {
+                log.debug("No roles found for ids " + ids.stream().map(Object::toString).collect(Collectors.joining(", ")));
+            }
+            return roles;
+        }));
     }
 }
@@ -1,12 +1,22 @@
 package org.xapps.services.repositories;
 
 import lombok.extern.slf4j.Slf4j;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.exception.ConstraintViolationException;
+import org.xapps.services.entities.Role;
 import org.xapps.services.entities.User;
 import org.xapps.services.repositories.utils.Repository;
+import org.xapps.services.services.requests.UserFields;
+import org.xapps.services.services.requests.UserSearch;
 
 import javax.persistence.NoResultException;
+import javax.persistence.Tuple;
 import javax.persistence.TypedQuery;
+import java.util.*;
+import java.util.function.Consumer;
 
 @Slf4j
 public class UserRepository extends Repository<User, Long> {
@@ -14,36 +24,230 @@ public class UserRepository extends Repository<User, Long> {
         super(User.class);
     }
 
-    public User getByEmail(String email) {
-        Session session = sessionFactory.openSession();
-        session.beginTransaction();
-        TypedQuery<User> query = session.createQuery("SELECT u FROM users u WHERE u.email = :email", User.class);
-        query.setParameter("email", email);
-        User user = null;
-        try {
-            user = query.getSingleResult();
-        } catch (NoResultException ex) {
-            log.debug("No user found with email " + email);
+    private String emailKey(String email) {
+        return "users:email:" + email;
+    }
+
+    // True when the failure is the unique email key rejecting a write, MySQL reports the key as table.key since 8.0.19
+    public static boolean isDuplicateEmail(Throwable throwable) {
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConstraintViolationException violation && violation.getConstraintName() != null) {
+                String constraint = violation.getConstraintName();
+                return constraint.equals(User.EMAIL_CONSTRAINT) || constraint.endsWith("." + User.EMAIL_CONSTRAINT);
+            }
+        }
+        return false;
+    }
+
+    @Override
+    protected void recordWrite(User obj) {
+        super.recordWrite(obj);
+        readRouter.recordWrite(emailKey(obj.getEmail()));
+    }
+
+    // Email changes also invalidate the routing of the previous email, replicas may still return the user for it
+    public User update(User user, String previousEmail) {
+        User updated = update(user);
+        if (previousEmail != null && !previousEmail.equals(user.getEmail())) {
+            readRouter.recordWrite(emailKey(previousEmail));
         }
-        session.getTransaction().commit();
-        session.close();
-        return user;
+        return updated;
+    }
+
+    public User getByEmail(String email) {
+        return readRouter.read(emailKey(email), readSessionFactory -> getByEmail(readSessionFactory, email));
+    }
+
+    // Always answered by the primary, it guards the email uniqueness check of creates
+    public User getByEmailFromPrimary(String email) {
+        return getByEmail(sessionFactory, email);
+    }
+
+    private User getByEmail(SessionFactory factory, String email) {
+        return inReadTransaction(factory, session -> {
+            TypedQuery<User> query = session.createQuery("SELECT u FROM users u WHERE u.email = :email", User.class);
+            query.setParameter("email", email);
+            User user = null;
+            try {
+                user = query.getSingleResult();
+            } catch (NoResultException ex) {
+                log.debug("No user found with email " + email);
+            }
+            return user;
+        });
     }
 
+    // Streams the email of every user from the primary, MySQL only streams rows with the Integer.MIN_VALUE fetch size
+    public long forEachEmail(Consumer<String> consumer) {
+        return inReadTransaction(sessionFactory, session -> {
+            long count = 0;
+            ScrollableResults results = session.createQuery("SELECT u.email FROM users u", String.class)
+                    .setFetchSize(Integer.MIN_VALUE)
+                    .setReadOnly(true)
+                    .scroll(ScrollMode.FORWARD_ONLY);
+            try {
+                while (results.next()) {
+                    String email = (String) results.get(0);
+                    if (email != null) {
+                        consumer.accept(email);
+                        count++;
+                    }
+                }
+            } finally {
+                results.close();
+            }
+            return count;
+        });
+    }
+
+    // Always answered by the primary, it guards the email uniqueness check of updates
     public User getByNotIdAndEmail(Long id, String email) {
-        Session session = sessionFactory.openSession();
-        session.beginTransaction();
-        TypedQuery<User> query = session.createQuery("SELECT u FROM users u WHERE u.id != :id AND u.email = :email", User.class);
-        query.setParameter("id", id);
-        query.setParameter("email", email);
-        User user = null;
-        try {
-            user = query.getSingleResult();
-        } catch (NoResultException ex) {
-            log.debug("No user found with id " + id + " and email " + email);
-        }
-        session.getTransaction().commit();
-        session.close();
-        return user;
+        return inReadTransaction(sessionFactory, session -> {
+            TypedQuery<User> query = session.createQuery("SELECT u FROM users u WHERE u.id != :id AND u.email = :email", User.class);
+            query.setParameter("id", id);
+            query.setParameter("email", email);
+            User user = null;
+            try {
+                user = query.getSingleResult();
+            } catch (NoResultException ex) {
+                log.debug("No user found with id " + id + " and email " + email);
+            }
+            return user;
+        });
+    }
+
+    private static String likePrefix(String prefix) {
+        return prefix.replace("!", "!!").replace("%", "!%").replace("_", "!_") + "%";
+    }
+
+    // Every filter matches an index: email, (last_name, first_name), users_roles(role_id), created_at, updated_at
+    private List<Long> searchIds(Session session, UserSearch search) {
+        StringBuilder hql = new StringBuilder("SELECT u.id FROM users u WHERE 1 = 1");
+        Map<String, Object> parameters = new HashMap<>();
+        if (search.emailPrefix() != null) {
+            hql.append(" AND u.email LIKE :email ESCAPE '!'");
+            parameters.put("email", likePrefix(search.emailPrefix()));
+        }
+        if (search.lastNamePrefix() != null) {
+            hql.append(" AND u.lastName LIKE :lastName ESCAPE '!'");
+            parameters.put("lastName", likePrefix(search.lastNamePrefix()));
+        }
+        if (search.firstNamePrefix() != null) {
+            hql.append(" AND u.firstName LIKE :firstName ESCAPE '!'");
+            parameters.put("firstName", likePrefix(search.firstNamePrefix()));
+        }
+        if (search.role() != null) {
+            hql.append(" AND u.id IN (SELECT ur.id.userId FROM users_roles ur WHERE ur.id.roleId IN (SELECT r.id FROM roles r WHERE r.name = :role))");
+            parameters.put("role", search.role());
+        }
+        if (search.createdFrom() != null) {
+            hql.append(" AND u.createdAt >= :createdFrom");
+            parameters.put("createdFrom", new Date(search.createdFrom()));
+        }
+        if (search.createdTo() != null) {
+            hql.append(" AND u.createdAt < :createdTo");
+            parameters.put("createdTo", new Date(search.createdTo()));
+        }
+        if (search.updatedFrom() != null) {
+            hql.append(" AND u.updatedAt >= :updatedFrom");
+            parameters.put("updatedFrom", new Date(search.updatedFrom()));
+        }
+        if (search.updatedTo() != null) {
+            hql.append(" AND u.updatedAt < :updatedTo");
+            parameters.put("updatedTo", new Date(search.updatedTo()));
+        }
+        if (search.after() != null) {
+            hql.append(" AND u.id > :after");
+            parameters.put("after", search.after());
+        }
+        hql.append(" ORDER BY u.id");
+        TypedQuery<Long> query = session.createQuery(hql.toString(), Long.class);
+        parameters.forEach(query::setParameter);
+        query.setMaxResults(search.limit());
+        return query.getResultList();
+    }
+
+    public List<Long> searchIds(UserSearch search) {
+        return readRouter.read("users", readSessionFactory -> inReadTransaction(readSessionFactory, session -> searchIds(session, search)));
+    }
+
+    // Ids of the page are selected first so that the limit applies to users and not to user-role rows
+    public List<User> search(UserSearch search) {
+        return readRouter.read("users", readSessionFactory -> inReadTransaction(readSessionFactory, session -> {
+            List<Long> ids = searchIds(session, search);
+            if (ids.isEmpty()) {
+                return List.<User>of();
+            }
+            TypedQuery<User> usersQuery = session.createQuery("SELECT DISTINCT u FROM users u LEFT JOIN FETCH u.roles WHERE u.id IN :ids ORDER BY u.id", User.class);
+            usersQuery.setParameter("ids", ids);
+            usersQuery.setHint("hibernate.query.passDistinctThrough", false);
+            return usersQuery.getResultList();
+        }));
+    }
+
+    private static String fieldPath(String field) {
+        return switch (field) {
+            case UserFields.ID -> "u.id";
+            case UserFields.EMAIL -> "u.email";
+            case UserFields.FIRST_NAME -> "u.firstName";
+            case UserFields.LAST_NAME -> "u.lastName";
+            case UserFields.CREATED_AT -> "u.createdAt";
+            case UserFields.UPDATED_AT -> "u.updatedAt";
+            default -> throw new IllegalArgumentException("Field " + field + " is not a column");
+        };
+    }
+
+    // Tuple projection of the requested columns only, the roles join runs as a second query and only when requested.
+    // A null ids list projects every user.
+    @SuppressWarnings("unchecked")
+    private List<Map<String, Object>> project(Session session, List<Long> ids, UserFields fields) {
+        List<String> columns = fields.names().stream().filter(name -> !UserFields.ROLES.equals(name)).toList();
+        StringBuilder hql = new StringBuilder("SELECT u.id AS ").append(UserFields.ID);
+        columns.stream()
+                .filter(name -> !UserFields.ID.equals(name))
+                .forEach(name -> hql.append(", ").append(fieldPath(name)).append(" AS ").append(name));
+        hql.append(" FROM users u");
+        if (ids != null) {
+            hql.append(" WHERE u.id IN :ids");
+        }
+        hql.append(" ORDER BY u.id");
+        TypedQuery<Tuple> query = session.createQuery(hql.toString(), Tuple.class);
+        if (ids != null) {
+            query.setParameter("ids", ids);
+        }
+        Map<Long, Map<String, Object>> projections = new LinkedHashMap<>();
+        for (Tuple tuple : query.getResultList()) {
+            Map<String, Object> projection = new LinkedHashMap<>();
+            fields.names().forEach(name -> projection.put(name, UserFields.ROLES.equals(name) ? new ArrayList<Role>() : tuple.get(name)));
+            projections.put(tuple.get(UserFields.ID, Long.class), projection);
+        }
+        if (fields.includes(UserFields.ROLES) && !projections.isEmpty()) {
+            String rolesHql = "SELECT u.id, r.id, r.name FROM users u JOIN u.roles r" + (ids != null ? " WHERE u.id IN :ids" : "");
+            TypedQuery<Object[]> rolesQuery = session.createQuery(rolesHql, Object[].class);
+            if (ids != null) {
+                rolesQuery.setParameter("ids", ids);
+            }
+            for (Object[] row : rolesQuery.getResultList()) {
+                Map<String, Object> projection = projections.get((Long) row[0]);
+                if (projection != null) {
+                    ((List<Role>) projection.get(UserFields.ROLES)).add(new Role((Long) row[1], (String) row[2]));
+                }
+            }
+        }
+        return new ArrayList<>(projections.values());
+    }
+
+    public List<Map<String, Object>> readFieldsIn(List<Long> ids, UserFields fields) {
+        if (ids != null && ids.isEmpty()) {
+            return List.of();
+        }
+        return readRouter.read("users", readSessionFactory -> inReadTransaction(readSessionFactory, session -> project(session, ids, fields)));
+    }
+
+    public Map<String, Object> readFields(Long id, UserFields fields) {
+        return readRouter.read(entityKey(id), readSessionFactory -> inReadTransaction(readSessionFactory, session -> {
+            List<Map<String, Object>> projections = project(session, List.of(id), fields);
+            return projections.isEmpty() ? null : projections.get(0);
+        }));
     }
 }
@@ -0,0 +1,68 @@
+package org.xapps.services.repositories.utils;
+
+import org.xapps.services.services.utils.Tracing;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+public class AsyncRepository<T, I> {
+    private final Repository<T, I> repository;
+    private final Executor executor;
+    private final DatabaseCircuitBreaker circuitBreaker;
+    private final Tracing tracing;
+    private final String spanPrefix;
+
+    public AsyncRepository(Repository<T, I> repository, Executor executor, DatabaseCircuitBreaker circuitBreaker) {
+        this.repository = repository;
+        this.executor = executor;
+        this.circuitBreaker = circuitBreaker;
+        this.tracing = Tracing.getInstance();
+        this.spanPrefix = repository.getClass().getSimpleName() + ".";
+    }
+
+    // Runs through the circuit breaker, in a span of its own when the caller is part of a sampled trace
+    protected <R> CompletionStage<R> supply(String name, Supplier<R> operation) {
+        return circuitBreaker.call(() -> CompletableFuture.supplyAsync(() -> tracing.inSpan(spanPrefix + name, operation), executor));
+    }
+
+    // Long running scans, kept out of the circuit breaker so that its call timeout does not count them as failures
+    protected <R> CompletionStage<R> supplyUnguarded(String name, Supplier<R> operation) {
+        return CompletableFuture.supplyAsync(() -> tracing.inSpan(spanPrefix + name, operation), executor);
+    }
+
+    public CompletionStage<Long> count() {
+        return supply("count", repository::count);
+    }
+
+    public CompletionStage<T> create(T obj) {
+        return supply("create", () -> repository.create(obj));
+    }
+
+    public CompletionStage<List<T>> readAll() {
+        return supply("readAll", repository::readAll);
+    }
+
+    public CompletionStage<T> read(I id) {
+        return supply("read", () -> repository.read(id));
+    }
+
+    public CompletionStage<T> readFromPrimary(I id) {
+        return supply("readFromPrimary", () -> repository.readFromPrimary(id));
+    }
+
+    public CompletionStage<Map<I, T>> readByIds(List<I> ids) {
+        return supply("readByIds", () -> repository.readByIds(ids));
+    }
+
+    public CompletionStage<T> update(T obj) {
+        return supply("update", () -> repository.update(obj));
+    }
+
+    public CompletionStage<T> delete(T obj) {
+        return supply("delete", () -> repository.delete(obj));
+    }
+}
@@ -0,0 +1,136 @@
+package org.xapps.services.repositories.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Approximate set of strings answering "definitely absent" or "maybe present", with support for removals.
+ * Each slot is a 4 bit counter, 16 of them packed per long and updated with compare-and-set, so adds, removals
+ * and lookups are lock free. A counter reaching 15 sticks there, removals never bring it back to zero, which
+ * only costs false positives. Removing a key that was never added can cause false negatives, callers only
+ * remove keys they added before.
+ */
+public class CountingBloomFilter {
+    private static final int COUNTER_BITS = 4;
+    private static final int COUNTERS_PER_WORD = Long.SIZE / COUNTER_BITS;
+    private static final long COUNTER_MASK = (1L << COUNTER_BITS) - 1;
+
+    private final AtomicLongArray words;
+    private final long counters;
+    private final int hashes;
+    private final AtomicLong size = new AtomicLong();
+
+    public CountingBloomFilter(long counters, int hashes) {
+        if (counters <= 0 || hashes <= 0) {
+            throw new IllegalArgumentException("Counters and hashes must be positive");
+        }
+        long words = (counters + COUNTERS_PER_WORD - 1) / COUNTERS_PER_WORD;
+        if (words > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many counters: " + counters);
+        }
+        this.words = new AtomicLongArray((int) words);
+        this.counters = words * COUNTERS_PER_WORD;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Sized for the expected number of keys at the given false positive rate, with fewer counters when that
+     * does not fit in maxMemoryBytes, in which case the false positive rate ends up higher.
+     */
+    public static CountingBloomFilter create(long expectedKeys, double falsePositiveRate, long maxMemoryBytes) {
+        long keys = Math.max(1, expectedKeys);
+        double optimalCounters = -keys * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        long counters = Math.max(COUNTERS_PER_WORD, Math.min((long) Math.ceil(optimalCounters), maxMemoryBytes * (Byte.SIZE / COUNTER_BITS)));
+        int hashes = (int) Math.max(1, Math.round((double) counters / keys * Math.log(2)));
+        return new CountingBloomFilter(counters, Math.min(hashes, 16));
+    }
+
+    // 64 bit FNV-1a over the UTF-8 bytes followed by a murmur3 finalizer, split in two halves for double hashing
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private long slot(long hash, int i) {
+        long combined = (hash >>> 32) + i * (hash & 0xffffffffL | 1);
+        return Math.floorMod(combined, counters);
+    }
+
+    private static long counter(long word, int shift) {
+        return (word >>> shift) & COUNTER_MASK;
+    }
+
+    public void add(String key) {
+        long hash = hash(key);
+        for (int i = 0; i < hashes; i++) {
+            long slot = slot(hash, i);
+            int index = (int) (slot / COUNTERS_PER_WORD);
+            int shift = (int) (slot % COUNTERS_PER_WORD) * COUNTER_BITS;
+            long word;
+            do {
+                word = words.get(index);
+                if (counter(word, shift) == COUNTER_MASK) {
+                    break;
+                }
+            } while (!words.compareAndSet(index, word, word + (1L << shift)));
+        }
+        size.incrementAndGet();
+    }
+
+    public void remove(String key) {
+        long hash = hash(key);
+        for (int i = 0; i < hashes; i++) {
+            long slot = slot(hash, i);
+            int index = (int) (slot / COUNTERS_PER_WORD);
+            int shift = (int) (slot % COUNTERS_PER_WORD) * COUNTER_BITS;
+            long word;
+            do {
+                word = words.get(index);
+                long counter = counter(word, shift);
+                if (counter == 0 || counter == COUNTER_MASK) {
+                    break;
+                }
+            } while (!words.compareAndSet(index, word, word - (1L << shift)));
+        }
+        size.decrementAndGet();
+    }
+
+    public boolean mightContain(String key) {
+        long hash = hash(key);
+        for (int i = 0; i < hashes; i++) {
+            long slot = slot(hash, i);
+            if (counter(words.get((int) (slot / COUNTERS_PER_WORD)), (int) (slot % COUNTERS_PER_WORD) * COUNTER_BITS) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Keys added and not removed, counting duplicates
+    public long size() {
+        return size.get();
+    }
+
+    public long memoryBytes() {
+        return (long) words.length() * Long.BYTES;
+    }
+
+    public int hashes() {
+        return hashes;
+    }
+
+    // False positive rate expected at the current size
+    public double expectedFalsePositiveRate() {
+        return Math.pow(1 - Math.exp(-(double) hashes * Math.max(0, size()) / counters), hashes);
+    }
+}
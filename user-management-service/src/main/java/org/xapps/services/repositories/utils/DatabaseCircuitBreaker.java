@@ -0,0 +1,164 @@
+package org.xapps.services.repositories.utils;
+
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Extension;
+import akka.actor.typed.ExtensionId;
+import akka.pattern.CircuitBreaker;
+import akka.pattern.CircuitBreakerOpenException;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.exception.ConstraintViolationException;
+import org.hibernate.exception.GenericJDBCException;
+import org.hibernate.exception.JDBCConnectionException;
+import org.hibernate.service.spi.ServiceException;
+import org.xapps.services.services.utils.Deadlines;
+import org.xapps.services.services.utils.Metrics;
+import org.xapps.services.services.utils.PropertiesProvider;
+import org.xapps.services.services.utils.Settings;
+
+import javax.persistence.QueryTimeoutException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Circuit breaker shared by every repository of a node, all of them talk to the same database.
+ * After max-failures consecutive failed or timed out calls it opens and fails calls at once, after the reset timeout
+ * a single probe call is let through and closes it again when it succeeds. Consecutive failed probes double the
+ * reset timeout up to max-reset-timeout.
+ * A call times out at the deadline of the request it serves, the same deadline that bounds its JDBC statements, so
+ * a scan allowed ten seconds by its route is not counted as failed after three. Calls without a request deadline,
+ * such as seeding, run under one of call-timeout-millis.
+ * Only connection, timeout and JDBC infrastructure errors count as failures. Unique key violations, which concurrent
+ * creates of one email rely on, and deadlines that passed before the database was queried leave the breaker alone,
+ * a call whose deadline already passed is failed without going through it.
+ */
+@Slf4j
+public class DatabaseCircuitBreaker implements Extension {
+    private static final Id ID = new Id();
+
+    private final CircuitBreaker breaker;
+    private final long callTimeoutMillis;
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder halfOpened = new LongAdder();
+    private final LongAdder closed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    public static class Id extends ExtensionId<DatabaseCircuitBreaker> {
+        @Override
+        public DatabaseCircuitBreaker createExtension(ActorSystem<?> system) {
+            return new DatabaseCircuitBreaker(system);
+        }
+    }
+
+    private DatabaseCircuitBreaker(ActorSystem<?> system) {
+        Settings properties = PropertiesProvider.getInstance().current();
+        this.callTimeoutMillis = properties.circuitBreakerCallTimeout();
+        if (properties.circuitBreakerEnabled()) {
+            // A zero call timeout disables the fixed timer of the breaker, every call is bounded by its own deadline
+            this.breaker = CircuitBreaker.create(
+                            system.classicSystem().scheduler(),
+                            properties.circuitBreakerMaxFailures(),
+                            Duration.ZERO,
+                            Duration.ofMillis(properties.circuitBreakerResetTimeout())
+                    )
+                    .withExponentialBackoff(Duration.ofMillis(properties.circuitBreakerMaxResetTimeout()))
+                    .addOnOpenListener(() -> {
+                        opened.increment();
+                        log.warn("Database circuit breaker opened, failing database calls fast");
+                    })
+                    .addOnHalfOpenListener(() -> {
+                        halfOpened.increment();
+                        log.info("Database circuit breaker half-open, probing the database");
+                    })
+                    .addOnCloseListener(() -> {
+                        closed.increment();
+                        log.info("Database circuit breaker closed");
+                    });
+        } else {
+            this.breaker = null;
+        }
+        Metrics metrics = Metrics.getInstance();
+        metrics.gauge("database.circuit-breaker.state", this::state);
+        metrics.gauge("database.circuit-breaker.opened", opened::sum);
+        metrics.gauge("database.circuit-breaker.half-opened", halfOpened::sum);
+        metrics.gauge("database.circuit-breaker.closed", closed::sum);
+        metrics.gauge("database.circuit-breaker.rejected", rejected::sum);
+    }
+
+    public static DatabaseCircuitBreaker get(ActorSystem<?> system) {
+        return ID.apply(system);
+    }
+
+    public boolean isOpen() {
+        return breaker != null && breaker.isOpen();
+    }
+
+    // 0 closed, 1 half-open, 2 open
+    public int state() {
+        if (breaker == null || breaker.isClosed()) {
+            return 0;
+        }
+        return breaker.isHalfOpen() ? 1 : 2;
+    }
+
+    // Calls failed fast by callers checking isOpen before calling
+    public void rejected() {
+        rejected.increment();
+    }
+
+    public <R> CompletionStage<R> call(Supplier<CompletionStage<R>> operation) {
+        if (breaker == null) {
+            return operation.get();
+        }
+        long deadline = Deadlines.current() != Deadlines.NONE ? Deadlines.current() : Deadlines.after(callTimeoutMillis);
+        if (deadline <= System.currentTimeMillis()) {
+            return CompletableFuture.failedFuture(new DeadlineExceededException("Request deadline exceeded before calling the database"));
+        }
+        return breaker.<R>callWithCircuitBreakerCS(() -> Deadlines.withDeadline(deadline, operation)
+                .toCompletableFuture()
+                .orTimeout(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS),
+                (Optional<R> value, Optional<Throwable> failure) -> failure.map(DatabaseCircuitBreaker::isDatabaseFailure).orElse(false)
+        ).whenComplete((value, throwable) -> {
+            Throwable cause = (throwable instanceof CompletionException) ? throwable.getCause() : throwable;
+            if (cause instanceof CircuitBreakerOpenException) {
+                rejected.increment();
+            }
+        });
+    }
+
+    static boolean isDatabaseFailure(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof DeadlineExceededException
+                    || cause instanceof ConstraintViolationException
+                    || cause instanceof SQLIntegrityConstraintViolationException) {
+                return false;
+            }
+        }
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof TimeoutException
+                    || cause instanceof QueryTimeoutException
+                    || cause instanceof org.hibernate.QueryTimeoutException
+                    || cause instanceof SQLTimeoutException
+                    || cause instanceof JDBCConnectionException
+                    || cause instanceof GenericJDBCException
+                    || cause instanceof SQLTransientConnectionException
+                    || cause instanceof SQLNonTransientConnectionException
+                    || cause instanceof SQLRecoverableException
+                    || cause instanceof ServiceException) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
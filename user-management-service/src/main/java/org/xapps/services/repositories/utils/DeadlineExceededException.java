@@ -0,0 +1,13 @@
+package org.xapps.services.repositories.utils;
+
+import javax.persistence.QueryTimeoutException;
+
+/**
+ * The deadline of the request passed before the database was queried. Says nothing about the health of the
+ * database, so the circuit breaker does not count it as a failure.
+ */
+public class DeadlineExceededException extends QueryTimeoutException {
+    public DeadlineExceededException(String message) {
+        super(message);
+    }
+}
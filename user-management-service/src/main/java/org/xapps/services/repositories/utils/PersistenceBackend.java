@@ -0,0 +1,14 @@
+package org.xapps.services.repositories.utils;
+
+public enum PersistenceBackend {
+    BLOCKING,
+    ASYNC,
+    VIRTUAL;
+
+    public static PersistenceBackend fromName(String name) {
+        if (name == null || name.isBlank()) {
+            return BLOCKING;
+        }
+        return PersistenceBackend.valueOf(name.trim().toUpperCase());
+    }
+}
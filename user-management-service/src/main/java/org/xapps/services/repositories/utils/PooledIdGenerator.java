@@ -0,0 +1,54 @@
+package org.xapps.services.repositories.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.MappingException;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
+import org.hibernate.id.enhanced.TableStructure;
+import org.hibernate.metamodel.spi.MetamodelImplementor;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.service.ServiceRegistry;
+import org.hibernate.type.Type;
+import org.xapps.services.services.utils.PropertiesProvider;
+
+import java.util.Properties;
+
+/**
+ * Sequence generator handing out ids from blocks of persistence.id-allocation-size values with the pooled-lo
+ * optimizer, so only one insert per block reads and bumps the sequence. MySQL has no sequences, each entity gets
+ * a single row table named after its sequence_name parameter instead of the hibernate_sequence table shared by
+ * every entity under GenerationType.AUTO.
+ */
+@Slf4j
+public class PooledIdGenerator extends SequenceStyleGenerator {
+    @Override
+    public void configure(Type type, Properties params, ServiceRegistry serviceRegistry) throws MappingException {
+        params.put(INCREMENT_PARAM, String.valueOf(PropertiesProvider.getInstance().current().idAllocationSize()));
+        params.put(OPT_PARAM, "pooled-lo");
+        super.configure(type, params, serviceRegistry);
+    }
+
+    /**
+     * Moves every sequence table past the largest id of its entity table. Rows created before the switch took their
+     * ids from hibernate_sequence, the new tables start at 1. Never moves a sequence back, so it can run on every start.
+     * It does not make a rolling deploy safe: nodes of the previous version keep taking ids from hibernate_sequence,
+     * and a node may reserve a block starting at 1 before another node aligned the table, both collide with existing
+     * rows. The first rollout of this generator must stop every writer until the first node has started.
+     */
+    public static void alignWithExistingRows(SessionFactory sessionFactory) {
+        MetamodelImplementor metamodel = (MetamodelImplementor) sessionFactory.getMetamodel();
+        for (EntityPersister persister : metamodel.entityPersisters().values()) {
+            if (persister.getIdentifierGenerator() instanceof PooledIdGenerator generator
+                    && generator.getDatabaseStructure() instanceof TableStructure sequence
+                    && persister instanceof AbstractEntityPersister entity) {
+                String sql = String.format("UPDATE %s SET next_val = GREATEST(next_val, (SELECT COALESCE(MAX(%s), 0) + 1 FROM %s))",
+                        sequence.getName(), entity.getIdentifierColumnNames()[0], entity.getTableName());
+                int updated = Repository.inTransaction(sessionFactory.openSession(), Session::beginTransaction,
+                        session -> session.createNativeQuery(sql).executeUpdate());
+                log.debug("Aligned " + sequence.getName() + " with " + entity.getTableName() + ", " + updated + " rows updated");
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package org.xapps.services.repositories.utils;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Groups single key loads into multi key loads.
+ * A load arriving while no batch is running is dispatched at once, so an idle service pays no extra latency.
+ * While batches are running, loads are collected until maxBatchSize keys are pending or the oldest one
+ * waited maxDelay, and at most maxConcurrentBatches batches run at the same time.
+ */
+public class ReadBatcher<K, V> {
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "read-batcher-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Function<List<K>, CompletionStage<Map<K, V>>> loader;
+    private final int maxBatchSize;
+    private final Duration maxDelay;
+    private final int maxConcurrentBatches;
+    private final Object lock = new Object();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private LinkedHashMap<K, List<CompletableFuture<V>>> pending = new LinkedHashMap<>();
+    private ScheduledFuture<?> scheduledFlush;
+    private int running;
+
+    public ReadBatcher(Function<List<K>, CompletionStage<Map<K, V>>> loader, int maxBatchSize, Duration maxDelay, int maxConcurrentBatches) {
+        this.loader = loader;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelay = maxDelay;
+        this.maxConcurrentBatches = maxConcurrentBatches;
+    }
+
+    public CompletionStage<V> load(K key) {
+        CompletableFuture<V> result = new CompletableFuture<>();
+        Map<K, List<CompletableFuture<V>>> batch = null;
+        synchronized (lock) {
+            loads.increment();
+            pending.computeIfAbsent(key, k -> new ArrayList<>()).add(result);
+            if (running == 0 || pending.size() >= maxBatchSize) {
+                batch = drain();
+            } else if (scheduledFlush == null) {
+                scheduledFlush = timer.schedule(this::flush, maxDelay.toNanos(), TimeUnit.NANOSECONDS);
+            }
+        }
+        if (batch != null) {
+            run(batch);
+        }
+        return result;
+    }
+
+    public long loads() {
+        return loads.sum();
+    }
+
+    public long batches() {
+        return batches.sum();
+    }
+
+    public double averageBatchSize() {
+        long total = batches();
+        return total == 0 ? 0.0 : (double) loads() / total;
+    }
+
+    // Called holding the lock, takes up to maxBatchSize pending keys when a batch slot is free
+    private Map<K, List<CompletableFuture<V>>> drain() {
+        if (pending.isEmpty() || running >= maxConcurrentBatches) {
+            return null;
+        }
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        LinkedHashMap<K, List<CompletableFuture<V>>> batch;
+        if (pending.size() <= maxBatchSize) {
+            batch = pending;
+            pending = new LinkedHashMap<>();
+        } else {
+            batch = new LinkedHashMap<>();
+            Iterator<Map.Entry<K, List<CompletableFuture<V>>>> iterator = pending.entrySet().iterator();
+            while (batch.size() < maxBatchSize) {
+                Map.Entry<K, List<CompletableFuture<V>>> entry = iterator.next();
+                batch.put(entry.getKey(), entry.getValue());
+                iterator.remove();
+            }
+        }
+        running++;
+        batches.increment();
+        return batch;
+    }
+
+    private void flush() {
+        Map<K, List<CompletableFuture<V>>> batch;
+        synchronized (lock) {
+            scheduledFlush = null;
+            batch = drain();
+        }
+        if (batch != null) {
+            run(batch);
+        }
+    }
+
+    private void run(Map<K, List<CompletableFuture<V>>> batch) {
+        CompletionStage<Map<K, V>> values;
+        try {
+            values = loader.apply(new ArrayList<>(batch.keySet()));
+        } catch (RuntimeException ex) {
+            values = CompletableFuture.failedFuture(ex);
+        }
+        values.whenComplete((loaded, throwable) -> {
+            batch.forEach((key, waiters) -> waiters.forEach(waiter -> {
+                if (throwable != null) {
+                    waiter.completeExceptionally(throwable);
+                } else {
+                    waiter.complete(loaded.get(key));
+                }
+            }));
+            Map<K, List<CompletableFuture<V>>> next;
+            synchronized (lock) {
+                running--;
+                // Loads left waiting for a slot have already waited long enough
+                next = drain();
+            }
+            if (next != null) {
+                run(next);
+            }
+        });
+    }
+}
@@ -0,0 +1,122 @@
+package org.xapps.services.repositories.utils;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+public class ReplicaRouter<S> {
+    private static final int RECENT_WRITES_PURGE_THRESHOLD = 10_000;
+
+    public enum Selection {
+        ROUND_ROBIN,
+        LEAST_LOADED;
+
+        public static Selection fromName(String name) {
+            if (name == null || name.isBlank()) {
+                return ROUND_ROBIN;
+            }
+            return Selection.valueOf(name.trim().replace('-', '_').toUpperCase());
+        }
+    }
+
+    private final S primary;
+    private final List<S> replicas;
+    private final AtomicInteger[] inFlight;
+    private final AtomicInteger next;
+    private final Selection selection;
+    private final boolean readYourWrites;
+    private final long maxLagMillis;
+    private final Map<Object, Long> recentWrites;
+    private final LongSupplier clock;
+
+    public ReplicaRouter(S primary, List<S> replicas, Selection selection, boolean readYourWrites, long maxLagMillis) {
+        this(primary, replicas, selection, readYourWrites, maxLagMillis, System::currentTimeMillis);
+    }
+
+    public ReplicaRouter(S primary, List<S> replicas, Selection selection, boolean readYourWrites, long maxLagMillis, LongSupplier clock) {
+        this.primary = primary;
+        this.replicas = List.copyOf(replicas);
+        this.inFlight = new AtomicInteger[this.replicas.size()];
+        for (int i = 0; i < inFlight.length; i++) {
+            inFlight[i] = new AtomicInteger();
+        }
+        this.next = new AtomicInteger();
+        this.selection = selection;
+        this.readYourWrites = readYourWrites;
+        this.maxLagMillis = maxLagMillis;
+        this.recentWrites = new ConcurrentHashMap<>();
+        this.clock = clock;
+    }
+
+    public S primary() {
+        return primary;
+    }
+
+    public int replicaCount() {
+        return replicas.size();
+    }
+
+    public <R> R read(Object consistencyKey, Function<S, R> operation) {
+        if (replicas.isEmpty() || requiresPrimary(consistencyKey)) {
+            return operation.apply(primary);
+        }
+        int index = selectReplica();
+        inFlight[index].incrementAndGet();
+        try {
+            return operation.apply(replicas.get(index));
+        } finally {
+            inFlight[index].decrementAndGet();
+        }
+    }
+
+    public void recordWrite(Object... consistencyKeys) {
+        if (!readYourWrites || replicas.isEmpty()) {
+            return;
+        }
+        long now = clock.getAsLong();
+        for (Object key : consistencyKeys) {
+            if (key != null) {
+                recentWrites.put(key, now);
+            }
+        }
+        if (recentWrites.size() > RECENT_WRITES_PURGE_THRESHOLD) {
+            recentWrites.values().removeIf(timestamp -> now - timestamp > maxLagMillis);
+        }
+    }
+
+    public boolean requiresPrimary(Object consistencyKey) {
+        if (!readYourWrites || consistencyKey == null) {
+            return false;
+        }
+        Long writtenAt = recentWrites.get(consistencyKey);
+        if (writtenAt == null) {
+            return false;
+        }
+        if (clock.getAsLong() - writtenAt > maxLagMillis) {
+            recentWrites.remove(consistencyKey, writtenAt);
+            return false;
+        }
+        return true;
+    }
+
+    private int selectReplica() {
+        int offset = Math.floorMod(next.getAndIncrement(), replicas.size());
+        if (selection == Selection.ROUND_ROBIN) {
+            return offset;
+        }
+        int selected = offset;
+        int lowestLoad = inFlight[offset].get();
+        for (int i = 1; i < replicas.size() && lowestLoad > 0; i++) {
+            int candidate = (offset + i) % replicas.size();
+            int load = inFlight[candidate].get();
+            if (load < lowestLoad) {
+                selected = candidate;
+                lowestLoad = load;
+            }
+        }
+        return selected;
+    }
+}
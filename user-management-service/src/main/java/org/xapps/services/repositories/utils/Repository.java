@@ -1,22 +1,36 @@
 package org.xapps.services.repositories.utils;
 
 import lombok.extern.slf4j.Slf4j;
+import org.hibernate.FlushMode;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.SharedSessionContract;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
+import org.xapps.services.services.utils.Deadlines;
+import org.xapps.services.services.utils.PropertiesProvider;
+import org.xapps.services.services.utils.Settings;
 
 import javax.persistence.*;
 import java.lang.reflect.Field;
+import java.sql.Statement;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 @Slf4j
 public class Repository<T, I> {
     protected final SessionFactory sessionFactory;
+    protected final ReplicaRouter<SessionFactory> readRouter;
     private final Class<T> typeParameterClass;
     private final String tableName;
     private final String idFieldName;
 
     public Repository(Class<T> typeParameterClass) {
-        sessionFactory = SessionFactoryProvider.getInstance().buildSessionFactory();
+        sessionFactory = SessionFactoryProvider.getInstance().getSessionFactory();
+        readRouter = SessionFactoryProvider.getInstance().getReadRouter();
         this.typeParameterClass = typeParameterClass;
         String tableNameByAnnotation = this.typeParameterClass.getAnnotation(Entity.class).name();
         if (tableNameByAnnotation != null && !tableNameByAnnotation.isEmpty() && !tableNameByAnnotation.isBlank()) {
@@ -46,68 +60,178 @@ public class Repository<T, I> {
         this.idFieldName = idFieldNameByAnnotation;
     }
 
-    public Long count() {
-        Session session = sessionFactory.openSession();
+    protected String entityKey(Object id) {
+        return this.tableName + ":" + id;
+    }
+
+    /**
+     * Runs the work in one transaction of the session. Commits when the work completes, rolls back when beginning,
+     * the work or the commit fails, and always closes the session, so a query timeout never leaks the session or
+     * its pooled connection.
+     */
+    static <S extends SharedSessionContract, R> R inTransaction(S session, Consumer<S> begin, Function<S, R> work) {
+        try {
+            begin.accept(session);
+            R result = work.apply(session);
+            session.getTransaction().commit();
+            return result;
+        } catch (RuntimeException ex) {
+            rollback(session, ex);
+            throw ex;
+        } finally {
+            session.close();
+        }
+    }
+
+    private static void rollback(SharedSessionContract session, RuntimeException failure) {
+        try {
+            Transaction transaction = session.getTransaction();
+            if (transaction.getStatus().canRollback()) {
+                transaction.rollback();
+            }
+        } catch (RuntimeException ex) {
+            failure.addSuppressed(ex);
+        }
+    }
+
+    // Unit of work on the primary in a transaction bounded by the deadline of the current request,
+    // Hibernate applies the remaining transaction time as query timeout of every JDBC statement
+    protected <R> R inWriteTransaction(Function<Session, R> work) {
+        long remaining = remainingMillis();
+        return inTransaction(sessionFactory.openSession(), session -> beginTransaction(session, remaining, false), work);
+    }
+
+    // Read-only unit of work: entities are loaded without dirty-check snapshots and the session never flushes.
+    // With persistence.read-only.transaction-hint MySQL also runs the transaction read-only, SET TRANSACTION
+    // only applies to the next transaction so pooled connections are handed back unchanged.
+    protected <R> R inReadTransaction(SessionFactory factory, Function<Session, R> work) {
+        Settings settings = PropertiesProvider.getInstance().current();
+        long remaining = remainingMillis();
+        if (!settings.readOnlySessionsEnabled()) {
+            return inTransaction(factory.openSession(), session -> beginTransaction(session, remaining, false), work);
+        }
+        return inTransaction(factory.openSession(), session -> {
+            session.setDefaultReadOnly(true);
+            session.setHibernateFlushMode(FlushMode.MANUAL);
+            beginTransaction(session, remaining, settings.readOnlyTransactionHint());
+        }, work);
+    }
+
+    protected boolean readOnlySessions() {
+        return PropertiesProvider.getInstance().current().readOnlySessionsEnabled();
+    }
+
+    // Unit of work without persistence context for list scans of entities without collections,
+    // callers only use it when readOnlySessions() holds
+    protected <R> R inStatelessReadTransaction(SessionFactory factory, Function<StatelessSession, R> work) {
+        Settings settings = PropertiesProvider.getInstance().current();
+        long remaining = remainingMillis();
+        return inTransaction(factory.openStatelessSession(), session -> beginTransaction(session, remaining, settings.readOnlyTransactionHint()), work);
+    }
+
+    private long remainingMillis() {
+        long remaining = Deadlines.remainingMillis();
+        if (remaining <= 0) {
+            throw new DeadlineExceededException("Request deadline exceeded before querying " + this.tableName);
+        }
+        return remaining;
+    }
+
+    private static void beginTransaction(SharedSessionContract session, long remaining, boolean readOnly) {
+        if (remaining != Deadlines.NONE) {
+            session.getTransaction().setTimeout((int) Math.min(Integer.MAX_VALUE, (remaining + 999) / 1000));
+        }
         session.beginTransaction();
-        Long count = session.createQuery(String.format("SELECT COUNT(*) FROM %s r", this.tableName), Long.class).getSingleResult();
-        session.getTransaction().commit();
-        session.close();
-        return count;
+        if (readOnly) {
+            session.doWork(connection -> {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("SET TRANSACTION READ ONLY");
+                }
+            });
+        }
+    }
+
+    protected void recordWrite(T obj) {
+        readRouter.recordWrite(this.tableName, entityKey(sessionFactory.getPersistenceUnitUtil().getIdentifier(obj)));
+    }
+
+    // Always answered by the primary, seeding decisions must not depend on replica lag
+    public Long count() {
+        return inReadTransaction(sessionFactory, session ->
+                session.createQuery(String.format("SELECT COUNT(*) FROM %s r", this.tableName), Long.class).getSingleResult());
     }
 
     public T create(T obj) {
-        Session session = sessionFactory.openSession();
-        session.beginTransaction();
-        session.save(obj);
-        session.getTransaction().commit();
-        session.close();
+        inWriteTransaction(session -> session.save(obj));
+        recordWrite(obj);
         return obj;
     }
 
     public List<T> readAll() {
-        Session session = sessionFactory.openSession();
-        session.beginTransaction();
-        List<T> objs = session.createQuery(String.format("SELECT r FROM %s r", this.tableName), this.typeParameterClass).getResultList();
-        session.getTransaction().commit();
-        session.close();
-        return objs;
+        return readRouter.read(this.tableName, readSessionFactory -> inReadTransaction(readSessionFactory, session ->
+                session.createQuery(String.format("SELECT r FROM %s r", this.tableName), this.typeParameterClass).getResultList()));
     }
 
     public T read(I id) {
+        return readRouter.read(entityKey(id), readSessionFactory -> read(readSessionFactory, id));
+    }
+
+    // For read-modify-write: a replica may still hold a stale row, updating it would revert other writes
+    public T readFromPrimary(I id) {
+        return read(sessionFactory, id);
+    }
+
+    private T read(SessionFactory factory, I id) {
         if (this.idFieldName == null) {
             log.warn("Field marked as Id not found");
             return null;
         }
-        Session session = sessionFactory.openSession();
-        session.beginTransaction();
-        TypedQuery<T> query = session.createQuery(String.format("SELECT r FROM %s r WHERE %s = :id", this.tableName, this.idFieldName), this.typeParameterClass);
-        query.setParameter("id", id);
-        T obj = null;
-        try {
-            obj = query.getSingleResult();
-        } catch (NoResultException ex) {
-            log.debug("No antity found with id " + id);
-        }
-        session.getTransaction().commit();
-        session.close();
-        return obj;
+        return inReadTransaction(factory, session -> {
+            TypedQuery<T> query = session.createQuery(String.format("SELECT r FROM %s r WHERE %s = :id", this.tableName, this.idFieldName), this.typeParameterClass);
+            query.setParameter("id", id);
+            T obj = null;
+            try {
+                obj = query.getSingleResult();
+            } catch (NoResultException ex) {
+                log.debug("No antity found with id " + id);
+            }
+            return obj;
+        });
+    }
+
+    // Multi-load by primary key in one query, missing ids are absent from the result.
+    // Answered by the primary when any of the ids was written within the replica lag window.
+    @SuppressWarnings("unchecked")
+    public Map<I, T> readByIds(List<I> ids) {
+        Function<SessionFactory, Map<I, T>> load = readSessionFactory -> inReadTransaction(readSessionFactory, session -> {
+            List<T> objs = session.byMultipleIds(this.typeParameterClass).multiLoad(ids);
+            Map<I, T> objsById = new HashMap<>();
+            for (T obj : objs) {
+                if (obj != null) {
+                    objsById.put((I) readSessionFactory.getPersistenceUnitUtil().getIdentifier(obj), obj);
+                }
+            }
+            return objsById;
+        });
+        boolean primary = ids.stream().anyMatch(id -> readRouter.requiresPrimary(entityKey(id)));
+        return primary ? load.apply(readRouter.primary()) : readRouter.read(null, load);
     }
 
     public T update(T obj) {
-        Session session = sessionFactory.openSession();
-        session.beginTransaction();
-        session.update(obj);
-        session.getTransaction().commit();
-        session.close();
+        inWriteTransaction(session -> {
+            session.update(obj);
+            return obj;
+        });
+        recordWrite(obj);
         return obj;
     }
 
     public T delete(T obj) {
-        Session session = sessionFactory.openSession();
-        session.beginTransaction();
-        session.delete(obj);
-        session.getTransaction().commit();
-        session.close();
+        inWriteTransaction(session -> {
+            session.delete(obj);
+            return obj;
+        });
+        recordWrite(obj);
         return obj;
     }
 }
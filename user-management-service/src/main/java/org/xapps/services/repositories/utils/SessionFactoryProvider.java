@@ -4,12 +4,21 @@ import org.hibernate.SessionFactory;
 import org.hibernate.boot.MetadataSources;
 import org.hibernate.boot.registry.StandardServiceRegistry;
 import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.hibernate.cfg.AvailableSettings;
+import org.xapps.services.services.utils.PropertiesProvider;
+import org.xapps.services.services.utils.Settings;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 public class SessionFactoryProvider {
     private final StandardServiceRegistry registry;
+    private SessionFactory sessionFactory;
+    private ReplicaRouter<SessionFactory> readRouter;
     private static SessionFactoryProvider instance;
 
-    public static SessionFactoryProvider getInstance() {
+    public static synchronized SessionFactoryProvider getInstance() {
         if (instance == null) {
             instance = new SessionFactoryProvider();
         }
@@ -17,12 +26,67 @@ public class SessionFactoryProvider {
     }
 
     public SessionFactoryProvider() {
-        registry = new StandardServiceRegistryBuilder()
-                .configure()
-                .build();
+        registry = configuredRegistryBuilder().build();
+    }
+
+    /**
+     * Builds the primary and replica session factories on a dedicated thread, so Hibernate
+     * metadata and connection pools are created while the actor system starts.
+     */
+    public static CompletionStage<SessionFactoryProvider> bootstrap() {
+        return CompletableFuture.supplyAsync(() -> {
+            SessionFactoryProvider provider = getInstance();
+            provider.getReadRouter();
+            return provider;
+        }, task -> new Thread(task, "persistence-bootstrap").start());
+    }
+
+    // Connection settings given as system properties override hibernate.cfg.xml
+    private static StandardServiceRegistryBuilder configuredRegistryBuilder() {
+        StandardServiceRegistryBuilder builder = new StandardServiceRegistryBuilder().configure();
+        for (String setting : List.of(AvailableSettings.URL, AvailableSettings.USER, AvailableSettings.PASS)) {
+            String value = System.getProperty(setting);
+            if (value != null) {
+                builder.applySetting(setting, value);
+            }
+        }
+        return builder;
     }
 
     public SessionFactory buildSessionFactory() {
         return new MetadataSources(registry).buildMetadata().buildSessionFactory();
     }
+
+    public synchronized SessionFactory getSessionFactory() {
+        if (sessionFactory == null) {
+            sessionFactory = buildSessionFactory();
+            PooledIdGenerator.alignWithExistingRows(sessionFactory);
+        }
+        return sessionFactory;
+    }
+
+    public synchronized ReplicaRouter<SessionFactory> getReadRouter() {
+        if (readRouter == null) {
+            Settings properties = PropertiesProvider.getInstance().current();
+            List<SessionFactory> replicas = properties.persistenceReplicaUrls().stream()
+                    .map(this::buildReplicaSessionFactory)
+                    .toList();
+            readRouter = new ReplicaRouter<>(
+                    getSessionFactory(),
+                    replicas,
+                    ReplicaRouter.Selection.fromName(properties.persistenceReplicaSelection()),
+                    properties.persistenceReadYourWrites(),
+                    properties.persistenceReplicaMaxLag()
+            );
+        }
+        return readRouter;
+    }
+
+    private SessionFactory buildReplicaSessionFactory(String url) {
+        StandardServiceRegistry replicaRegistry = configuredRegistryBuilder()
+                .applySetting(AvailableSettings.URL, url)
+                .applySetting(AvailableSettings.HBM2DDL_AUTO, "none")
+                .build();
+        return new MetadataSources(replicaRegistry).buildMetadata().buildSessionFactory();
+    }
 }
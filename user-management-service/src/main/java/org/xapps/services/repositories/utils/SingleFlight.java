@@ -0,0 +1,60 @@
+package org.xapps.services.repositories.utils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent calls for the same key into a single execution.
+ * Callers arriving while a call for their key is in flight share its result, once it completes
+ * the next caller starts a new execution. Results are shared, callers must not mutate them.
+ */
+public class SingleFlight<K, V> {
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder executions = new LongAdder();
+
+    public CompletionStage<V> execute(K key, Supplier<CompletionStage<V>> call) {
+        requests.increment();
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            return existing;
+        }
+        executions.increment();
+        try {
+            call.get().whenComplete((value, throwable) -> {
+                inFlight.remove(key, flight);
+                if (throwable != null) {
+                    flight.completeExceptionally(throwable);
+                } else {
+                    flight.complete(value);
+                }
+            });
+        } catch (RuntimeException ex) {
+            inFlight.remove(key, flight);
+            flight.completeExceptionally(ex);
+        }
+        return flight;
+    }
+
+    // Detaches the in-flight call of the key, callers arriving after a write must not join a read started before it
+    public void forget(K key) {
+        inFlight.remove(key);
+    }
+
+    public long requests() {
+        return requests.sum();
+    }
+
+    public long executions() {
+        return executions.sum();
+    }
+
+    public double coalescingRatio() {
+        long total = requests();
+        return total == 0 ? 0.0 : 1.0 - ((double) executions() / total);
+    }
+}
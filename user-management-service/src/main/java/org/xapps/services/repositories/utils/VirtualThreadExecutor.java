@@ -0,0 +1,97 @@
+package org.xapps.services.repositories.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs every task on a virtual thread, optionally bounded by a number of permits.
+ * Virtual threads need a Java 21 runtime, the service is built for Java 17 so the factory is looked up
+ * reflectively and creating an executor on an older runtime fails instead of degrading to platform threads.
+ */
+@Slf4j
+public class VirtualThreadExecutor implements Executor {
+    private final Executor threads;
+    private final Permits permits;
+    private int maxConcurrency;
+
+    // Semaphore whose permits can be taken away, tasks already running keep theirs until they finish
+    private static class Permits extends Semaphore {
+        private Permits(int permits) {
+            super(permits);
+        }
+
+        private void reduce(int reduction) {
+            reducePermits(reduction);
+        }
+    }
+
+    private VirtualThreadExecutor(Permits permits, int maxConcurrency) {
+        this.threads = newThreadPerTaskExecutor();
+        this.permits = permits;
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    public static VirtualThreadExecutor bounded(int maxConcurrency) {
+        return new VirtualThreadExecutor(new Permits(maxConcurrency), maxConcurrency);
+    }
+
+    public static VirtualThreadExecutor unbounded() {
+        return new VirtualThreadExecutor(null, Integer.MAX_VALUE);
+    }
+
+    // Checked when the settings are loaded, so a virtual backend on an older runtime fails before startup
+    public static boolean isSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException ex) {
+            return false;
+        }
+    }
+
+    private static Executor newThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (Executor) factory.invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException("Virtual threads need a Java 21 runtime, this one is " + Runtime.version()
+                    + ", use persistence.backend = async or blocking", ex);
+        }
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (permits == null) {
+            threads.execute(command);
+        } else {
+            threads.execute(() -> {
+                permits.acquireUninterruptibly();
+                try {
+                    command.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        }
+    }
+
+    /**
+     * Changes the concurrency bound of a bounded executor, shrinking takes effect as running tasks finish.
+     */
+    public synchronized void resize(int maxConcurrency) {
+        if (permits == null || maxConcurrency == this.maxConcurrency) {
+            return;
+        }
+        if (maxConcurrency > this.maxConcurrency) {
+            permits.release(maxConcurrency - this.maxConcurrency);
+        } else {
+            permits.reduce(this.maxConcurrency - maxConcurrency);
+        }
+        log.info("Persistence concurrency resized from {} to {}", this.maxConcurrency, maxConcurrency);
+        this.maxConcurrency = maxConcurrency;
+    }
+}
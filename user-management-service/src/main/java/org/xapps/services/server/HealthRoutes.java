@@ -0,0 +1,36 @@
+package org.xapps.services.server;
+
+import akka.http.javadsl.model.StatusCodes;
+import akka.http.javadsl.server.Route;
+
+import static akka.http.javadsl.server.Directives.*;
+
+public class HealthRoutes {
+    private volatile Route readyRoute;
+
+    public boolean isReady() {
+        return readyRoute != null;
+    }
+
+    public void ready(Route route) {
+        this.readyRoute = route;
+    }
+
+    // Gates the application routes, they answer 503 until startup has finished
+    public Route whenReady() {
+        return extractRequestContext(requestContext -> {
+            Route route = readyRoute;
+            return route != null ? route : complete(StatusCodes.SERVICE_UNAVAILABLE);
+        });
+    }
+
+    public Route create() {
+        return pathPrefix("health", () ->
+                concat(
+                        path("live", () -> get(() -> complete(StatusCodes.OK))),
+                        path("ready", () -> get(() -> extractRequestContext(requestContext ->
+                                isReady() ? complete(StatusCodes.OK) : complete(StatusCodes.SERVICE_UNAVAILABLE))))
+                )
+        );
+    }
+}
@@ -0,0 +1,19 @@
+package org.xapps.services.server;
+
+import akka.http.javadsl.marshallers.jackson.Jackson;
+import akka.http.javadsl.server.Route;
+import org.xapps.services.services.utils.Metrics;
+
+import static akka.http.javadsl.server.Directives.*;
+
+public class MetricsRoutes {
+    private final Metrics metrics;
+
+    public MetricsRoutes() {
+        this.metrics = Metrics.getInstance();
+    }
+
+    public Route create() {
+        return path("metrics", () -> get(() -> completeOK(metrics.snapshot(), Jackson.marshaller())));
+    }
+}
@@ -0,0 +1,29 @@
+package org.xapps.services.server;
+
+import akka.http.javadsl.marshallers.jackson.Jackson;
+import akka.http.javadsl.model.StatusCodes;
+import akka.http.javadsl.server.PathMatchers;
+import akka.http.javadsl.server.Route;
+import org.xapps.services.services.utils.Tracing;
+
+import java.util.List;
+
+import static akka.http.javadsl.server.Directives.*;
+
+public class TracingRoutes {
+    private final Tracing tracing;
+
+    public TracingRoutes() {
+        this.tracing = Tracing.getInstance();
+    }
+
+    public Route create() {
+        return pathPrefix("debug", () -> pathPrefix("traces", () -> concat(
+                pathEnd(() -> get(() -> completeOK(tracing.traces(), Jackson.marshaller()))),
+                path(PathMatchers.segment(), traceId -> get(() -> {
+                    List<Tracing.SpanData> spans = tracing.traces().get(traceId);
+                    return spans != null ? completeOK(spans, Jackson.marshaller()) : complete(StatusCodes.NOT_FOUND);
+                }))
+        )));
+    }
+}
@@ -2,13 +2,14 @@ package org.xapps.services.server;
 
 import akka.NotUsed;
 import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
 import akka.actor.typed.Scheduler;
 import akka.actor.typed.javadsl.AskPattern;
-import akka.http.javadsl.marshallers.jackson.Jackson;
-import akka.http.javadsl.model.ContentTypes;
-import akka.http.javadsl.model.HttpEntities;
+import akka.http.javadsl.marshalling.sse.EventStreamMarshalling;
 import akka.http.javadsl.model.HttpResponse;
 import akka.http.javadsl.model.StatusCodes;
+import akka.http.javadsl.model.headers.RawHeader;
+import akka.http.javadsl.model.sse.ServerSentEvent;
 import akka.http.javadsl.server.PathMatchers;
 import akka.http.javadsl.server.Route;
 import akka.stream.javadsl.Flow;
@@ -18,22 +19,40 @@ import akka.util.ByteString;
 import com.auth0.jwt.JWT;
 import com.auth0.jwt.JWTVerifier;
 import com.auth0.jwt.algorithms.Algorithm;
+import com.auth0.jwt.exceptions.JWTVerificationException;
 import com.auth0.jwt.interfaces.DecodedJWT;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
 import org.xapps.services.entities.User;
+import org.xapps.services.repositories.utils.DatabaseCircuitBreaker;
+import org.xapps.services.server.utils.AccessPolicy;
+import org.xapps.services.server.utils.ContentFormat;
+import org.xapps.services.server.utils.Principal;
+import org.xapps.services.server.utils.ResponseCompression;
+import org.xapps.services.server.utils.RoleMask;
+import org.xapps.services.server.utils.TokenBucketRateLimiter;
+import org.xapps.services.server.utils.TokenRevocations;
 import org.xapps.services.services.UserService;
+import org.xapps.services.services.events.UserChange;
 import org.xapps.services.services.requests.Login;
+import org.xapps.services.services.requests.UserFields;
+import org.xapps.services.services.requests.UserSearch;
 import org.xapps.services.services.responses.*;
+import org.xapps.services.services.utils.Deadlines;
 import org.xapps.services.services.utils.PropertiesProvider;
+import org.xapps.services.services.utils.Settings;
+import org.xapps.services.services.utils.TraceContext;
+import org.xapps.services.services.utils.Tracing;
 
+import java.net.InetAddress;
 import java.time.Duration;
-import java.util.Objects;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static akka.http.javadsl.server.Directives.*;
 
@@ -43,26 +62,95 @@ public class UserRoutes {
     private final Scheduler scheduler;
     private final ObjectMapper objectMapper;
     private final PropertiesProvider properties;
+    private volatile Tuning tuning;
+    private final TokenRevocations revocations;
+    private final DatabaseCircuitBreaker circuitBreaker;
+    private final Tracing tracing;
 
-    public UserRoutes(ActorRef<UserService.Command> userServiceActor, Scheduler scheduler) {
+    // Rate limiters and compression built from a settings snapshot, rebuilt when a reload changes their values
+    private record Tuning(
+            Settings settings,
+            TokenBucketRateLimiter loginIpRateLimiter,
+            TokenBucketRateLimiter loginEmailRateLimiter,
+            ResponseCompression compression
+    ) {
+        private static Tuning of(Settings settings) {
+            return new Tuning(settings, ipRateLimiter(settings), emailRateLimiter(settings), compression(settings));
+        }
+
+        private static TokenBucketRateLimiter ipRateLimiter(Settings settings) {
+            return new TokenBucketRateLimiter(
+                    settings.loginRateIpCapacity(),
+                    settings.loginRateIpRefillPerSecond(),
+                    settings.loginRateIdleEviction(),
+                    settings.loginRateMaxEntries()
+            );
+        }
+
+        private static TokenBucketRateLimiter emailRateLimiter(Settings settings) {
+            return new TokenBucketRateLimiter(
+                    settings.loginRateEmailCapacity(),
+                    settings.loginRateEmailRefillPerSecond(),
+                    settings.loginRateIdleEviction(),
+                    settings.loginRateMaxEntries()
+            );
+        }
+
+        private static ResponseCompression compression(Settings settings) {
+            return new ResponseCompression(settings.compressionEnabled(), settings.compressionMinimumSize());
+        }
+
+        // Limiters keep their buckets unless the login rates changed
+        private Tuning retune(Settings reloaded) {
+            boolean sameRates = reloaded.loginRate().equals(settings.loginRate());
+            boolean sameCompression = reloaded.compressionEnabled() == settings.compressionEnabled()
+                    && reloaded.compressionMinimumSize() == settings.compressionMinimumSize();
+            return new Tuning(
+                    reloaded,
+                    sameRates ? loginIpRateLimiter : ipRateLimiter(reloaded).copyBuckets(loginIpRateLimiter),
+                    sameRates ? loginEmailRateLimiter : emailRateLimiter(reloaded).copyBuckets(loginEmailRateLimiter),
+                    sameCompression ? compression : compression(reloaded)
+            );
+        }
+    }
+
+    public UserRoutes(ActorSystem<?> system, ActorRef<UserService.Command> userServiceActor) {
         this.userServiceActor = userServiceActor;
-        this.scheduler = scheduler;
+        this.scheduler = system.scheduler();
+        this.revocations = TokenRevocations.get(system);
+        this.circuitBreaker = DatabaseCircuitBreaker.get(system);
+        this.tracing = Tracing.getInstance();
         this.objectMapper = new ObjectMapper();
         this.properties = PropertiesProvider.getInstance();
+        this.tuning = Tuning.of(properties.current());
+    }
+
+    private Tuning tuning() {
+        Settings settings = properties.current();
+        Tuning current = tuning;
+        if (current.settings() != settings) {
+            current = current.retune(settings);
+            tuning = current;
+        }
+        return current;
     }
 
-    private Route authenticateWithJwt(Function<Optional<User>, Route> inner) {
+    private UserSearch parseSearch(Map<String, String> parameters) {
+        Settings settings = properties.current();
+        return UserSearch.fromParameters(parameters, settings.searchDefaultPageSize(), settings.searchMaxPageSize());
+    }
+
+    private Route authenticateWithJwt(Function<Optional<Principal>, Route> inner) {
         return optionalHeaderValueByName("Authorization", authorizationHeader -> {
             if (authorizationHeader.isPresent() && authorizationHeader.get().startsWith("Bearer")) {
                 String token = authorizationHeader.get().substring(7);
                 try {
-                    Algorithm algorithm = Algorithm.HMAC256(properties.securityTokenKey());
-                    JWTVerifier verifier = JWT.require(algorithm)
-                            .withIssuer("XApps")
-                            .build();
-                    DecodedJWT jwt = verifier.verify(token);
-                    User principal = objectMapper.readValue(jwt.getSubject(), User.class);
-                    return inner.apply(Optional.of(principal));
+                    DecodedJWT jwt = verifyToken(token);
+                    if (revocations.isRevoked(jwt.getId())) {
+                        return complete(StatusCodes.UNAUTHORIZED);
+                    }
+                    User user = objectMapper.readValue(jwt.getSubject(), User.class);
+                    return inner.apply(Optional.of(Principal.of(user)));
                 } catch (JsonProcessingException ex) {
                     log.error("Exception captured", ex);
                     return complete(StatusCodes.UNAUTHORIZED);
@@ -73,132 +161,327 @@ public class UserRoutes {
         });
     }
 
-    private Route roles() {
-        Flow<Integer, RolesResponse, NotUsed> usersFlow = ActorFlow.ask(userServiceActor, Duration.ofSeconds(5), (discardable, me) -> {
-            return new UserService.RolesCommand(me);
+    private DecodedJWT verifyToken(String token) {
+        Algorithm algorithm = Algorithm.HMAC256(properties.current().securityTokenKey());
+        JWTVerifier verifier = JWT.require(algorithm)
+                .withIssuer("XApps")
+                .build();
+        return verifier.verify(token);
+    }
+
+    // Rejects the request unless the policy allows the principal to act on the target user while granting it the given roles
+    private Route authorizeBy(AccessPolicy policy, Optional<Principal> principal, Long target, int granted, Supplier<Route> inner) {
+        return authorize(() -> policy.allows(principal.orElse(null), target, granted), inner);
+    }
+
+    private Route authorizeBy(AccessPolicy policy, Optional<Principal> principal, Long target, Supplier<Route> inner) {
+        return authorizeBy(policy, principal, target, RoleMask.NONE, inner);
+    }
+
+    private Route authorizeBy(AccessPolicy policy, Optional<Principal> principal, Supplier<Route> inner) {
+        return authorizeBy(policy, principal, null, RoleMask.NONE, inner);
+    }
+
+    private Route tooManyRequests(TokenBucketRateLimiter rateLimiter) {
+        return complete(HttpResponse.create()
+                .withStatus(StatusCodes.TOO_MANY_REQUESTS)
+                .addHeader(RawHeader.create("Retry-After", String.valueOf(rateLimiter.retryAfterSeconds()))));
+    }
+
+    private Route rateLimitByClientIp(Supplier<Route> inner) {
+        return extractClientIP(clientIp -> {
+            TokenBucketRateLimiter rateLimiter = tuning().loginIpRateLimiter();
+            String key = clientIp.getAddress().map(InetAddress::getHostAddress).orElse("unknown");
+            return rateLimiter.tryAcquire(key) ? inner.get() : tooManyRequests(rateLimiter);
+        });
+    }
+
+    private Route rateLimitByEmail(String email, Supplier<Route> inner) {
+        TokenBucketRateLimiter rateLimiter = tuning().loginEmailRateLimiter();
+        String key = (email != null) ? email.trim().toLowerCase() : "";
+        return rateLimiter.tryAcquire(key) ? inner.get() : tooManyRequests(rateLimiter);
+    }
+
+    // Answers 503 at once while the database circuit breaker is open, instead of queueing commands that can only fail
+    private Route whenDatabaseAvailable(Supplier<Route> inner) {
+        return extractRequestContext(context -> {
+            if (circuitBreaker.isOpen()) {
+                circuitBreaker.rejected();
+                return complete(StatusCodes.SERVICE_UNAVAILABLE);
+            }
+            return inner.get();
+        });
+    }
+
+    private Route negotiateFormat(Function<ContentFormat, Route> inner) {
+        return optionalHeaderValueByName("Accept", accept -> inner.apply(ContentFormat.negotiate(accept)));
+    }
+
+    // Root span of the request, continuing an incoming traceparent, ended once the response body is fully sent
+    private Route traced(String name, Function<Tracing.Span, Route> inner) {
+        return optionalHeaderValueByName("traceparent", traceparent -> {
+            Tracing.Span span = tracing.startIncoming(name, TraceContext.fromTraceparent(traceparent.orElse(null)));
+            if (!span.sampled()) {
+                return inner.apply(span);
+            }
+            return mapResponse(response -> endWithBody(span, response), () -> inner.apply(span));
+        });
+    }
+
+    private HttpResponse endWithBody(Tracing.Span span, HttpResponse response) {
+        HttpResponse traced = response.addHeader(RawHeader.create("traceparent", span.context().toTraceparent()));
+        if (traced.entity().isKnownEmpty() || traced.entity().isStrict()) {
+            span.end();
+            return traced;
+        }
+        return traced.transformEntityDataBytes(Flow.of(ByteString.class).watchTermination((notUsed, done) -> {
+            done.whenComplete((finished, throwable) -> span.end(throwable));
+            return notUsed;
+        }));
+    }
+
+    private Route completeEncoded(ContentFormat format, Source<ByteString, NotUsed> body) {
+        return optionalHeaderValueByName("Accept-Encoding", acceptEncoding ->
+                extractMaterializer(materializer -> {
+                    ResponseCompression compression = tuning().compression();
+                    CompletionStage<HttpResponse> response = compression.respond(format.contentType(), body, compression.negotiate(acceptEncoding), materializer);
+                    return onSuccess(response, encodedResponse -> complete(encodedResponse));
+                }));
+    }
+
+    private Route roles(ContentFormat format, Tracing.Span span) {
+        Duration timeout = properties.current().askTimeout("roles");
+        Flow<Integer, RolesResponse, NotUsed> usersFlow = ActorFlow.ask(userServiceActor, timeout, (discardable, me) -> {
+            return new UserService.RolesCommand(me, span.context(), Deadlines.after(timeout.toMillis()));
         });
         Flow<RolesResponse, ByteString, NotUsed> marshallerFlow = Flow.of(RolesResponse.class)
-                .map(r -> ByteString.fromString(objectMapper.writeValueAsString(r)));
+                .map(format::encode);
         Source<ByteString, NotUsed> usersSource = Source.single(1)
                 .via(usersFlow)
                 .via(marshallerFlow);
-        return complete(HttpEntities.create(ContentTypes.APPLICATION_JSON, usersSource));
+        return completeEncoded(format, usersSource);
+    }
+
+    private Route changes(Optional<String> lastEventIdHeader) {
+        Optional<Long> lastEventId = lastEventIdHeader.flatMap(value -> {
+            try {
+                return Optional.of(Long.parseLong(value.trim()));
+            } catch (NumberFormatException ex) {
+                return Optional.empty();
+            }
+        });
+        CompletionStage<ChangesResponse> subscription = AskPattern.ask(userServiceActor, (ActorRef<ChangesResponse> me) -> {
+            return new UserService.ChangesCommand(lastEventId, me);
+        }, properties.current().askTimeout("changes"), scheduler);
+        return onSuccess(subscription, response -> {
+            Source<ServerSentEvent, NotUsed> events = response.changes()
+                    // A gap carries no event id, so a client reconnecting with Last-Event-ID replays what is still retained
+                    .map(change -> change.type() == UserChange.Type.GAP
+                            ? ServerSentEvent.create(objectMapper.writeValueAsString(change), "gap")
+                            : ServerSentEvent.create(objectMapper.writeValueAsString(change), change.type().name().toLowerCase(), String.valueOf(change.id())))
+                    .keepAlive(Duration.ofSeconds(properties.current().changesKeepAlive()), () -> ServerSentEvent.heartbeat());
+            return completeOK(events, EventStreamMarshalling.toEventStream());
+        });
     }
 
-    private Route loginUser(Login login) {
-        Flow<Login, LoginResponse, NotUsed> loginFlow = ActorFlow.ask(userServiceActor, Duration.ofSeconds(5), (loginObj, me) -> {
-            return new UserService.LoginCommand(loginObj, me);
+    private Route loginUser(ContentFormat format, Tracing.Span span, Login login) {
+        Duration timeout = properties.current().askTimeout("login");
+        Flow<Login, LoginResponse, NotUsed> loginFlow = ActorFlow.ask(userServiceActor, timeout, (loginObj, me) -> {
+            return new UserService.LoginCommand(loginObj, me, span.context(), Deadlines.after(timeout.toMillis()));
         });
         Flow<LoginResponse, ByteString, NotUsed> marshallerFlow = Flow.of(LoginResponse.class)
-                .map(response -> ByteString.fromString(objectMapper.writeValueAsString(response)));
+                .map(format::encode);
         Source<ByteString, NotUsed> loginSource = Source.single(login)
                 .via(loginFlow)
                 .via(marshallerFlow);
-        return complete(HttpEntities.create(ContentTypes.APPLICATION_JSON, loginSource));
+        return completeEncoded(format, loginSource);
     }
 
-    private Route createUser(User user) {
-        Flow<User, UserResponse, NotUsed> createFlow = ActorFlow.ask(userServiceActor, Duration.ofSeconds(5), (userObj, me) -> {
-            return new UserService.CreateCommand(userObj, me);
+    private Route logoutUser(ContentFormat format, String authorizationHeader) {
+        if (!authorizationHeader.startsWith("Bearer")) {
+            return complete(StatusCodes.UNAUTHORIZED);
+        }
+        try {
+            DecodedJWT jwt = verifyToken(authorizationHeader.substring(7));
+            if (jwt.getId() == null) {
+                // Tokens issued before token ids were introduced can not be revoked
+                return complete(StatusCodes.BAD_REQUEST);
+            }
+            revocations.revoke(jwt.getId(), jwt.getExpiresAt().getTime());
+            return completeEncoded(format, Source.single(format.encode(new Response(ResponseType.OK))));
+        } catch (JWTVerificationException ex) {
+            return complete(StatusCodes.UNAUTHORIZED);
+        } catch (JsonProcessingException ex) {
+            log.error("Exception captured", ex);
+            return complete(StatusCodes.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    private Route createUser(ContentFormat format, Tracing.Span span, Optional<Principal> principal, User user) {
+        Duration timeout = properties.current().askTimeout("create");
+        Flow<User, UserResponse, NotUsed> createFlow = ActorFlow.ask(userServiceActor, timeout, (userObj, me) -> {
+            return new UserService.CreateCommand(userObj, principal.map(Principal::id).orElse(null), me, span.context(), Deadlines.after(timeout.toMillis()));
         });
         Flow<UserResponse, ByteString, NotUsed> marshallerFlow = Flow.of(UserResponse.class)
-                .map(r -> ByteString.fromString(objectMapper.writeValueAsString(r)));
+                .map(format::encode);
         Source<ByteString, NotUsed> createSource = Source.single(user)
                 .via(createFlow)
                 .via(marshallerFlow);
-        return complete(HttpEntities.create(ContentTypes.APPLICATION_JSON, createSource));
+        return completeEncoded(format, createSource);
     }
 
-    private Route getAllUsers() {
-        Flow<Integer, UsersResponse, NotUsed> usersFlow = ActorFlow.ask(userServiceActor, Duration.ofSeconds(5), (discardable, me) -> {
-            return new UserService.ReadAllCommand(me);
+    private Route getAllUsers(ContentFormat format, Tracing.Span span) {
+        Duration timeout = properties.current().askTimeout("read-all");
+        Flow<Integer, UsersResponse, NotUsed> usersFlow = ActorFlow.ask(userServiceActor, timeout, (discardable, me) -> {
+            return new UserService.ReadAllCommand(me, span.context(), Deadlines.after(timeout.toMillis()));
         });
         Flow<UsersResponse, ByteString, NotUsed> marshallerFlow = Flow.of(UsersResponse.class)
-                .map(r -> ByteString.fromString(objectMapper.writeValueAsString(r)));
+                .map(format::encode);
         Source<ByteString, NotUsed> usersSource = Source.single(1)
                 .via(usersFlow)
                 .via(marshallerFlow);
-        return complete(HttpEntities.create(ContentTypes.APPLICATION_JSON, usersSource));
+        return completeEncoded(format, usersSource);
+    }
+
+    private Route searchUsers(ContentFormat format, Tracing.Span span, Map<String, String> parameters) {
+        UserSearch search;
+        try {
+            search = parseSearch(parameters);
+        } catch (IllegalArgumentException ex) {
+            return complete(StatusCodes.BAD_REQUEST);
+        }
+        Duration timeout = properties.current().askTimeout("search");
+        Flow<UserSearch, UsersResponse, NotUsed> searchFlow = ActorFlow.ask(userServiceActor, timeout, (searchObj, me) -> {
+            return new UserService.SearchCommand(searchObj, me, span.context(), Deadlines.after(timeout.toMillis()));
+        });
+        Flow<UsersResponse, ByteString, NotUsed> marshallerFlow = Flow.of(UsersResponse.class)
+                .map(format::encode);
+        Source<ByteString, NotUsed> searchSource = Source.single(search)
+                .via(searchFlow)
+                .via(marshallerFlow);
+        return completeEncoded(format, searchSource);
+    }
+
+    // Always paged like a search, without search parameters it returns the first page of all users
+    private Route getAllUserFields(ContentFormat format, Tracing.Span span, Map<String, String> parameters) {
+        UserSearch search;
+        UserFields fields;
+        try {
+            fields = UserFields.parse(parameters.get("fields"));
+            search = parseSearch(parameters);
+        } catch (IllegalArgumentException ex) {
+            return complete(StatusCodes.BAD_REQUEST);
+        }
+        UserSearch searchObj = search;
+        Duration timeout = properties.current().askTimeout("search");
+        Flow<UserFields, UsersFieldsResponse, NotUsed> usersFlow = ActorFlow.ask(userServiceActor, timeout, (fieldsObj, me) -> {
+            return new UserService.ReadAllFieldsCommand(searchObj, fieldsObj, me, span.context(), Deadlines.after(timeout.toMillis()));
+        });
+        Flow<UsersFieldsResponse, ByteString, NotUsed> marshallerFlow = Flow.of(UsersFieldsResponse.class)
+                .map(format::encode);
+        Source<ByteString, NotUsed> usersSource = Source.single(fields)
+                .via(usersFlow)
+                .via(marshallerFlow);
+        return completeEncoded(format, usersSource);
+    }
+
+    private Route getUserFields(ContentFormat format, Tracing.Span span, Long id, String requestedFields) {
+        UserFields fields;
+        try {
+            fields = UserFields.parse(requestedFields);
+        } catch (IllegalArgumentException ex) {
+            return complete(StatusCodes.BAD_REQUEST);
+        }
+        Duration timeout = properties.current().askTimeout("read");
+        Flow<Long, UserFieldsResponse, NotUsed> userFlow = ActorFlow.ask(userServiceActor, timeout, (userId, me) -> {
+            return new UserService.ReadFieldsCommand(userId, fields, me, span.context(), Deadlines.after(timeout.toMillis()));
+        });
+        Flow<UserFieldsResponse, ByteString, NotUsed> marshallerFlow = Flow.of(UserFieldsResponse.class)
+                .map(format::encode);
+        Source<ByteString, NotUsed> userSource = Source.single(id)
+                .via(userFlow)
+                .via(marshallerFlow);
+        return completeEncoded(format, userSource);
     }
 
-    private Route getUser(Long id) {
-        Flow<Long, UserResponse, NotUsed> userFlow = ActorFlow.ask(userServiceActor, Duration.ofSeconds(5), (userId, me) -> {
-            return new UserService.ReadCommand(userId, me);
+    private Route getUser(ContentFormat format, Tracing.Span span, Long id) {
+        Duration timeout = properties.current().askTimeout("read");
+        Flow<Long, UserResponse, NotUsed> userFlow = ActorFlow.ask(userServiceActor, timeout, (userId, me) -> {
+            return new UserService.ReadCommand(userId, me, span.context(), Deadlines.after(timeout.toMillis()));
         });
         Flow<UserResponse, ByteString, NotUsed> marshallerFlow = Flow.of(UserResponse.class)
-                .map(r -> ByteString.fromString(objectMapper.writeValueAsString(r)));
+                .map(format::encode);
         Source<ByteString, NotUsed> userSource = Source.single(id)
                 .via(userFlow)
                 .via(marshallerFlow);
-        return complete(HttpEntities.create(ContentTypes.APPLICATION_JSON, userSource));
+        return completeEncoded(format, userSource);
     }
 
-    private Route updateUser(Long id, User user) {
-        Flow<User, UserResponse, NotUsed> updateFlow = ActorFlow.ask(userServiceActor, Duration.ofSeconds(5), (userObj, me) -> {
-            return new UserService.UpdateCommand(userObj.getId(), userObj, me);
+    private Route updateUser(ContentFormat format, Tracing.Span span, Optional<Principal> principal, Long id, User user) {
+        Duration timeout = properties.current().askTimeout("update");
+        Flow<User, UserResponse, NotUsed> updateFlow = ActorFlow.ask(userServiceActor, timeout, (userObj, me) -> {
+            return new UserService.UpdateCommand(userObj.getId(), userObj, principal.map(Principal::id).orElse(null), me, span.context(), Deadlines.after(timeout.toMillis()));
         });
         Flow<UserResponse, ByteString, NotUsed> marshallerFlow = Flow.of(UserResponse.class)
-                .map(r -> ByteString.fromString(objectMapper.writeValueAsString(r)));
+                .map(format::encode);
         user.setId(id); // Workaround to not create an object containing both data
         Source<ByteString, NotUsed> updateSource = Source.single(user)
                 .via(updateFlow)
                 .via(marshallerFlow);
-        return complete(HttpEntities.create(ContentTypes.APPLICATION_JSON, updateSource));
+        return completeEncoded(format, updateSource);
     }
 
-    private Route deleteUser(Long id) {
-        Flow<Long, Response, NotUsed> deleteFlow = ActorFlow.ask(userServiceActor, Duration.ofSeconds(5), (userId, me) ->
-                new UserService.DeleteCommand(userId, me)
+    private Route deleteUser(ContentFormat format, Tracing.Span span, Optional<Principal> principal, Long id) {
+        Duration timeout = properties.current().askTimeout("delete");
+        Flow<Long, Response, NotUsed> deleteFlow = ActorFlow.ask(userServiceActor, timeout, (userId, me) ->
+                new UserService.DeleteCommand(userId, principal.map(Principal::id).orElse(null), me, span.context(), Deadlines.after(timeout.toMillis()))
         );
         Flow<Response, ByteString, NotUsed> marshallerFlow = Flow.of(Response.class)
-                .map(r -> ByteString.fromString(objectMapper.writeValueAsString(r)));
+                .map(format::encode);
         Source<ByteString, NotUsed> deleteSource = Source.single(id)
                 .via(deleteFlow)
                 .via(marshallerFlow);
-        return complete(HttpEntities.create(ContentTypes.APPLICATION_JSON, deleteSource));
+        return completeEncoded(format, deleteSource);
     }
 
     public Route create() {
-        return pathPrefix("users", () ->
+        return pathPrefix("users", () -> negotiateFormat(format ->
                 concat(
-                        path("roles", () -> get(() -> roles())),
-                        path("login", () -> post(() -> entity(Jackson.unmarshaller(Login.class), login -> loginUser(login)))),
-                        pathEnd(() -> concat(
+                        path("roles", () -> get(() -> traced("GET /users/roles", span -> roles(format, span)))),
+                        path("changes", () -> get(() -> authenticateWithJwt(principal ->
+                                authorizeBy(AccessPolicy.READ_CHANGES, principal, () ->
+                                        optionalHeaderValueByName("Last-Event-ID", lastEventId -> changes(lastEventId)))))),
+                        path("login", () -> post(() -> whenDatabaseAvailable(() -> rateLimitByClientIp(() ->
+                                entity(ContentFormat.unmarshaller(Login.class), login ->
+                                        rateLimitByEmail(login.email(), () -> traced("POST /users/login", span -> loginUser(format, span, login)))))))),
+                        path("logout", () -> post(() -> headerValueByName("Authorization", authorization -> logoutUser(format, authorization)))),
+                        pathEnd(() -> whenDatabaseAvailable(() -> concat(
                                 get(() -> authenticateWithJwt(principal ->
-                                        authorize(() -> {
-                                            return principal.isPresent() && principal.get().isAdministrator();
-                                        }, () -> {
-                                            return getAllUsers();
-                                        }))),
-                                post(() -> authenticateWithJwt(principal -> entity(Jackson.unmarshaller(User.class), user ->
-                                        authorize(() -> {
-                                            return !user.isAdministrator() || (principal.isPresent() && principal.get().isAdministrator());
-                                        }, () -> {
-                                            return createUser(user);
-                                        }))))
-                        )),
-                        path(PathMatchers.longSegment(), id -> concat(
+                                        authorizeBy(AccessPolicy.LIST_USERS, principal, () -> parameterMap(parameters -> {
+                                            if (parameters.containsKey("fields")) {
+                                                return traced("GET /users", span -> getAllUserFields(format, span, parameters));
+                                            }
+                                            return parameters.keySet().stream().anyMatch(UserSearch.PARAMETERS::contains)
+                                                    ? traced("GET /users", span -> searchUsers(format, span, parameters))
+                                                    : traced("GET /users", span -> getAllUsers(format, span));
+                                        })))),
+                                post(() -> authenticateWithJwt(principal -> entity(ContentFormat.unmarshaller(User.class), user ->
+                                        authorizeBy(AccessPolicy.CREATE_USER, principal, null, RoleMask.of(user.getRoles()), () ->
+                                                traced("POST /users", span -> createUser(format, span, principal, user))))))
+                        ))),
+                        path(PathMatchers.longSegment(), id -> whenDatabaseAvailable(() -> concat(
                                 get(() -> authenticateWithJwt(principal ->
-                                        authorize(() -> {
-                                            return principal.isPresent() && (principal.get().isAdministrator() || Objects.equals(principal.get().getId(), id));
-                                        }, () -> {
-                                            return getUser(id);
-                                        }))),
-                                put(() -> entity(Jackson.unmarshaller(User.class), user ->
+                                        authorizeBy(AccessPolicy.READ_USER, principal, id, () -> parameterOptional("fields", fields ->
+                                                traced("GET /users/{id}", span -> fields.isPresent() ? getUserFields(format, span, id, fields.get()) : getUser(format, span, id)))))),
+                                put(() -> entity(ContentFormat.unmarshaller(User.class), user ->
                                         authenticateWithJwt(principal ->
-                                                authorize(() -> {
-                                                    return principal.isPresent() && (principal.get().isAdministrator() || (Objects.equals(principal.get().getId(), id) && !user.isAdministrator()));
-                                                }, () -> {
-                                                    return updateUser(id, user);
-                                                })))),
+                                                authorizeBy(AccessPolicy.UPDATE_USER, principal, id, RoleMask.of(user.getRoles()), () ->
+                                                        traced("PUT /users/{id}", span -> updateUser(format, span, principal, id, user)))))),
                                 delete(() -> authenticateWithJwt(principal ->
-                                        authorize(() -> {
-                                            return principal.isPresent() && (principal.get().isAdministrator() || Objects.equals(principal.get().getId(), id));
-                                        }, () -> {
-                                            return deleteUser(id);
-                                        })))
-                        ))
-                )
+                                        authorizeBy(AccessPolicy.DELETE_USER, principal, id, () ->
+                                                traced("DELETE /users/{id}", span -> deleteUser(format, span, principal, id)))))
+                        )))
+                ))
         );
     }
 }
@@ -1,36 +1,185 @@
 package org.xapps.services.server;
 
-import akka.NotUsed;
 import akka.actor.typed.ActorRef;
 import akka.actor.typed.Behavior;
+import akka.actor.typed.javadsl.AbstractBehavior;
+import akka.actor.typed.javadsl.ActorContext;
 import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.Receive;
+import akka.cluster.typed.Cluster;
+import akka.cluster.typed.Join;
 import akka.http.javadsl.Http;
 import akka.http.javadsl.ServerBinding;
+import akka.http.javadsl.settings.ServerSettings;
 import lombok.extern.slf4j.Slf4j;
+import org.xapps.services.repositories.utils.SessionFactoryProvider;
 import org.xapps.services.services.UserService;
+import org.xapps.services.services.responses.Response;
+import org.xapps.services.services.responses.ResponseType;
+import org.xapps.services.services.utils.PropertiesProvider;
+import org.xapps.services.services.utils.Settings;
 
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
 import java.util.concurrent.CompletionStage;
 
+import static akka.http.javadsl.server.Directives.concat;
+
 @Slf4j
-public class UserServer {
-    public static Behavior<NotUsed> create() {
-        return Behaviors.setup(context -> {
-            ActorRef<UserService.Command> userServiceActor = context.spawn(UserService.create(), "UserServiceActor");
-            UserRoutes userRoutes = new UserRoutes(userServiceActor, context.getSystem().scheduler());
-            CompletionStage<ServerBinding> serverBinding = Http.get(context.getSystem())
-                    .newServerAt("0.0.0.0", 8080)
-                    .bind(userRoutes.create());
-            serverBinding.whenComplete((binding, throwable) -> {
-                if (throwable == null) {
-                    log.debug("Server started at " + binding.localAddress());
-                    log.debug("Seeding database");
-                    userServiceActor.tell(new UserService.SeedCommand());
-                } else {
-                    log.error("Exception received", throwable);
-                    context.getSystem().terminate();
-                }
-            });
-            return Behaviors.empty();
-        });
+public class UserServer extends AbstractBehavior<UserServer.Command> {
+    private static final Duration SEED_TIMEOUT = Duration.ofSeconds(30);
+
+    private final Settings properties;
+    private final HealthRoutes healthRoutes;
+    private ActorRef<UserService.Command> userServiceActor;
+    private UserRoutes userRoutes;
+
+    public interface Command {
+    }
+
+    private record Bound(
+            ServerBinding binding
+    ) implements Command {
+    }
+
+    private record PersistenceReady() implements Command {
+    }
+
+    private record Seeded(
+            Response response
+    ) implements Command {
+    }
+
+    private record WarmedUp(
+            WarmUp.Report report,
+            Throwable failure
+    ) implements Command {
+    }
+
+    private record StartupFailed(
+            Throwable cause
+    ) implements Command {
+    }
+
+    private UserServer(ActorContext<Command> context, CompletionStage<SessionFactoryProvider> persistence) {
+        super(context);
+        this.properties = PropertiesProvider.getInstance().current();
+        this.healthRoutes = new HealthRoutes();
+        ServerSettings serverSettings = ServerSettings.create(context.getSystem().classicSystem());
+        log.debug("Server settings: max-connections=" + serverSettings.getMaxConnections()
+                + ", pipelining-limit=" + serverSettings.getPipeliningLimit()
+                + ", idle-timeout=" + serverSettings.getTimeouts().idleTimeout()
+                + ", request-timeout=" + serverSettings.getTimeouts().requestTimeout());
+        CompletionStage<ServerBinding> serverBinding = Http.get(context.getSystem())
+                .newServerAt(properties.serverInterface(), properties.serverPort())
+                .withSettings(serverSettings)
+                .bind(concat(healthRoutes.create(), healthRoutes.whenReady()));
+        context.pipeToSelf(serverBinding, (binding, throwable) ->
+                throwable == null ? new Bound(binding) : new StartupFailed(throwable));
+        // Metrics and traces are unauthenticated, they are only served on the management interface
+        CompletionStage<ServerBinding> managementBinding = Http.get(context.getSystem())
+                .newServerAt(properties.managementInterface(), properties.managementPort())
+                .bind(concat(new MetricsRoutes().create(), new TracingRoutes().create()));
+        context.pipeToSelf(managementBinding, (binding, throwable) ->
+                throwable == null ? new Bound(binding) : new StartupFailed(throwable));
+        context.pipeToSelf(persistence, (provider, throwable) ->
+                throwable == null ? new PersistenceReady() : new StartupFailed(throwable));
+        if (UserService.isClustered(context.getSystem())
+                && context.getSystem().settings().config().getStringList("akka.cluster.seed-nodes").isEmpty()) {
+            Cluster cluster = Cluster.get(context.getSystem());
+            log.debug("No seed nodes configured, joining " + cluster.selfMember().address());
+            cluster.manager().tell(Join.create(cluster.selfMember().address()));
+        }
+    }
+
+    public static Behavior<Command> create() {
+        return create(SessionFactoryProvider.bootstrap());
+    }
+
+    public static Behavior<Command> create(CompletionStage<SessionFactoryProvider> persistence) {
+        return Behaviors.setup(context -> new UserServer(context, persistence));
+    }
+
+    public static boolean isTrainingRun() {
+        return Boolean.getBoolean("startup.training-run");
+    }
+
+    private static long uptime() {
+        return ManagementFactory.getRuntimeMXBean().getUptime();
+    }
+
+    @Override
+    public Receive<Command> createReceive() {
+        return newReceiveBuilder()
+                .onMessage(Bound.class, this::onBound)
+                .onMessage(PersistenceReady.class, this::onPersistenceReady)
+                .onMessage(Seeded.class, this::onSeeded)
+                .onMessage(WarmedUp.class, this::onWarmedUp)
+                .onMessage(StartupFailed.class, this::onStartupFailed)
+                .build();
+    }
+
+    private Behavior<Command> onBound(Bound bound) {
+        log.debug("Server started at " + bound.binding.localAddress() + " after " + uptime() + " ms");
+        return Behaviors.same();
+    }
+
+    private Behavior<Command> onPersistenceReady(PersistenceReady ready) {
+        log.debug("Persistence ready after " + uptime() + " ms");
+        userServiceActor = getContext().spawn(UserService.create(), "UserServiceActor");
+        userRoutes = new UserRoutes(getContext().getSystem(), userServiceActor);
+        log.debug("Seeding database");
+        getContext().ask(
+                Response.class,
+                userServiceActor,
+                SEED_TIMEOUT,
+                replyTo -> new UserService.SeedCommand(replyTo),
+                (response, throwable) -> throwable == null ? new Seeded(response) : new StartupFailed(throwable)
+        );
+        return Behaviors.same();
+    }
+
+    private Behavior<Command> onSeeded(Seeded seeded) {
+        if (seeded.response.type() != ResponseType.OK) {
+            return onStartupFailed(new StartupFailed(new IllegalStateException("Database seeding failed")));
+        }
+        log.debug("Database seeded after " + uptime() + " ms");
+        if (properties.warmUpEnabled()) {
+            // Dedicated routes instance, so warm-up requests do not consume the live rate limit buckets
+            UserRoutes warmUpRoutes = new UserRoutes(getContext().getSystem(), userServiceActor);
+            WarmUp warmUp = new WarmUp(warmUpRoutes.create(), getContext().getSystem());
+            getContext().pipeToSelf(warmUp.run(), WarmedUp::new);
+            return Behaviors.same();
+        }
+        return ready();
+    }
+
+    private Behavior<Command> onWarmedUp(WarmedUp warmedUp) {
+        if (warmedUp.failure != null) {
+            log.warn("Warm-up failed, continuing without it", warmedUp.failure);
+        } else {
+            log.info(String.format("Warm-up ran %d cycles in %d ms, cycle time went from %.2f ms to %.2f ms",
+                    warmedUp.report.iterations(),
+                    warmedUp.report.elapsedMillis(),
+                    warmedUp.report.firstCycleMillis(),
+                    warmedUp.report.lastCycleMillis()));
+        }
+        return ready();
+    }
+
+    private Behavior<Command> ready() {
+        healthRoutes.ready(userRoutes.create());
+        log.info("Service ready after " + uptime() + " ms");
+        if (isTrainingRun()) {
+            log.info("Training run finished, shutting down");
+            getContext().getSystem().terminate();
+        }
+        return Behaviors.same();
+    }
+
+    private Behavior<Command> onStartupFailed(StartupFailed failed) {
+        log.error("Exception received", failed.cause);
+        getContext().getSystem().terminate();
+        return Behaviors.same();
     }
 }
@@ -0,0 +1,150 @@
+package org.xapps.services.server;
+
+import akka.NotUsed;
+import akka.actor.typed.ActorSystem;
+import akka.http.javadsl.model.HttpHeader;
+import akka.http.javadsl.model.HttpRequest;
+import akka.http.javadsl.model.HttpResponse;
+import akka.http.javadsl.server.Route;
+import akka.stream.Materializer;
+import akka.stream.javadsl.Flow;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import akka.util.ByteString;
+import at.favre.lib.crypto.bcrypt.BCrypt;
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.algorithms.Algorithm;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.xapps.services.entities.Role;
+import org.xapps.services.entities.User;
+import org.xapps.services.services.utils.PropertiesProvider;
+import org.xapps.services.services.utils.Settings;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives synthetic read and marshalling cycles through the real routes in-process, so JWT verification,
+ * Jackson, Hibernate query plans and BCrypt are compiled before the service reports ready.
+ * Every cycle reads one small page of users, one user by id and the roles, so its cost does not grow with
+ * the table. The requests carry a token minted here for a synthetic administrator, nothing depends on the
+ * seeded root credentials, and BCrypt is exercised directly on a throwaway password instead of through
+ * logins, which would leave failed attempts in the audit trail.
+ */
+@Slf4j
+public class WarmUp {
+    private static final long ENTITY_TIMEOUT_MILLIS = 5000;
+    private static final String SUBJECT_EMAIL = "warm-up@localhost.invalid";
+
+    private final Flow<HttpRequest, HttpResponse, NotUsed> routeFlow;
+    private final Materializer materializer;
+    private final ObjectMapper objectMapper;
+    private final Settings properties;
+
+    public record Report(
+            int iterations,
+            long elapsedMillis,
+            double firstCycleMillis,
+            double lastCycleMillis
+    ) {
+    }
+
+    public WarmUp(Route route, ActorSystem<?> system) {
+        this.routeFlow = route.flow(system);
+        this.materializer = Materializer.matFromSystem(system);
+        this.objectMapper = new ObjectMapper();
+        this.properties = PropertiesProvider.getInstance().current();
+    }
+
+    public CompletionStage<Report> run() {
+        long startedAt = System.nanoTime();
+        long deadline = startedAt + TimeUnit.MILLISECONDS.toNanos(properties.warmUpTimeBudget());
+        HttpHeader authorization;
+        try {
+            authorization = HttpHeader.parse("Authorization", "Bearer " + token());
+        } catch (JsonProcessingException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+        return CompletableFuture.runAsync(this::hashes)
+                .thenCompose(discardable -> Source.range(1, properties.warmUpIterations())
+                        .takeWhile(iteration -> System.nanoTime() < deadline)
+                        .mapAsync(1, iteration -> cycle(iteration, authorization))
+                        .runWith(Sink.seq(), materializer))
+                .thenApply(cycles -> report(cycles, System.nanoTime() - startedAt));
+    }
+
+    private CompletionStage<Long> cycle(int iteration, HttpHeader authorization) {
+        long startedAt = System.nanoTime();
+        return request(HttpRequest.GET("/users?limit=" + properties.warmUpPageSize()).addHeader(authorization))
+                .thenApply(this::ids)
+                .thenCompose(ids -> ids.isEmpty()
+                        ? CompletableFuture.completedFuture(ByteString.emptyByteString())
+                        : request(HttpRequest.GET("/users/" + ids.get(iteration % ids.size())).addHeader(authorization)))
+                .thenCompose(discardable -> request(HttpRequest.GET("/users/roles")))
+                .thenApply(discardable -> System.nanoTime() - startedAt);
+    }
+
+    // Short-lived token for an administrator that does not exist in the database, signed like a login token
+    private String token() throws JsonProcessingException {
+        User subject = new User(SUBJECT_EMAIL, null, "Warm", "Up", List.of(new Role(Role.ADMINISTRATOR)));
+        long currentTimestamp = System.currentTimeMillis();
+        return JWT.create()
+                .withIssuer("XApps")
+                .withJWTId(UUID.randomUUID().toString())
+                .withSubject(objectMapper.writeValueAsString(subject))
+                .withIssuedAt(new Date(currentTimestamp))
+                .withExpiresAt(new Date(currentTimestamp + properties.warmUpTimeBudget()))
+                .sign(Algorithm.HMAC256(properties.securityTokenKey()));
+    }
+
+    private void hashes() {
+        char[] password = UUID.randomUUID().toString().toCharArray();
+        String hash = BCrypt.withDefaults().hashToString(properties.defaultHashRound(), password);
+        for (int i = 0; i < properties.warmUpHashes(); i++) {
+            BCrypt.verifyer().verify(password, hash);
+        }
+    }
+
+    private List<Long> ids(ByteString body) {
+        List<Long> ids = new ArrayList<>();
+        try {
+            for (JsonNode user : objectMapper.readTree(body.toArray()).path("users")) {
+                ids.add(user.path("id").asLong());
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException("Warm-up page could not be read", ex);
+        }
+        return ids;
+    }
+
+    private CompletionStage<ByteString> request(HttpRequest request) {
+        return Source.single(request)
+                .via(routeFlow)
+                .runWith(Sink.head(), materializer)
+                .thenCompose(response -> response.entity().toStrict(ENTITY_TIMEOUT_MILLIS, materializer))
+                .thenApply(entity -> entity.getData());
+    }
+
+    private static Report report(List<Long> cycles, long elapsedNanos) {
+        int sample = Math.max(1, cycles.size() / 10);
+        return new Report(
+                cycles.size(),
+                TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+                averageMillis(cycles.subList(0, Math.min(sample, cycles.size()))),
+                averageMillis(cycles.subList(Math.max(0, cycles.size() - sample), cycles.size()))
+        );
+    }
+
+    private static double averageMillis(List<Long> cycles) {
+        return cycles.stream().mapToLong(Long::longValue).average().orElse(0) / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
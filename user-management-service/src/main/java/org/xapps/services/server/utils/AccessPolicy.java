@@ -0,0 +1,56 @@
+package org.xapps.services.server.utils;
+
+/**
+ * Who may run each protected operation, one row per operation.
+ * A principal holding any of the roles of the row is always allowed. Otherwise granting a role of
+ * {@link #RESTRICTED_GRANTS} is refused, and the row decides whether anybody, the user targeted by the
+ * operation or nobody else is allowed.
+ */
+public enum AccessPolicy {
+    READ_CHANGES(RoleMask.ADMINISTRATOR, Others.NOBODY),
+    LIST_USERS(RoleMask.ADMINISTRATOR, Others.NOBODY),
+    CREATE_USER(RoleMask.ADMINISTRATOR, Others.ANYBODY),
+    READ_USER(RoleMask.ADMINISTRATOR, Others.OWNER),
+    UPDATE_USER(RoleMask.ADMINISTRATOR, Others.OWNER),
+    DELETE_USER(RoleMask.ADMINISTRATOR, Others.OWNER);
+
+    // Roles only granted by principals holding one of the roles of the row
+    public static final int RESTRICTED_GRANTS = RoleMask.ADMINISTRATOR;
+
+    private enum Others {
+        NOBODY,
+        OWNER,
+        ANYBODY
+    }
+
+    private final int roles;
+    private final Others others;
+
+    AccessPolicy(int roles, Others others) {
+        this.roles = roles;
+        this.others = others;
+    }
+
+    /**
+     * @param principal caller, null when anonymous
+     * @param target    id of the user the operation acts on, null when it acts on no user in particular
+     * @param granted   roles the operation would give to the target
+     */
+    public boolean allows(Principal principal, Long target, int granted) {
+        if (principal != null && principal.hasAnyRole(roles)) {
+            return true;
+        }
+        if ((granted & RESTRICTED_GRANTS) != 0) {
+            return false;
+        }
+        return switch (others) {
+            case ANYBODY -> true;
+            case OWNER -> principal != null && principal.owns(target);
+            case NOBODY -> false;
+        };
+    }
+
+    public boolean allows(Principal principal) {
+        return allows(principal, null, RoleMask.NONE);
+    }
+}
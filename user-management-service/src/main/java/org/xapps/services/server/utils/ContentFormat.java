@@ -0,0 +1,128 @@
+package org.xapps.services.server.utils;
+
+import akka.http.javadsl.marshallers.jackson.Jackson;
+import akka.http.javadsl.model.ContentType;
+import akka.http.javadsl.model.ContentTypes;
+import akka.http.javadsl.model.HttpEntity;
+import akka.http.javadsl.model.MediaType;
+import akka.http.javadsl.model.MediaTypes;
+import akka.http.javadsl.unmarshalling.Unmarshaller;
+import akka.util.ByteString;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Body encodings negotiated through Accept and Content-Type, JSON is the default.
+ * CBOR and Smile are binary encodings of the same Jackson data model, so every request and
+ * response type is available in all of them without extra mapping.
+ */
+public enum ContentFormat {
+    JSON("application/json", MediaTypes.APPLICATION_JSON, ContentTypes.APPLICATION_JSON, new ObjectMapper()),
+    CBOR("application/cbor", MediaTypes.applicationBinary("cbor", false), new ObjectMapper(new CBORFactory())),
+    SMILE("application/x-jackson-smile", MediaTypes.applicationBinary("x-jackson-smile", false), new ObjectMapper(new SmileFactory()));
+
+    private final String name;
+    private final MediaType mediaType;
+    private final ContentType contentType;
+    private final ObjectMapper mapper;
+
+    ContentFormat(String name, MediaType.Binary mediaType, ObjectMapper mapper) {
+        this(name, mediaType, ContentTypes.create(mediaType), mapper);
+    }
+
+    ContentFormat(String name, MediaType mediaType, ContentType contentType, ObjectMapper mapper) {
+        this.name = name;
+        this.mediaType = mediaType;
+        this.contentType = contentType;
+        this.mapper = mapper;
+    }
+
+    public ContentType contentType() {
+        return contentType;
+    }
+
+    public ObjectMapper mapper() {
+        return mapper;
+    }
+
+    public ByteString encode(Object value) throws JsonProcessingException {
+        return ByteString.fromArray(mapper.writeValueAsBytes(value));
+    }
+
+    // Supported format with the highest q-value in the Accept header, q=0 excludes it. An explicit media type
+    // takes precedence over application/* and */*, ties keep the order of the header.
+    // Falls back to JSON when the header is absent or accepts none of the formats.
+    public static ContentFormat negotiate(Optional<String> accept) {
+        if (accept.isEmpty()) {
+            return JSON;
+        }
+        Map<String, Double> qualities = new HashMap<>();
+        Map<String, Integer> positions = new HashMap<>();
+        String[] ranges = accept.get().split(",");
+        for (int position = 0; position < ranges.length; position++) {
+            String[] parts = ranges[position].trim().split(";");
+            String range = parts[0].trim().toLowerCase();
+            if (range.isEmpty() || qualities.containsKey(range)) {
+                continue;
+            }
+            double quality = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException ex) {
+                        quality = 0;
+                    }
+                }
+            }
+            qualities.put(range, quality);
+            positions.put(range, position);
+        }
+        String wildcard = qualities.containsKey("application/*") ? "application/*" : "*/*";
+        ContentFormat selected = JSON;
+        double selectedQuality = 0;
+        int selectedPosition = Integer.MAX_VALUE;
+        for (ContentFormat format : values()) {
+            String range = qualities.containsKey(format.name) ? format.name : wildcard;
+            double quality = qualities.getOrDefault(range, 0.0);
+            int position = positions.getOrDefault(range, Integer.MAX_VALUE);
+            if (quality > selectedQuality || (quality > 0 && quality == selectedQuality && position < selectedPosition)) {
+                selected = format;
+                selectedQuality = quality;
+                selectedPosition = position;
+            }
+        }
+        return selected;
+    }
+
+    // Picks the decoder from the request Content-Type, other types are rejected as unsupported media type
+    public static <T> Unmarshaller<HttpEntity, T> unmarshaller(Class<T> type) {
+        return Unmarshaller.firstOf(
+                Jackson.unmarshaller(type),
+                binaryUnmarshaller(CBOR, type),
+                binaryUnmarshaller(SMILE, type)
+        );
+    }
+
+    private static <T> Unmarshaller<HttpEntity, T> binaryUnmarshaller(ContentFormat format, Class<T> type) {
+        return Unmarshaller.forMediaType(format.mediaType, Unmarshaller.entityToByteString()
+                .thenApply(bytes -> format.decode(bytes, type)));
+    }
+
+    private <T> T decode(ByteString bytes, Class<T> type) {
+        try {
+            return mapper.readValue(bytes.toArray(), type);
+        } catch (IOException ex) {
+            // Rejected as malformed request content with 400, like a JSON body that does not parse
+            throw new IllegalArgumentException("Malformed " + name + " body", ex);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package org.xapps.services.server.utils;
+
+import org.xapps.services.entities.User;
+
+/**
+ * Authenticated caller as read from its token, with its roles folded into a {@link RoleMask} once.
+ */
+public record Principal(
+        Long id,
+        int roles
+) {
+    public static Principal of(User user) {
+        return new Principal(user.getId(), RoleMask.of(user.getRoles()));
+    }
+
+    public boolean hasAnyRole(int mask) {
+        return (roles & mask) != 0;
+    }
+
+    public boolean owns(Long userId) {
+        return id != null && id.equals(userId);
+    }
+}
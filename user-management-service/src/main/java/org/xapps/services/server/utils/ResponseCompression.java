@@ -0,0 +1,136 @@
+package org.xapps.services.server.utils;
+
+import akka.NotUsed;
+import akka.http.javadsl.model.ContentType;
+import akka.http.javadsl.model.HttpEntities;
+import akka.http.javadsl.model.HttpResponse;
+import akka.http.javadsl.model.headers.ContentEncoding;
+import akka.http.javadsl.model.headers.HttpEncoding;
+import akka.http.javadsl.model.headers.HttpEncodings;
+import akka.http.javadsl.model.headers.RawHeader;
+import akka.stream.Materializer;
+import akka.stream.javadsl.Compression;
+import akka.stream.javadsl.Flow;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import akka.util.ByteString;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+public class ResponseCompression {
+    // Brotli has no encoder in the JDK or Akka Streams, requests asking only for "br" are served uncompressed
+    public enum Encoding {
+        GZIP(HttpEncodings.GZIP),
+        DEFLATE(HttpEncodings.DEFLATE);
+
+        private final HttpEncoding httpEncoding;
+
+        Encoding(HttpEncoding httpEncoding) {
+            this.httpEncoding = httpEncoding;
+        }
+
+        private Flow<ByteString, ByteString, NotUsed> compressor() {
+            return this == GZIP ? Compression.gzip() : Compression.deflate();
+        }
+    }
+
+    private record Peeked(
+            ByteString prefix,
+            Source<ByteString, NotUsed> tail,
+            boolean exhausted
+    ) {
+    }
+
+    private static final RawHeader VARY = RawHeader.create("Vary", "Accept-Encoding");
+
+    private final boolean enabled;
+    private final long minimumSize;
+
+    public ResponseCompression(boolean enabled, long minimumSize) {
+        this.enabled = enabled;
+        this.minimumSize = minimumSize;
+    }
+
+    /**
+     * Encoding with the highest q-value among the supported ones, q=0 excludes it. An explicit coding takes
+     * precedence over "*", so "*, gzip;q=0" selects deflate. Ties prefer gzip.
+     */
+    public Optional<Encoding> negotiate(Optional<String> acceptEncoding) {
+        if (!enabled || acceptEncoding.isEmpty()) {
+            return Optional.empty();
+        }
+        Map<String, Double> qualities = new HashMap<>();
+        for (String token : acceptEncoding.get().split(",")) {
+            String[] parts = token.trim().split(";");
+            String coding = parts[0].trim().toLowerCase();
+            if (coding.isEmpty()) {
+                continue;
+            }
+            double quality = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException ex) {
+                        quality = 0;
+                    }
+                }
+            }
+            qualities.put(coding.equals("x-gzip") ? "gzip" : coding, quality);
+        }
+        double wildcard = qualities.getOrDefault("*", 0.0);
+        double gzip = qualities.getOrDefault("gzip", wildcard);
+        double deflate = qualities.getOrDefault("deflate", wildcard);
+        if (gzip > 0 && gzip >= deflate) {
+            return Optional.of(Encoding.GZIP);
+        } else if (deflate > 0) {
+            return Optional.of(Encoding.DEFLATE);
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Buffers the body only until it reaches the minimum size. Smaller bodies are sent as strict
+     * uncompressed entities, larger ones keep streaming through the negotiated compressor.
+     * Every response carries Vary: Accept-Encoding, caches must not serve one encoding to clients asking for another.
+     */
+    public CompletionStage<HttpResponse> respond(ContentType contentType, Source<ByteString, NotUsed> body, Optional<Encoding> encoding, Materializer materializer) {
+        if (encoding.isEmpty()) {
+            return CompletableFuture.completedFuture(HttpResponse.create()
+                    .addHeader(VARY)
+                    .withEntity(HttpEntities.create(contentType, body)));
+        }
+        return peek(body, ByteString.emptyByteString(), materializer).thenApply(peeked -> {
+            HttpResponse response = HttpResponse.create().addHeader(VARY);
+            if (peeked.exhausted() && peeked.prefix().size() < minimumSize) {
+                return response.withEntity(HttpEntities.create(contentType, peeked.prefix()));
+            }
+            Source<ByteString, NotUsed> compressed = Source.single(peeked.prefix())
+                    .concat(peeked.tail())
+                    .via(encoding.get().compressor());
+            return response
+                    .addHeader(ContentEncoding.create(encoding.get().httpEncoding))
+                    .withEntity(HttpEntities.create(contentType, compressed));
+        });
+    }
+
+    private CompletionStage<Peeked> peek(Source<ByteString, NotUsed> data, ByteString prefix, Materializer materializer) {
+        return data.prefixAndTail(1).runWith(Sink.head(), materializer).thenCompose(pair -> {
+            List<ByteString> head = pair.first();
+            if (head.isEmpty()) {
+                return CompletableFuture.completedFuture(new Peeked(prefix, Source.empty(), true));
+            }
+            ByteString buffered = prefix.concat(head.get(0));
+            if (buffered.size() >= minimumSize) {
+                return CompletableFuture.completedFuture(new Peeked(buffered, pair.second(), false));
+            }
+            return peek(pair.second(), buffered, materializer);
+        });
+    }
+}
@@ -0,0 +1,39 @@
+package org.xapps.services.server.utils;
+
+import org.xapps.services.entities.Role;
+
+import java.util.List;
+
+/**
+ * Roles as bits of an int, so that authorization checks are single bit operations.
+ * Only the roles known to the service have a bit, unknown role names map to no bit.
+ */
+public final class RoleMask {
+    public static final int NONE = 0;
+    public static final int ADMINISTRATOR = 1;
+    public static final int GUEST = 1 << 1;
+
+    private RoleMask() {
+    }
+
+    public static int bit(String role) {
+        if (role == null) {
+            return NONE;
+        }
+        return switch (role) {
+            case Role.ADMINISTRATOR -> ADMINISTRATOR;
+            case Role.GUEST -> GUEST;
+            default -> NONE;
+        };
+    }
+
+    public static int of(List<Role> roles) {
+        int mask = NONE;
+        if (roles != null) {
+            for (Role role : roles) {
+                mask |= bit(role.getName());
+            }
+        }
+        return mask;
+    }
+}
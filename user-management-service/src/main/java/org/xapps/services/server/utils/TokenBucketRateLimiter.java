@@ -0,0 +1,137 @@
+package org.xapps.services.server.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Token buckets per key, for example a client IP or a login email, kept in a map bounded by maxEntries.
+ * Buckets idle long enough to be full again are swept at most once per idle eviction period. Only buckets that
+ * have refilled completely are ever removed, they are indistinguishable from new ones, so a flood of new keys can
+ * not reset a key that is being limited. A new key arriving while the map is full triggers a sweep of refilled
+ * buckets, at most once per token refill period, and is refused when no room was freed.
+ */
+public class TokenBucketRateLimiter {
+    private final double capacity;
+    private final double refillPerSecond;
+    private final double refillPerNano;
+    private final long idleEvictionNanos;
+    private final long tokenRefillNanos;
+    private final int maxEntries;
+    private final ConcurrentHashMap<String, AtomicReference<Bucket>> buckets;
+    private final AtomicLong lastEviction;
+    private final AtomicLong lastRefilledSweep;
+    private final LongSupplier clock;
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+
+    private record Bucket(double tokens, long updatedAt) {
+    }
+
+    public TokenBucketRateLimiter(double capacity, double refillPerSecond, long idleEvictionMillis, int maxEntries) {
+        this(capacity, refillPerSecond, idleEvictionMillis, maxEntries, System::nanoTime);
+    }
+
+    public TokenBucketRateLimiter(double capacity, double refillPerSecond, long idleEvictionMillis, int maxEntries, LongSupplier clock) {
+        this.capacity = capacity;
+        this.refillPerSecond = refillPerSecond;
+        this.refillPerNano = refillPerSecond / TimeUnit.SECONDS.toNanos(1);
+        // A bucket idle for longer than it takes to refill completely is indistinguishable from
+        // a new one, so evicting it never hands out extra tokens.
+        long refillNanos = (long) Math.ceil(capacity / refillPerNano);
+        this.idleEvictionNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(idleEvictionMillis), refillNanos);
+        this.tokenRefillNanos = (long) Math.ceil(1 / refillPerNano);
+        this.maxEntries = maxEntries;
+        this.buckets = new ConcurrentHashMap<>();
+        this.clock = clock;
+        this.lastEviction = new AtomicLong(clock.getAsLong());
+        this.lastRefilledSweep = new AtomicLong(clock.getAsLong() - tokenRefillNanos);
+    }
+
+    public boolean tryAcquire(String key) {
+        long now = clock.getAsLong();
+        evictIdleBuckets(now);
+        AtomicReference<Bucket> bucket = buckets.get(key);
+        if (bucket == null) {
+            if (buckets.size() >= maxEntries && !evictRefilledBuckets(now)) {
+                refused.increment();
+                return false;
+            }
+            bucket = buckets.computeIfAbsent(key, k -> new AtomicReference<>(new Bucket(capacity, now)));
+        }
+        while (true) {
+            Bucket current = bucket.get();
+            long elapsed = Math.max(0, now - current.updatedAt());
+            double tokens = Math.min(capacity, current.tokens() + elapsed * refillPerNano);
+            if (tokens < 1) {
+                return false;
+            }
+            if (bucket.compareAndSet(current, new Bucket(tokens - 1, Math.max(now, current.updatedAt())))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Starts from the buckets of the limiter this one replaces, so new rates keep a client that is being limited
+     * limited. Tokens are capped at the new capacity, at most maxEntries buckets are taken over, and acquisitions on
+     * the previous limiter while copying may be lost. Returns this limiter.
+     */
+    public TokenBucketRateLimiter copyBuckets(TokenBucketRateLimiter previous) {
+        for (Map.Entry<String, AtomicReference<Bucket>> entry : previous.buckets.entrySet()) {
+            if (buckets.size() >= maxEntries) {
+                break;
+            }
+            Bucket bucket = entry.getValue().get();
+            buckets.putIfAbsent(entry.getKey(), new AtomicReference<>(new Bucket(Math.min(capacity, bucket.tokens()), bucket.updatedAt())));
+        }
+        return this;
+    }
+
+    public long retryAfterSeconds() {
+        return (long) Math.ceil(1 / refillPerSecond);
+    }
+
+    public int size() {
+        return buckets.size();
+    }
+
+    public long evicted() {
+        return evicted.sum();
+    }
+
+    // New keys turned away because the map was full of buckets still refilling
+    public long refused() {
+        return refused.sum();
+    }
+
+    private void evictIdleBuckets(long now) {
+        long previous = lastEviction.get();
+        if (now - previous < idleEvictionNanos) {
+            return;
+        }
+        if (lastEviction.compareAndSet(previous, now)) {
+            buckets.values().removeIf(bucket -> now - bucket.get().updatedAt() > idleEvictionNanos);
+        }
+    }
+
+    // True when the map has room again, the sweep runs at most once per token refill period
+    private boolean evictRefilledBuckets(long now) {
+        long previous = lastRefilledSweep.get();
+        if (now - previous >= tokenRefillNanos && lastRefilledSweep.compareAndSet(previous, now)) {
+            buckets.entrySet().removeIf(entry -> {
+                Bucket bucket = entry.getValue().get();
+                boolean refilled = bucket.tokens() + Math.max(0, now - bucket.updatedAt()) * refillPerNano >= capacity;
+                if (refilled) {
+                    evicted.increment();
+                }
+                return refilled;
+            });
+        }
+        return buckets.size() < maxEntries;
+    }
+}
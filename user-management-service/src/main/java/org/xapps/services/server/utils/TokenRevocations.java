@@ -0,0 +1,151 @@
+package org.xapps.services.server.utils;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.Extension;
+import akka.actor.typed.ExtensionId;
+import akka.actor.typed.Props;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.cluster.ddata.Key;
+import akka.cluster.ddata.LWWMap;
+import akka.cluster.ddata.LWWMapKey;
+import akka.cluster.ddata.SelfUniqueAddress;
+import akka.cluster.ddata.typed.javadsl.DistributedData;
+import akka.cluster.ddata.typed.javadsl.Replicator;
+import akka.cluster.ddata.typed.javadsl.ReplicatorMessageAdapter;
+import lombok.extern.slf4j.Slf4j;
+import org.xapps.services.services.UserService;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ids of revoked tokens, each one kept until the expiry of its token.
+ * Lookups only touch a local map. In cluster mode revocations are written to a Distributed Data
+ * LWWMap and every node merges the replicated entries into its local map.
+ */
+@Slf4j
+public class TokenRevocations implements Extension {
+    private static final Id ID = new Id();
+    private static final Key<LWWMap<String, Long>> KEY = LWWMapKey.create("revoked-tokens");
+    private static final Duration PRUNE_INTERVAL = Duration.ofMinutes(1);
+
+    private final ConcurrentHashMap<String, Long> revoked = new ConcurrentHashMap<>();
+    private final AtomicLong lastPrune = new AtomicLong(System.currentTimeMillis());
+    private final ActorRef<Command> replicator;
+
+    public static class Id extends ExtensionId<TokenRevocations> {
+        @Override
+        public TokenRevocations createExtension(ActorSystem<?> system) {
+            return new TokenRevocations(system);
+        }
+    }
+
+    private interface Command {
+    }
+
+    private record Revoke(
+            String tokenId,
+            Long expiresAt
+    ) implements Command {
+    }
+
+    private record Prune() implements Command {
+    }
+
+    private record Changed(
+            Replicator.SubscribeResponse<LWWMap<String, Long>> response
+    ) implements Command {
+    }
+
+    private record Updated(
+            Replicator.UpdateResponse<LWWMap<String, Long>> response
+    ) implements Command {
+    }
+
+    private TokenRevocations(ActorSystem<?> system) {
+        this.replicator = UserService.isClustered(system)
+                ? system.systemActorOf(replication(), "tokenRevocations", Props.empty())
+                : null;
+    }
+
+    public static TokenRevocations get(ActorSystem<?> system) {
+        return ID.apply(system);
+    }
+
+    public boolean isRevoked(String tokenId) {
+        return tokenId != null && revoked.containsKey(tokenId);
+    }
+
+    public void revoke(String tokenId, long expiresAt) {
+        revoked.put(tokenId, expiresAt);
+        if (replicator != null) {
+            replicator.tell(new Revoke(tokenId, expiresAt));
+        } else {
+            long now = System.currentTimeMillis();
+            long last = lastPrune.get();
+            if (now - last >= PRUNE_INTERVAL.toMillis() && lastPrune.compareAndSet(last, now)) {
+                prune(now);
+            }
+        }
+    }
+
+    public int size() {
+        return revoked.size();
+    }
+
+    private void prune(long now) {
+        revoked.values().removeIf(expiresAt -> expiresAt <= now);
+    }
+
+    private Behavior<Command> replication() {
+        return Behaviors.setup(context -> DistributedData.withReplicatorMessageAdapter(
+                (ReplicatorMessageAdapter<Command, LWWMap<String, Long>> adapter) -> Behaviors.withTimers(timers -> {
+                    SelfUniqueAddress node = DistributedData.get(context.getSystem()).selfUniqueAddress();
+                    adapter.subscribe(KEY, Changed::new);
+                    timers.startTimerWithFixedDelay(new Prune(), PRUNE_INTERVAL);
+                    return Behaviors.receive(Command.class)
+                            .onMessage(Revoke.class, revoke -> {
+                                adapter.askUpdate(
+                                        replyTo -> new Replicator.Update<>(KEY, LWWMap.empty(), Replicator.writeLocal(), replyTo,
+                                                map -> map.put(node, revoke.tokenId, revoke.expiresAt)),
+                                        Updated::new
+                                );
+                                return Behaviors.same();
+                            })
+                            .onMessage(Changed.class, changed -> {
+                                if (changed.response instanceof Replicator.Changed<LWWMap<String, Long>> current) {
+                                    current.dataValue().getEntries().forEach(revoked::putIfAbsent);
+                                }
+                                return Behaviors.same();
+                            })
+                            .onMessage(Prune.class, prune -> {
+                                long now = System.currentTimeMillis();
+                                prune(now);
+                                adapter.askUpdate(
+                                        replyTo -> new Replicator.Update<>(KEY, LWWMap.empty(), Replicator.writeLocal(), replyTo, map -> {
+                                            LWWMap<String, Long> pruned = map;
+                                            for (Map.Entry<String, Long> entry : map.getEntries().entrySet()) {
+                                                if (entry.getValue() <= now) {
+                                                    pruned = pruned.remove(node, entry.getKey());
+                                                }
+                                            }
+                                            return pruned;
+                                        }),
+                                        Updated::new
+                                );
+                                return Behaviors.same();
+                            })
+                            .onMessage(Updated.class, updated -> {
+                                if (!(updated.response instanceof Replicator.UpdateSuccess)) {
+                                    log.warn("Token revocations update failed: " + updated.response);
+                                }
+                                return Behaviors.same();
+                            })
+                            .build();
+                })));
+    }
+}
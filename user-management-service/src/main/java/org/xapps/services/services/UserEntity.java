@@ -0,0 +1,140 @@
+package org.xapps.services.services;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.StashBuffer;
+import akka.cluster.sharding.typed.javadsl.EntityTypeKey;
+import lombok.extern.slf4j.Slf4j;
+import org.xapps.services.entities.User;
+import org.xapps.services.services.responses.Response;
+import org.xapps.services.services.responses.ResponseType;
+import org.xapps.services.services.responses.UserResponse;
+import org.xapps.services.services.utils.Deadlines;
+import org.xapps.services.services.utils.Tracing;
+
+import java.io.Serial;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Sharded entity owning a single user, the entity id is the user id.
+ * The last loaded user is kept in memory and answers reads without touching the database.
+ * Loads and writes run one at a time, commands arriving meanwhile are stashed until the running one completes.
+ */
+@Slf4j
+public class UserEntity {
+    public static final EntityTypeKey<UserService.Command> TYPE_KEY = EntityTypeKey.create(UserService.Command.class, "User");
+
+    private final ActorContext<UserService.Command> context;
+    private final StashBuffer<UserService.Command> stash;
+    private final Long userId;
+    private final UserOperations operations;
+    private final Tracing tracing;
+    private User cached;
+
+    // state is null when the user is unknown after the operation, the next read loads it again
+    private record Completed<R>(
+            ActorRef<R> replyTo,
+            R response,
+            User state
+    ) implements UserService.Command {
+        @Serial
+        private static final long serialVersionUID = 8812734650918273L;
+
+        private void deliver() {
+            replyTo.tell(response);
+        }
+    }
+
+    private UserEntity(ActorContext<UserService.Command> context, StashBuffer<UserService.Command> stash, Long userId, UserOperations operations) {
+        this.context = context;
+        this.stash = stash;
+        this.userId = userId;
+        this.operations = operations;
+        this.tracing = Tracing.getInstance();
+    }
+
+    public static Behavior<UserService.Command> create(Long userId, UserOperations operations, int stashCapacity) {
+        return Behaviors.withStash(stashCapacity, stash ->
+                Behaviors.setup(context -> new UserEntity(context, stash, userId, operations).idle()));
+    }
+
+    private Behavior<UserService.Command> idle() {
+        return Behaviors.receive(UserService.Command.class)
+                .onMessage(UserService.Command.class, this::isExpired, this::dropExpired)
+                .onMessage(UserService.ReadCommand.class, this::read)
+                .onMessage(UserService.UpdateCommand.class, this::update)
+                .onMessage(UserService.DeleteCommand.class, this::delete)
+                .build();
+    }
+
+    private Behavior<UserService.Command> busy() {
+        return Behaviors.receive(UserService.Command.class)
+                .onMessage(Completed.class, this::onCompleted)
+                .onAnyMessage(this::onBusy)
+                .build();
+    }
+
+    private boolean isExpired(UserService.Command command) {
+        return Deadlines.isExpired(command.deadline());
+    }
+
+    private Behavior<UserService.Command> dropExpired(UserService.Command command) {
+        operations.commandExpired();
+        log.debug("Dropping expired " + command.getClass().getSimpleName() + " of user " + userId);
+        return Behaviors.same();
+    }
+
+    private Behavior<UserService.Command> onBusy(UserService.Command command) {
+        if (stash.isFull()) {
+            log.warn("Stash of user " + userId + " is full, dropping " + command.getClass().getSimpleName());
+        } else {
+            stash.stash(command);
+        }
+        return Behaviors.same();
+    }
+
+    private Behavior<UserService.Command> onCompleted(Completed<?> completed) {
+        completed.deliver();
+        cached = completed.state;
+        return stash.unstashAll(idle());
+    }
+
+    private <R> Behavior<UserService.Command> run(CompletionStage<R> response, ActorRef<R> replyTo, R fallback, Function<R, User> state) {
+        context.pipeToSelf(response, (value, throwable) -> {
+            if (throwable != null) {
+                log.error("Exception captured", throwable);
+                return new Completed<>(replyTo, fallback, null);
+            }
+            return new Completed<>(replyTo, value, state.apply(value));
+        });
+        return busy();
+    }
+
+    private <R> CompletionStage<R> handle(String operation, UserService.Command command, Supplier<CompletionStage<R>> handler) {
+        return Deadlines.withDeadline(command.deadline(), () -> tracing.handle("UserEntity." + operation, command.trace(), handler));
+    }
+
+    private Behavior<UserService.Command> read(UserService.ReadCommand command) {
+        if (cached != null) {
+            tracing.handle("UserEntity.read", command.trace(), () -> CompletableFuture.completedFuture(cached));
+            command.replyTo().tell(new UserResponse(ResponseType.OK, cached));
+            return Behaviors.same();
+        }
+        return run(handle("read", command, () -> operations.read(userId)),
+                command.replyTo(), new UserResponse(ResponseType.UNKNWON), UserResponse::user);
+    }
+
+    private Behavior<UserService.Command> update(UserService.UpdateCommand command) {
+        // Drop the cached copy, the update response carries a protected password and is not what reads return
+        return run(handle("update", command, () -> operations.update(userId, command.user(), command.actorId())), command.replyTo(), new UserResponse(ResponseType.UNKNWON), response -> null);
+    }
+
+    private Behavior<UserService.Command> delete(UserService.DeleteCommand command) {
+        return run(handle("delete", command, () -> operations.delete(userId, command.actorId())), command.replyTo(), new Response(ResponseType.UNKNWON), response -> null);
+    }
+}
@@ -0,0 +1,537 @@
+package org.xapps.services.services;
+
+import akka.NotUsed;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.DispatcherSelector;
+import akka.stream.javadsl.Source;
+import at.favre.lib.crypto.bcrypt.BCrypt;
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.algorithms.Algorithm;
+import com.auth0.jwt.exceptions.JWTCreationException;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.xapps.services.entities.Role;
+import org.xapps.services.entities.User;
+import org.xapps.services.repositories.AsyncRoleRepository;
+import org.xapps.services.repositories.AsyncUserRepository;
+import org.xapps.services.repositories.RoleRepository;
+import org.xapps.services.repositories.UserRepository;
+import org.xapps.services.repositories.utils.CountingBloomFilter;
+import org.xapps.services.repositories.utils.DatabaseCircuitBreaker;
+import org.xapps.services.repositories.utils.PersistenceBackend;
+import org.xapps.services.repositories.utils.ReadBatcher;
+import org.xapps.services.repositories.utils.SingleFlight;
+import org.xapps.services.repositories.utils.VirtualThreadExecutor;
+import org.xapps.services.services.audit.AuditEvent;
+import org.xapps.services.services.audit.AuditLog;
+import org.xapps.services.services.events.UserChange;
+import org.xapps.services.services.events.UserChangeFeed;
+import org.xapps.services.services.requests.Login;
+import org.xapps.services.services.requests.UserFields;
+import org.xapps.services.services.requests.UserSearch;
+import org.xapps.services.services.responses.*;
+import org.xapps.services.services.utils.Deadlines;
+import org.xapps.services.services.utils.Metrics;
+import org.xapps.services.services.utils.PropertiesProvider;
+import org.xapps.services.services.utils.Settings;
+import org.xapps.services.services.utils.Tracing;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * User management use cases as asynchronous operations over the repositories.
+ * Shared by the node local {@link UserService} and the sharded {@link UserEntity} instances.
+ */
+@Slf4j
+public class UserOperations {
+    private final ObjectMapper objectMapper;
+    private final AsyncUserRepository userRepository;
+    private final AsyncRoleRepository roleRepository;
+    private final Executor hashingExecutor;
+    private final UserChangeFeed changeFeed;
+    private final PropertiesProvider properties;
+    private final Tracing tracing;
+    private final SingleFlight<Long, User> readFlight;
+    private final SingleFlight<String, User> emailFlight;
+    private final ReadBatcher<Long, User> readBatcher;
+    private final LongAdder expiredCommands = new LongAdder();
+    private final DatabaseCircuitBreaker circuitBreaker;
+    private volatile List<Role> cachedRoles;
+    private final CountingBloomFilter emailFilter;
+    private final LongAdder emailLookupsSkipped = new LongAdder();
+    private final LongAdder emailFalsePositives = new LongAdder();
+    private volatile boolean emailFilterLoaded;
+    private final AuditLog auditLog;
+
+    public UserOperations(ActorSystem<?> system) {
+        this.objectMapper = new ObjectMapper();
+        this.properties = PropertiesProvider.getInstance();
+        this.tracing = Tracing.getInstance();
+        Settings settings = properties.current();
+        PersistenceBackend backend = PersistenceBackend.fromName(settings.persistenceBackend());
+        Executor persistenceExecutor = Deadlines.propagating(tracing.propagating(persistenceExecutor(system, backend, settings)));
+        this.circuitBreaker = DatabaseCircuitBreaker.get(system);
+        this.userRepository = new AsyncUserRepository(new UserRepository(), persistenceExecutor, circuitBreaker);
+        this.roleRepository = new AsyncRoleRepository(new RoleRepository(), persistenceExecutor, circuitBreaker);
+        this.hashingExecutor = Deadlines.propagating(tracing.propagating(hashingExecutor(system, backend)));
+        this.changeFeed = new UserChangeFeed(
+                system,
+                settings.changesHistorySize(),
+                settings.changesSubscriberBufferSize(),
+                UserChangeFeed.SlowSubscriberPolicy.fromName(settings.changesSlowSubscriberPolicy()),
+                Duration.ofSeconds(settings.changesCatchUpInterval())
+        );
+        Metrics.getInstance().gauge("changes.skipped", changeFeed::skipped);
+        this.readFlight = new SingleFlight<>();
+        this.emailFlight = new SingleFlight<>();
+        registerMetrics("users.read", readFlight);
+        registerMetrics("users.by-email", emailFlight);
+        Metrics.getInstance().gauge("users.commands.expired", expiredCommands::sum);
+        if (settings.readBatchingEnabled()) {
+            this.readBatcher = new ReadBatcher<>(
+                    userRepository::readByIds,
+                    settings.readBatchingMaxBatchSize(),
+                    Duration.ofNanos(settings.readBatchingMaxDelay() * 1000),
+                    settings.readBatchingMaxConcurrentBatches()
+            );
+            Metrics metrics = Metrics.getInstance();
+            metrics.gauge("users.read.batching.loads", readBatcher::loads);
+            metrics.gauge("users.read.batching.batches", readBatcher::batches);
+            metrics.gauge("users.read.batching.average-size", readBatcher::averageBatchSize);
+        } else {
+            this.readBatcher = null;
+        }
+        if (settings.emailFilterEnabled() && !UserService.isClustered(system)) {
+            this.emailFilter = CountingBloomFilter.create(
+                    settings.emailFilterExpectedEmails(),
+                    settings.emailFilterFalsePositiveRate(),
+                    settings.emailFilterMaxMemory()
+            );
+            Metrics metrics = Metrics.getInstance();
+            metrics.gauge("users.email-filter.emails", emailFilter::size);
+            metrics.gauge("users.email-filter.memory-bytes", emailFilter::memoryBytes);
+            metrics.gauge("users.email-filter.expected-false-positive-rate", emailFilter::expectedFalsePositiveRate);
+            metrics.gauge("users.email-filter.lookups-skipped", emailLookupsSkipped::sum);
+            metrics.gauge("users.email-filter.false-positives", emailFalsePositives::sum);
+        } else {
+            this.emailFilter = null;
+        }
+        this.auditLog = settings.audit().enabled() ? startAuditLog(system, settings.audit()) : null;
+    }
+
+    // A directory that cannot be written disables the audit trail rather than the service
+    private static AuditLog startAuditLog(ActorSystem<?> system, Settings.Audit settings) {
+        AuditLog auditLog = new AuditLog(
+                Path.of(settings.directory()),
+                settings.queueCapacity(),
+                AuditLog.QueueFullPolicy.fromName(settings.queueFullPolicy()),
+                settings.maxBlockMillis(),
+                settings.maxBatchSize(),
+                settings.segmentBytes(),
+                settings.maxSegments(),
+                settings.fsync(),
+                settings.idleWaitMicros()
+        );
+        try {
+            auditLog.start();
+        } catch (IOException ex) {
+            log.error("Audit log could not be started in " + settings.directory() + ", events are not recorded", ex);
+            return null;
+        }
+        system.getWhenTerminated().thenRun(auditLog::close);
+        Metrics metrics = Metrics.getInstance();
+        metrics.gauge("audit.queued", auditLog::queued);
+        metrics.gauge("audit.enqueued", auditLog::enqueued);
+        metrics.gauge("audit.dropped", auditLog::dropped);
+        metrics.gauge("audit.blocked", auditLog::blocked);
+        metrics.gauge("audit.written", auditLog::written);
+        metrics.gauge("audit.failed", auditLog::failed);
+        metrics.gauge("audit.batches", auditLog::batches);
+        metrics.gauge("audit.average-batch-size", auditLog::averageBatchSize);
+        metrics.gauge("audit.average-commit-latency-micros", auditLog::averageCommitLatencyMicros);
+        metrics.gauge("audit.segments", auditLog::segments);
+        return auditLog;
+    }
+
+    private void audit(AuditEvent.Type type, Long actorId, Long userId, String email) {
+        if (auditLog != null) {
+            auditLog.offer(AuditEvent.now(type, actorId, userId, email));
+        }
+    }
+
+    private static void registerMetrics(String name, SingleFlight<?, ?> flight) {
+        Metrics metrics = Metrics.getInstance();
+        metrics.gauge(name + ".single-flight.requests", flight::requests);
+        metrics.gauge(name + ".single-flight.queries", flight::executions);
+        metrics.gauge(name + ".single-flight.coalescing-ratio", flight::coalescingRatio);
+    }
+
+    public void commandExpired() {
+        expiredCommands.increment();
+    }
+
+    private void forgetReads(User user) {
+        readFlight.forget(user.getId());
+        emailFlight.forget(user.getEmail());
+    }
+
+    private static String emailKey(String email) {
+        return email.trim().toLowerCase(Locale.ROOT);
+    }
+
+    // False only when the email is certainly not registered, true until the filter is loaded
+    private boolean mayBeRegistered(String email) {
+        if (emailFilter == null || !emailFilterLoaded || email == null) {
+            return true;
+        }
+        if (emailFilter.mightContain(emailKey(email))) {
+            return true;
+        }
+        emailLookupsSkipped.increment();
+        return false;
+    }
+
+    // Emails are added before they are written, so that lookups running meanwhile do not skip them
+    private void registerEmail(String email) {
+        if (emailFilter != null && email != null) {
+            emailFilter.add(emailKey(email));
+        }
+    }
+
+    // Undoes a registerEmail whose write failed
+    private void releaseEmail(String email) {
+        if (emailFilter != null && email != null) {
+            emailFilter.remove(emailKey(email));
+        }
+    }
+
+    // Emails of removed users, skipped when the operation started before the scan completed, as the scan may not have added them
+    private void unregisterEmail(String email, boolean loadedAtStart) {
+        if (loadedAtStart) {
+            releaseEmail(email);
+        }
+    }
+
+    // Logins and duplicate checks go to the database until the scan completes, a failed scan leaves it that way
+    private void loadEmailFilter() {
+        if (emailFilter == null) {
+            return;
+        }
+        long startedAt = System.nanoTime();
+        userRepository.forEachEmail(this::registerEmail).whenComplete((count, throwable) -> {
+            if (throwable != null) {
+                log.warn("Email filter could not be loaded, emails are looked up in the database", throwable);
+            } else {
+                emailFilterLoaded = true;
+                log.info(String.format("Email filter loaded with %d emails in %d ms, %d bytes and %d hashes, only valid while this is the single instance writing to the database",
+                        count, (System.nanoTime() - startedAt) / 1_000_000, emailFilter.memoryBytes(), emailFilter.hashes()));
+            }
+        });
+    }
+
+    private Executor persistenceExecutor(ActorSystem<?> system, PersistenceBackend backend, Settings settings) {
+        log.debug("Using " + backend + " persistence backend");
+        return switch (backend) {
+            case ASYNC -> system.dispatchers().lookup(DispatcherSelector.fromConfig("persistence-dispatcher"));
+            case VIRTUAL -> {
+                VirtualThreadExecutor executor = VirtualThreadExecutor.bounded(settings.persistenceMaxConcurrency());
+                properties.onReload(reloaded -> executor.resize(reloaded.persistenceMaxConcurrency()));
+                yield executor;
+            }
+            case BLOCKING -> Runnable::run;
+        };
+    }
+
+    private static Executor hashingExecutor(ActorSystem<?> system, PersistenceBackend backend) {
+        return switch (backend) {
+            case ASYNC -> system.dispatchers().lookup(DispatcherSelector.fromConfig("persistence-dispatcher"));
+            case VIRTUAL -> VirtualThreadExecutor.unbounded();
+            case BLOCKING -> Runnable::run;
+        };
+    }
+
+    private static <R> CompletionStage<R> completed(R value) {
+        return CompletableFuture.completedFuture(value);
+    }
+
+    // Commands run concurrently, so two writes of the same email can both pass the duplicate check,
+    // the unique email key rejects the second one and it is answered as a duplicate
+    private static CompletionStage<UserResponse> emailConflict(UserResponse response, Throwable throwable) {
+        if (throwable == null) {
+            return completed(response);
+        }
+        if (UserRepository.isDuplicateEmail(throwable)) {
+            return completed(new UserResponse(ResponseType.EMAIL_NOT_AVAILABLE));
+        }
+        return CompletableFuture.failedFuture(throwable);
+    }
+
+    public CompletionStage<Response> seed() {
+        CompletionStage<Role> seededRoles = roleRepository.count().thenCompose(count -> {
+            if (count == 0) {
+                return roleRepository.create(new Role(Role.ADMINISTRATOR))
+                        .thenCompose(administratorRole -> roleRepository.create(new Role(Role.GUEST))
+                                .thenApply(guestRole -> administratorRole));
+            }
+            return CompletableFuture.<Role>completedFuture(null);
+        });
+        CompletionStage<User> seededUsers = seededRoles.thenCompose(seededAdministratorRole -> userRepository.count().thenCompose(count -> {
+            if (count != 0) {
+                return CompletableFuture.<User>completedFuture(null);
+            }
+            CompletionStage<Role> administratorRole = (seededAdministratorRole != null)
+                    ? completed(seededAdministratorRole)
+                    : roleRepository.getByName(Role.ADMINISTRATOR);
+            return administratorRole.thenComposeAsync(role -> {
+                Settings settings = properties.current();
+                User administrator = new User(
+                        settings.defaultRootEmail(),
+                        BCrypt.withDefaults().hashToString(settings.defaultHashRound(), settings.defaultRootPassword().toCharArray()),
+                        settings.defaultRootFirstName(),
+                        settings.defaultRootLastName(),
+                        List.of(role)
+                );
+                return userRepository.create(administrator);
+            }, hashingExecutor);
+        }));
+        return seededUsers.thenApply(administrator -> {
+            loadEmailFilter();
+            return new Response(ResponseType.OK);
+        });
+    }
+
+    // Roles only change when seeding, the last ones read keep being served while the database is unavailable
+    public CompletionStage<RolesResponse> roles() {
+        List<Role> cached = cachedRoles;
+        if (cached != null && circuitBreaker.isOpen()) {
+            return completed(new RolesResponse(ResponseType.OK, cached));
+        }
+        return roleRepository.readAll().handle((roles, throwable) -> {
+            if (throwable == null) {
+                cachedRoles = roles;
+                return new RolesResponse(ResponseType.OK, roles);
+            }
+            if (cached != null) {
+                return new RolesResponse(ResponseType.OK, cached);
+            }
+            throw new CompletionException(throwable);
+        });
+    }
+
+    public CompletionStage<LoginResponse> login(Login login) {
+        if (!mayBeRegistered(login.email())) {
+            audit(AuditEvent.Type.LOGIN_FAILED, null, null, login.email());
+            return completed(new LoginResponse(ResponseType.UNAUTHORIZED));
+        }
+        boolean filtered = emailFilterLoaded;
+        return emailFlight.execute(login.email(), () -> userRepository.getByEmail(login.email())).thenApplyAsync(user -> {
+            if (user == null && filtered) {
+                emailFalsePositives.increment();
+            }
+            if (user != null) {
+                BCrypt.Result result = tracing.inSpan("bcrypt.verify", () -> BCrypt.verifyer().verify(login.password().toCharArray(), user.getPassword()));
+                if (result.verified) {
+                    try {
+                        Settings settings = properties.current();
+                        Algorithm algorithm = Algorithm.HMAC256(settings.securityTokenKey());
+                        long currentTimestamp = Instant.now().toEpochMilli();
+                        long expirationTimestamp = currentTimestamp + settings.securityValidity();
+                        String token = JWT.create()
+                                .withIssuer("XApps")
+                                .withJWTId(UUID.randomUUID().toString())
+                                .withSubject(objectMapper.writeValueAsString(user))
+                                .withIssuedAt(new Date(currentTimestamp))
+                                .withExpiresAt(new Date(expirationTimestamp))
+                                .sign(algorithm);
+                        audit(AuditEvent.Type.LOGIN, user.getId(), user.getId(), user.getEmail());
+                        return new LoginResponse(ResponseType.OK, new Authentication(token, expirationTimestamp));
+                    } catch (JWTCreationException | JsonProcessingException e) {
+                        log.error("Exception captured");
+                        return new LoginResponse(ResponseType.UNAUTHORIZED);
+                    }
+                } else {
+                    audit(AuditEvent.Type.LOGIN_FAILED, null, user.getId(), login.email());
+                    return new LoginResponse(ResponseType.UNAUTHORIZED);
+                }
+            } else {
+                audit(AuditEvent.Type.LOGIN_FAILED, null, null, login.email());
+                return new LoginResponse(ResponseType.UNAUTHORIZED);
+            }
+        }, hashingExecutor);
+    }
+
+    public CompletionStage<UserResponse> create(User user, Long actorId) {
+        CompletionStage<User> duplicityCheck = mayBeRegistered(user.getEmail())
+                ? userRepository.getByEmailFromPrimary(user.getEmail())
+                : completed(null);
+        return duplicityCheck.thenComposeAsync(emailDuplicity -> {
+            if (emailDuplicity != null) {
+                return completed(new UserResponse(ResponseType.EMAIL_NOT_AVAILABLE));
+            }
+            User newUser = user;
+            newUser.setPassword(tracing.inSpan("bcrypt.hash", () -> BCrypt.withDefaults().hashToString(properties.current().defaultHashRound(), newUser.getPassword().toCharArray())));
+            CompletionStage<List<Role>> requestedRoles = CompletableFuture.completedFuture(null);
+            if (newUser.getRoles() != null && !newUser.getRoles().isEmpty()) {
+                requestedRoles = roleRepository.getByNames(newUser.getRoles().stream().map(Role::getName).collect(Collectors.toList()));
+            }
+            return requestedRoles
+                    .thenCompose(roles -> {
+                        if (roles == null || roles.isEmpty()) {
+                            return roleRepository.getByName(Role.GUEST).thenApply(guestRole -> List.of(guestRole));
+                        }
+                        return completed(roles);
+                    })
+                    .thenCompose(roles -> {
+                        newUser.setRoles(roles);
+                        registerEmail(newUser.getEmail());
+                        return userRepository.create(newUser).whenComplete((createdUser, throwable) -> {
+                            if (throwable != null) {
+                                releaseEmail(newUser.getEmail());
+                            }
+                        });
+                    })
+                    .thenApply(createdUser -> {
+                        forgetReads(createdUser);
+                        createdUser.setPassword("<<protected>>");
+                        changeFeed.publish(UserChange.Type.CREATED, createdUser.getId(), createdUser);
+                        audit(AuditEvent.Type.CREATED, actorId, createdUser.getId(), createdUser.getEmail());
+                        return new UserResponse(ResponseType.OK, createdUser);
+                    });
+        }, hashingExecutor).handle(UserOperations::emailConflict).thenCompose(Function.identity());
+    }
+
+    public CompletionStage<UsersResponse> readAll() {
+        return userRepository.readAll().thenApply(allUsers -> {
+            List<User> users = allUsers.stream().map((it) -> {
+                it.setPassword("<<protected>>");
+                return it;
+            }).toList();
+            return new UsersResponse(ResponseType.OK, users);
+        });
+    }
+
+    public CompletionStage<UsersResponse> search(UserSearch search) {
+        return userRepository.search(search).thenApply(foundUsers -> {
+            List<User> users = foundUsers.stream().map((it) -> {
+                it.setPassword("<<protected>>");
+                return it;
+            }).toList();
+            Long next = (users.size() == search.limit()) ? users.get(users.size() - 1).getId() : null;
+            return new UsersResponse(ResponseType.OK, users, next);
+        });
+    }
+
+    public CompletionStage<UsersFieldsResponse> readAllFields(UserSearch search, UserFields fields) {
+        return userRepository.searchIds(search).thenCompose(ids -> userRepository.readFieldsIn(ids, fields).thenApply(users -> {
+            Long next = (ids.size() == search.limit()) ? ids.get(ids.size() - 1) : null;
+            return new UsersFieldsResponse(ResponseType.OK, users, next);
+        }));
+    }
+
+    public CompletionStage<UserFieldsResponse> readFields(Long id, UserFields fields) {
+        return userRepository.readFields(id, fields).thenApply(user -> {
+            if (user != null) {
+                return new UserFieldsResponse(ResponseType.OK, user);
+            } else {
+                return new UserFieldsResponse(ResponseType.NOT_FOUND);
+            }
+        });
+    }
+
+    public CompletionStage<UserResponse> read(Long id) {
+        return readFlight.execute(id, () -> readBatcher != null ? readBatcher.load(id) : userRepository.read(id)).thenApply(user -> {
+            if (user != null) {
+                return new UserResponse(ResponseType.OK, user);
+            } else {
+                return new UserResponse(ResponseType.NOT_FOUND);
+            }
+        });
+    }
+
+    public CompletionStage<UserResponse> update(Long id, User userData, Long actorId) {
+        boolean filterLoaded = emailFilterLoaded;
+        return userRepository.readFromPrimary(id).thenCompose(user -> {
+            if (user == null) {
+                return completed(new UserResponse(ResponseType.NOT_FOUND));
+            }
+            String previousEmail = user.getEmail();
+            CompletionStage<User> duplicityCheck = mayBeRegistered(userData.getEmail())
+                    ? userRepository.getByNotIdAndEmail(id, userData.getEmail())
+                    : completed(null);
+            return duplicityCheck.thenComposeAsync(duplicity -> {
+                if (duplicity != null) {
+                    return completed(new UserResponse(ResponseType.EMAIL_NOT_AVAILABLE));
+                }
+                if(userData.getEmail() != null)
+                    user.setEmail(userData.getEmail());
+                if (userData.getPassword() != null)
+                    user.setPassword(tracing.inSpan("bcrypt.hash", () -> BCrypt.withDefaults().hashToString(properties.current().defaultHashRound(), userData.getPassword().toCharArray())));
+                user.setFirstName(userData.getFirstName());
+                user.setLastName(userData.getLastName());
+                CompletionStage<User> rolesAssigned = completed(user);
+                if (userData.getRoles() != null && !userData.getRoles().isEmpty()) {
+                    rolesAssigned = roleRepository.getByNames(userData.getRoles().stream().map(Role::getName).collect(Collectors.toList()))
+                            .thenApply(roles -> {
+                                user.setRoles(roles);
+                                return user;
+                            });
+                }
+                registerEmail(userData.getEmail());
+                return rolesAssigned
+                        .thenCompose(updating -> userRepository.update(updating, previousEmail))
+                        .whenComplete((updatedUser, throwable) -> {
+                            if (throwable != null) {
+                                releaseEmail(userData.getEmail());
+                            } else if (userData.getEmail() != null) {
+                                unregisterEmail(previousEmail, filterLoaded);
+                            }
+                        })
+                        .thenApply(updatedUser -> {
+                            emailFlight.forget(previousEmail);
+                            forgetReads(updatedUser);
+                            updatedUser.setPassword("<<protected>>");
+                            changeFeed.publish(UserChange.Type.UPDATED, updatedUser.getId(), updatedUser);
+                            audit(AuditEvent.Type.UPDATED, actorId, updatedUser.getId(), updatedUser.getEmail());
+                            return new UserResponse(ResponseType.OK, updatedUser);
+                        });
+            }, hashingExecutor);
+        }).handle(UserOperations::emailConflict).thenCompose(Function.identity());
+    }
+
+    public CompletionStage<Response> delete(Long id, Long actorId) {
+        boolean filterLoaded = emailFilterLoaded;
+        return userRepository.readFromPrimary(id).thenCompose(user -> {
+            if (user != null) {
+                return userRepository.delete(user).thenApply(deletedUser -> {
+                    unregisterEmail(deletedUser.getEmail(), filterLoaded);
+                    forgetReads(deletedUser);
+                    changeFeed.publish(UserChange.Type.DELETED, deletedUser.getId(), null);
+                    audit(AuditEvent.Type.DELETED, actorId, deletedUser.getId(), deletedUser.getEmail());
+                    return new Response(ResponseType.OK);
+                });
+            } else {
+                return completed(new Response(ResponseType.NOT_FOUND));
+            }
+        });
+    }
+
+    public Source<UserChange, NotUsed> changes(Optional<Long> lastEventId) {
+        return changeFeed.subscribe(lastEventId);
+    }
+}
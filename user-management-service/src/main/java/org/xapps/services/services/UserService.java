@@ -1,50 +1,66 @@
 package org.xapps.services.services;
 
 import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
 import akka.actor.typed.Behavior;
 import akka.actor.typed.javadsl.AbstractBehavior;
 import akka.actor.typed.javadsl.ActorContext;
 import akka.actor.typed.javadsl.Behaviors;
 import akka.actor.typed.javadsl.Receive;
-import at.favre.lib.crypto.bcrypt.BCrypt;
-import com.auth0.jwt.JWT;
-import com.auth0.jwt.algorithms.Algorithm;
-import com.auth0.jwt.exceptions.JWTCreationException;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import akka.cluster.sharding.typed.javadsl.ClusterSharding;
+import akka.cluster.sharding.typed.javadsl.Entity;
+import akka.pattern.CircuitBreakerOpenException;
 import lombok.extern.slf4j.Slf4j;
-import org.xapps.services.entities.Role;
 import org.xapps.services.entities.User;
-import org.xapps.services.repositories.RoleRepository;
-import org.xapps.services.repositories.UserRepository;
 import org.xapps.services.services.requests.Login;
+import org.xapps.services.services.requests.UserFields;
+import org.xapps.services.services.requests.UserSearch;
 import org.xapps.services.services.responses.*;
+import org.xapps.services.services.utils.CborSerializable;
+import org.xapps.services.services.utils.Deadlines;
 import org.xapps.services.services.utils.PropertiesProvider;
+import org.xapps.services.services.utils.TraceContext;
+import org.xapps.services.services.utils.Tracing;
 
 import java.io.Serial;
-import java.io.Serializable;
-import java.time.Instant;
-import java.util.Date;
-import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Optional;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Supplier;
 
 @Slf4j
 public class UserService extends AbstractBehavior<UserService.Command> {
-    private final ObjectMapper objectMapper;
-    private final UserRepository userRepository;
-    private final RoleRepository roleRepository;
-    private final PropertiesProvider properties;
+    private final UserOperations operations;
+    private final ClusterSharding sharding;
+    private final Tracing tracing;
 
-    public interface Command extends Serializable {
+    public interface Command extends CborSerializable {
+        // Trace of the request that sent the command, null when it is not traced
+        default TraceContext trace() {
+            return null;
+        }
+
+        // Epoch milliseconds after which the sender stopped waiting for the response
+        default long deadline() {
+            return Deadlines.NONE;
+        }
     }
 
-    public record SeedCommand() implements Command {
+    public record SeedCommand(
+            ActorRef<Response> replyTo
+    ) implements Command {
         @Serial
         private static final long serialVersionUID = 324723847875L;
+
+        public SeedCommand() {
+            this(null);
+        }
     }
 
     public record RolesCommand(
-            ActorRef<RolesResponse> replyTo
+            ActorRef<RolesResponse> replyTo,
+            TraceContext trace,
+            long deadline
     ) implements Command {
         @Serial
         private static final long serialVersionUID = 39983483742934L;
@@ -52,215 +68,299 @@ public class UserService extends AbstractBehavior<UserService.Command> {
 
     public record LoginCommand(
             Login login,
-            ActorRef<LoginResponse> replyTo
+            ActorRef<LoginResponse> replyTo,
+            TraceContext trace,
+            long deadline
     ) implements Command {
         @Serial
         private static final long serialVersionUID = 7498234832749L;
     }
 
+    // actorId is the id of the authenticated caller, recorded in the audit log, null for anonymous and internal callers
     public record CreateCommand(
             User user,
-            ActorRef<UserResponse> replyTo
+            Long actorId,
+            ActorRef<UserResponse> replyTo,
+            TraceContext trace,
+            long deadline
     ) implements Command {
         @Serial
         private static final long serialVersionUID = 384358284893423L;
+
+        public CreateCommand(User user, ActorRef<UserResponse> replyTo) {
+            this(user, null, replyTo, null, Deadlines.NONE);
+        }
     }
 
     public record ReadAllCommand(
-            ActorRef<UsersResponse> replyTo
+            ActorRef<UsersResponse> replyTo,
+            TraceContext trace,
+            long deadline
     ) implements Command {
         @Serial
         private static final long serialVersionUID = 1283238954984L;
     }
 
+    public record SearchCommand(
+            UserSearch search,
+            ActorRef<UsersResponse> replyTo,
+            TraceContext trace,
+            long deadline
+    ) implements Command {
+        @Serial
+        private static final long serialVersionUID = 5573920184736251L;
+    }
+
+    public record ReadAllFieldsCommand(
+            UserSearch search,
+            UserFields fields,
+            ActorRef<UsersFieldsResponse> replyTo,
+            TraceContext trace,
+            long deadline
+    ) implements Command {
+        @Serial
+        private static final long serialVersionUID = 2098347561203984L;
+    }
+
     public record ReadCommand(
             Long id,
-            ActorRef<UserResponse> replyTo
+            ActorRef<UserResponse> replyTo,
+            TraceContext trace,
+            long deadline
     ) implements Command {
         @Serial
         private static final long serialVersionUID = 123548543985485L;
+
+        public ReadCommand(Long id, ActorRef<UserResponse> replyTo) {
+            this(id, replyTo, null, Deadlines.NONE);
+        }
+    }
+
+    public record ReadFieldsCommand(
+            Long id,
+            UserFields fields,
+            ActorRef<UserFieldsResponse> replyTo,
+            TraceContext trace,
+            long deadline
+    ) implements Command {
+        @Serial
+        private static final long serialVersionUID = 7712093846512093L;
     }
 
     public record UpdateCommand(
             Long id,
             User user,
-            ActorRef<UserResponse> replyTo
+            Long actorId,
+            ActorRef<UserResponse> replyTo,
+            TraceContext trace,
+            long deadline
     ) implements Command {
         @Serial
         private static final long serialVersionUID = 545238243897L;
+
+        public UpdateCommand(Long id, User user, ActorRef<UserResponse> replyTo) {
+            this(id, user, null, replyTo, null, Deadlines.NONE);
+        }
+    }
+
+    public record ChangesCommand(
+            Optional<Long> lastEventId,
+            ActorRef<ChangesResponse> replyTo
+    ) implements Command {
+        @Serial
+        private static final long serialVersionUID = 7723419283745021L;
     }
 
     public record DeleteCommand(
             Long id,
-            ActorRef<Response> replyTo
+            Long actorId,
+            ActorRef<Response> replyTo,
+            TraceContext trace,
+            long deadline
     ) implements Command {
         @Serial
         private static final long serialVersionUID = 89743274374875L;
+
+        public DeleteCommand(Long id, ActorRef<Response> replyTo) {
+            this(id, null, replyTo, null, Deadlines.NONE);
+        }
+    }
+
+    private record Reply<R>(
+            ActorRef<R> replyTo,
+            R response
+    ) implements Command {
+        @Serial
+        private static final long serialVersionUID = 61927384512093L;
+
+        private void deliver() {
+            replyTo.tell(response);
+        }
     }
 
     private UserService(ActorContext<Command> context) {
         super(context);
-        this.objectMapper = new ObjectMapper();
-        this.userRepository = new UserRepository();
-        this.roleRepository = new RoleRepository();
-        this.properties = PropertiesProvider.getInstance();
+        this.operations = new UserOperations(context.getSystem());
+        this.tracing = Tracing.getInstance();
+        if (isClustered(context.getSystem())) {
+            int stashCapacity = PropertiesProvider.getInstance().current().clusterEntityStashCapacity();
+            this.sharding = ClusterSharding.get(context.getSystem());
+            this.sharding.init(Entity.of(UserEntity.TYPE_KEY, entityContext ->
+                    UserEntity.create(Long.valueOf(entityContext.getEntityId()), operations, stashCapacity)));
+            log.debug("Cluster mode, user commands are routed to sharded entities");
+        } else {
+            this.sharding = null;
+        }
     }
 
     public static Behavior<Command> create() {
         return Behaviors.setup(UserService::new);
     }
 
+    public static boolean isClustered(ActorSystem<?> system) {
+        return "cluster".equals(system.settings().config().getString("akka.actor.provider"));
+    }
+
+    private <R> void reply(CompletionStage<R> response, ActorRef<R> replyTo, R fallback) {
+        getContext().pipeToSelf(response, (value, throwable) -> {
+            if (throwable instanceof CircuitBreakerOpenException || throwable instanceof CompletionException && throwable.getCause() instanceof CircuitBreakerOpenException) {
+                log.debug("Database circuit breaker open, replying with fallback");
+                return new Reply<>(replyTo, fallback);
+            }
+            if (throwable != null) {
+                log.error("Exception captured", throwable);
+                return new Reply<>(replyTo, fallback);
+            }
+            return new Reply<>(replyTo, value);
+        });
+    }
+
+    // Runs the handler within the trace of the command, with the command deadline bounding its queries
+    private <R> CompletionStage<R> handle(String operation, Command command, Supplier<CompletionStage<R>> handler) {
+        return Deadlines.withDeadline(command.deadline(), () -> tracing.handle("UserService." + operation, command.trace(), handler));
+    }
+
+    private boolean isExpired(Command command) {
+        return Deadlines.isExpired(command.deadline());
+    }
+
+    // The sender already gave up on the response, doing the work would only add load
+    private Behavior<Command> dropExpired(Command command) {
+        operations.commandExpired();
+        log.debug("Dropping expired " + command.getClass().getSimpleName());
+        return Behaviors.same();
+    }
+
+    private void forward(Long userId, Command command) {
+        sharding.entityRefFor(UserEntity.TYPE_KEY, String.valueOf(userId)).tell(command);
+    }
+
     @Override
     public Receive<Command> createReceive() {
         return newReceiveBuilder()
+                .onMessage(Command.class, this::isExpired, this::dropExpired)
                 .onMessage(SeedCommand.class, this::seed)
                 .onMessage(RolesCommand.class, this::roles)
                 .onMessage(LoginCommand.class, this::login)
                 .onMessage(CreateCommand.class, this::create)
                 .onMessage(ReadAllCommand.class, this::readAll)
+                .onMessage(SearchCommand.class, this::search)
+                .onMessage(ReadAllFieldsCommand.class, this::readAllFields)
                 .onMessage(ReadCommand.class, this::read)
+                .onMessage(ReadFieldsCommand.class, this::readFields)
                 .onMessage(UpdateCommand.class, this::update)
                 .onMessage(DeleteCommand.class, this::delete)
+                .onMessage(ChangesCommand.class, this::changes)
+                .onMessage(Reply.class, this::onReply)
                 .build();
     }
 
+    private Behavior<Command> onReply(Reply<?> reply) {
+        reply.deliver();
+        return Behaviors.same();
+    }
+
     private Behavior<Command> seed(SeedCommand command) {
-        Role administratorRole = null;
-        if (roleRepository.count() == 0) {
-            administratorRole = new Role(Role.ADMINISTRATOR);
-            administratorRole = roleRepository.create(administratorRole);
-            Role guestRole = new Role(Role.GUEST);
-            guestRole = roleRepository.create(guestRole);
-        }
-        if (userRepository.count() == 0) {
-            if (administratorRole == null) {
-                administratorRole = roleRepository.getByName(Role.ADMINISTRATOR);
-            }
-            User administrator = new User(
-                    properties.defaultRootEmail(),
-                    BCrypt.withDefaults().hashToString(properties.defaultHashRound(), properties.defaultRootPassword().toCharArray()),
-                    properties.defaultRootFirstName(),
-                    properties.defaultRootLastName(),
-                    List.of(administratorRole)
-            );
-            userRepository.create(administrator);
+        CompletionStage<Response> response = operations.seed();
+        if (command.replyTo != null) {
+            reply(response, command.replyTo, new Response(ResponseType.UNKNWON));
+        } else {
+            response.whenComplete((seeded, throwable) -> {
+                if (throwable != null) {
+                    log.error("Exception captured", throwable);
+                }
+            });
         }
         return Behaviors.same();
     }
 
     private Behavior<Command> roles(RolesCommand command) {
-        List<Role> roles = roleRepository.readAll();
-        command.replyTo.tell(new RolesResponse(ResponseType.OK, roles));
+        reply(handle("roles", command, () -> operations.roles()), command.replyTo, new RolesResponse(ResponseType.UNKNWON));
         return Behaviors.same();
     }
 
     private Behavior<Command> login(LoginCommand command) {
-        User user = userRepository.getByEmail(command.login.email());
-        if (user != null) {
-            BCrypt.Result result = BCrypt.verifyer().verify(command.login.password().toCharArray(), user.getPassword());
-            if (result.verified) {
-                try {
-                    Algorithm algorithm = Algorithm.HMAC256(properties.securityTokenKey());
-                    long currentTimestamp = Instant.now().toEpochMilli();
-                    long expirationTimestamp = currentTimestamp + properties.securityValidity();
-                    String token = JWT.create()
-                            .withIssuer("XApps")
-                            .withSubject(objectMapper.writeValueAsString(user))
-                            .withIssuedAt(new Date(currentTimestamp))
-                            .withExpiresAt(new Date(expirationTimestamp))
-                            .sign(algorithm);
-                    command.replyTo.tell(new LoginResponse(ResponseType.OK, new Authentication(token, expirationTimestamp)));
-                } catch (JWTCreationException | JsonProcessingException e) {
-                    log.error("Exception captured");
-                    command.replyTo.tell(new LoginResponse(ResponseType.UNAUTHORIZED));
-                }
-            } else {
-                command.replyTo.tell(new LoginResponse(ResponseType.UNAUTHORIZED));
-            }
-        } else {
-            command.replyTo.tell(new LoginResponse(ResponseType.UNAUTHORIZED));
-        }
+        reply(handle("login", command, () -> operations.login(command.login)), command.replyTo, new LoginResponse(ResponseType.UNKNWON));
         return Behaviors.same();
     }
 
     private Behavior<Command> create(CreateCommand command) {
-        User emailDuplicity = userRepository.getByEmail(command.user.getEmail());
-        if (emailDuplicity == null) {
-            User newUser = command.user;
-            newUser.setPassword(BCrypt.withDefaults().hashToString(12, newUser.getPassword().toCharArray()));
-            List<Role> roles = null;
-            if (newUser.getRoles() != null && !newUser.getRoles().isEmpty()) {
-                roles = roleRepository.getByNames(newUser.getRoles().stream().map(Role::getName).collect(Collectors.toList()));
-            }
-            if(roles == null || roles.isEmpty()) {
-                Role guestRole = roleRepository.getByName(Role.GUEST);
-                roles = List.of(guestRole);
-            }
-            newUser.setRoles(roles);
-            userRepository.create(newUser);
-            newUser.setPassword("<<protected>>");
-            command.replyTo.tell(new UserResponse(ResponseType.OK, newUser));
-        } else {
-            command.replyTo.tell(new UserResponse(ResponseType.EMAIL_NOT_AVAILABLE));
-        }
+        reply(handle("create", command, () -> operations.create(command.user, command.actorId)), command.replyTo, new UserResponse(ResponseType.UNKNWON));
         return Behaviors.same();
     }
 
     private Behavior<Command> readAll(ReadAllCommand command) {
-        List<User> users = userRepository.readAll().stream().map((it) -> {
-            it.setPassword("<<protected>>");
-            return it;
-        }).toList();
-        command.replyTo.tell(new UsersResponse(ResponseType.OK, users));
+        reply(handle("readAll", command, () -> operations.readAll()), command.replyTo, new UsersResponse(ResponseType.UNKNWON));
+        return Behaviors.same();
+    }
+
+    private Behavior<Command> search(SearchCommand command) {
+        reply(handle("search", command, () -> operations.search(command.search)), command.replyTo, new UsersResponse(ResponseType.UNKNWON));
         return Behaviors.same();
     }
 
     private Behavior<Command> read(ReadCommand command) {
-        User user = userRepository.read(command.id);
-        if (user != null) {
-            command.replyTo.tell(new UserResponse(ResponseType.OK, user));
+        if (sharding != null) {
+            forward(command.id, command);
         } else {
-            command.replyTo.tell(new UserResponse(ResponseType.NOT_FOUND));
+            reply(handle("read", command, () -> operations.read(command.id)), command.replyTo, new UserResponse(ResponseType.UNKNWON));
         }
         return Behaviors.same();
     }
 
+    // Like search, pages of projections are read from the database by the local node also in cluster mode,
+    // they bypass the sharded entities and may trail an update acknowledged by another node by the replica lag
+    private Behavior<Command> readAllFields(ReadAllFieldsCommand command) {
+        reply(handle("readAllFields", command, () -> operations.readAllFields(command.search, command.fields)), command.replyTo, new UsersFieldsResponse(ResponseType.UNKNWON));
+        return Behaviors.same();
+    }
+
+    // Projections are answered by the local node also in cluster mode, they bypass the entity cache
+    private Behavior<Command> readFields(ReadFieldsCommand command) {
+        reply(handle("readFields", command, () -> operations.readFields(command.id, command.fields)), command.replyTo, new UserFieldsResponse(ResponseType.UNKNWON));
+        return Behaviors.same();
+    }
+
     private Behavior<Command> update(UpdateCommand command) {
-        User user = userRepository.read(command.id);
-        if (user != null) {
-            User duplicity = userRepository.getByNotIdAndEmail(command.id, command.user.getEmail());
-            if (duplicity == null) {
-                User newUserData = command.user;
-                if(command.user.getEmail() != null)
-                    user.setEmail(command.user.getEmail());
-                if (command.user.getPassword() != null)
-                    user.setPassword(BCrypt.withDefaults().hashToString(12, newUserData.getPassword().toCharArray()));
-                user.setFirstName(command.user.getFirstName());
-                user.setLastName(command.user.getLastName());
-                if (command.user.getRoles() != null && !command.user.getRoles().isEmpty()) {
-                    List<Role> roles = roleRepository.getByNames(command.user.getRoles().stream().map(Role::getName).collect(Collectors.toList()));
-                    user.setRoles(roles);
-                }
-                userRepository.update(user);
-                user.setPassword("<<protected>>");
-                command.replyTo.tell(new UserResponse(ResponseType.OK, user));
-            } else {
-                command.replyTo.tell(new UserResponse(ResponseType.EMAIL_NOT_AVAILABLE));
-            }
+        if (sharding != null) {
+            forward(command.id, command);
         } else {
-            command.replyTo.tell(new UserResponse(ResponseType.NOT_FOUND));
+            reply(handle("update", command, () -> operations.update(command.id, command.user, command.actorId)), command.replyTo, new UserResponse(ResponseType.UNKNWON));
         }
         return Behaviors.same();
     }
 
     private Behavior<Command> delete(DeleteCommand command) {
-        User user = userRepository.read(command.id);
-        if (user != null) {
-            userRepository.delete(user);
-            command.replyTo.tell(new Response(ResponseType.OK));
+        if (sharding != null) {
+            forward(command.id, command);
         } else {
-            command.replyTo.tell(new Response(ResponseType.NOT_FOUND));
+            reply(handle("delete", command, () -> operations.delete(command.id, command.actorId)), command.replyTo, new Response(ResponseType.UNKNWON));
         }
         return Behaviors.same();
     }
+
+    private Behavior<Command> changes(ChangesCommand command) {
+        command.replyTo.tell(new ChangesResponse(ResponseType.OK, operations.changes(command.lastEventId)));
+        return Behaviors.same();
+    }
 }
@@ -0,0 +1,34 @@
+package org.xapps.services.services.audit;
+
+/**
+ * One line of the audit trail. actorId is the authenticated caller that made the change, the user itself for
+ * logins and null for anonymous or internal callers. Emails are cut at MAX_EMAIL_LENGTH, failed logins carry
+ * whatever the client sent.
+ */
+public record AuditEvent(
+        Long timestamp,
+        Type type,
+        Long actorId,
+        Long userId,
+        String email
+) {
+    public static final int MAX_EMAIL_LENGTH = 254;
+
+    public enum Type {
+        CREATED,
+        UPDATED,
+        DELETED,
+        LOGIN,
+        LOGIN_FAILED
+    }
+
+    public AuditEvent {
+        if (email != null && email.length() > MAX_EMAIL_LENGTH) {
+            email = email.substring(0, MAX_EMAIL_LENGTH);
+        }
+    }
+
+    public static AuditEvent now(Type type, Long actorId, Long userId, String email) {
+        return new AuditEvent(System.currentTimeMillis(), type, actorId, userId, email);
+    }
+}
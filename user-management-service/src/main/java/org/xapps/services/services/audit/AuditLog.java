@@ -0,0 +1,430 @@
+package org.xapps.services.services.audit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * Append-only audit trail written by a single background thread.
+ * Callers enqueue events into a bounded lock-free ring, producers claim slots with compare-and-set on the tail
+ * and the writer, its only consumer, frees them. The writer drains whatever is queued into one buffer, appends
+ * it to the current segment with one write and one fsync, so concurrent events share the cost of a commit.
+ * Segments are named audit-<sequence>.log, a new one is started once the current one reaches segmentBytes and
+ * on every start, existing segments are never reopened. When the ring is full, the caller waits for the writer up to
+ * maxBlockMillis or, under the DROP policy, not at all, then the event is dropped, counted and the drops are logged
+ * by the writer. An idle writer parks until a producer wakes it up, idleWaitMicros only bounds its sleep.
+ * A log owns its directory, it holds a lock on audit.lock from start to close and fails to start while another
+ * process or log holds it, so every node needs a directory of its own.
+ */
+@Slf4j
+public class AuditLog implements AutoCloseable {
+    private static final String SEGMENT_PREFIX = "audit-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String LOCK_FILE = "audit.lock";
+    private static final long FULL_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+    private static final long DROP_REPORT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    public enum QueueFullPolicy {
+        BLOCK,
+        DROP;
+
+        public static QueueFullPolicy fromName(String name) {
+            if (name == null || name.isBlank()) {
+                return BLOCK;
+            }
+            return QueueFullPolicy.valueOf(name.trim().toUpperCase());
+        }
+    }
+
+    private record Entry(AuditEvent event, long enqueuedAt) {
+    }
+
+    // Exposes the backing array so a batch is written without copying it
+    private static class Buffer extends ByteArrayOutputStream {
+        private Buffer(int size) {
+            super(size);
+        }
+
+        private ByteBuffer view() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+    // Producers between their check of closed and the publication of their entry, the writer waits for them
+    private final AtomicInteger offering = new AtomicInteger();
+    private final Path directory;
+    private final QueueFullPolicy queueFullPolicy;
+    private final long maxBlockNanos;
+    private final int maxBatchSize;
+    private final long segmentBytes;
+    private final int maxSegments;
+    private final boolean fsync;
+    private final long idleWaitNanos;
+    private final ObjectWriter writer = new ObjectMapper().writerFor(AuditEvent.class);
+    private final Buffer buffer = new Buffer(64 * 1024);
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder blocked = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder syncs = new LongAdder();
+    private final LongAdder segments = new LongAdder();
+    private final LongAdder commitLatencyNanos = new LongAdder();
+    private volatile boolean closed;
+    // Set by the writer before it parks on an empty ring, producers unpark it after publishing
+    private volatile boolean idle;
+    private volatile Thread writerThread;
+    private FileChannel channel;
+    private FileChannel lockChannel;
+    private long segmentSize;
+    private long segmentSequence;
+    private long reportedDrops;
+    private long lastDropReport = System.nanoTime() - DROP_REPORT_NANOS;
+
+    public AuditLog(Path directory, int queueCapacity, QueueFullPolicy queueFullPolicy, long maxBlockMillis, int maxBatchSize, long segmentBytes, int maxSegments, boolean fsync, long idleWaitMicros) {
+        if (queueCapacity <= 0 || maxBatchSize <= 0 || segmentBytes <= 0) {
+            throw new IllegalArgumentException("Queue capacity, batch size and segment size must be positive");
+        }
+        int capacity = Integer.highestOneBit(Math.min(queueCapacity, 1 << 30));
+        if (capacity < queueCapacity) {
+            capacity <<= 1;
+        }
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+        this.directory = directory;
+        this.queueFullPolicy = queueFullPolicy;
+        this.maxBlockNanos = TimeUnit.MILLISECONDS.toNanos(maxBlockMillis);
+        this.maxBatchSize = maxBatchSize;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+        this.fsync = fsync;
+        this.idleWaitNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(1, idleWaitMicros));
+    }
+
+    public synchronized void start() throws IOException {
+        if (writerThread != null) {
+            return;
+        }
+        Files.createDirectories(directory);
+        lock();
+        try {
+            segmentSequence = segmentPaths().stream().mapToLong(AuditLog::sequenceOf).max().orElse(0);
+        } catch (IOException ex) {
+            unlock();
+            throw ex;
+        }
+        writerThread = new Thread(this::run, "audit-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    private void lock() throws IOException {
+        FileChannel lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException ex) {
+            lock = null;
+        }
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException("Audit directory " + directory + " is in use by another audit log");
+        }
+        this.lockChannel = lockChannel;
+    }
+
+    // Closing the channel releases the lock
+    private void unlock() {
+        try {
+            lockChannel.close();
+        } catch (IOException ex) {
+            log.warn("Audit directory lock could not be released", ex);
+        }
+    }
+
+    /**
+     * Enqueues the event without waiting for it to be written.
+     * False when it was dropped, because the ring was full under the DROP policy or for longer than maxBlockMillis,
+     * or the log is closed.
+     */
+    public boolean offer(AuditEvent event) {
+        // Registered before closed is read, so a writer that saw no producer registered after setting closed
+        // can only miss producers that will see closed and drop their event
+        offering.incrementAndGet();
+        try {
+            long claimed;
+            long waitingSince = 0;
+            boolean waited = false;
+            while (true) {
+                if (closed) {
+                    dropped.increment();
+                    return false;
+                }
+                claimed = tail.get();
+                if (claimed - head.get() >= slots.length()) {
+                    if (queueFullPolicy == QueueFullPolicy.DROP) {
+                        dropped.increment();
+                        return false;
+                    }
+                    if (!waited) {
+                        blocked.increment();
+                        waited = true;
+                        waitingSince = System.nanoTime();
+                    } else if (System.nanoTime() - waitingSince >= maxBlockNanos) {
+                        dropped.increment();
+                        return false;
+                    }
+                    LockSupport.parkNanos(FULL_WAIT_NANOS);
+                } else if (tail.compareAndSet(claimed, claimed + 1)) {
+                    break;
+                }
+            }
+            // A volatile write, ordered before the read of idle, see run
+            slots.set((int) (claimed & mask), new Entry(event, System.nanoTime()));
+            enqueued.increment();
+            if (idle) {
+                LockSupport.unpark(writerThread);
+            }
+            return true;
+        } finally {
+            offering.decrementAndGet();
+        }
+    }
+
+    // Moves up to maxBatchSize published entries into the batch, stops at a slot claimed but not yet published
+    private void drain(List<Entry> batch) {
+        long next = head.get();
+        while (batch.size() < maxBatchSize) {
+            int index = (int) (next & mask);
+            Entry entry = slots.get(index);
+            if (entry == null) {
+                break;
+            }
+            slots.lazySet(index, null);
+            batch.add(entry);
+            next++;
+        }
+        head.lazySet(next);
+    }
+
+    private void run() {
+        List<Entry> batch = new ArrayList<>(maxBatchSize);
+        // Reads closed before offering and tail, see offer
+        while (!closed || offering.get() != 0 || tail.get() != head.get()) {
+            reportDrops(false);
+            drain(batch);
+            if (batch.isEmpty()) {
+                // Either a producer publishing after the check sees idle and unparks, or the check sees its entry
+                idle = true;
+                if (slots.get((int) (head.get() & mask)) == null && !closed) {
+                    LockSupport.parkNanos(idleWaitNanos);
+                }
+                idle = false;
+                continue;
+            }
+            commit(batch);
+            batch.clear();
+        }
+        closeSegment();
+        unlock();
+        reportDrops(true);
+    }
+
+    // At most one warning per DROP_REPORT_NANOS, with the events dropped since the previous one
+    private void reportDrops(boolean force) {
+        long now = System.nanoTime();
+        if (!force && now - lastDropReport < DROP_REPORT_NANOS) {
+            return;
+        }
+        lastDropReport = now;
+        long drops = dropped.sum();
+        if (drops != reportedDrops) {
+            log.warn((drops - reportedDrops) + " audit events dropped, " + drops + " in total");
+            reportedDrops = drops;
+        }
+    }
+
+    private void commit(List<Entry> batch) {
+        try {
+            buffer.reset();
+            for (Entry entry : batch) {
+                writer.writeValue(buffer, entry.event());
+                buffer.write('\n');
+            }
+            if (channel == null || segmentSize >= segmentBytes) {
+                rotate();
+            }
+            ByteBuffer bytes = buffer.view();
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            if (fsync) {
+                channel.force(false);
+                syncs.increment();
+            }
+            segmentSize += buffer.size();
+            long committedAt = System.nanoTime();
+            for (Entry entry : batch) {
+                commitLatencyNanos.add(committedAt - entry.enqueuedAt());
+            }
+            written.add(batch.size());
+            batches.increment();
+        } catch (IOException ex) {
+            log.error("Audit events could not be written, " + batch.size() + " lost", ex);
+            failed.add(batch.size());
+            closeSegment();
+        }
+    }
+
+    private void rotate() throws IOException {
+        closeSegment();
+        // Skips sequences taken since the start, for example by a copy restored into the directory
+        while (true) {
+            segmentSequence++;
+            try {
+                channel = FileChannel.open(directory.resolve(segmentName(segmentSequence)), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                break;
+            } catch (FileAlreadyExistsException ex) {
+                log.warn("Audit segment " + segmentName(segmentSequence) + " already exists, moving to the next sequence");
+            }
+        }
+        segmentSize = 0;
+        segments.increment();
+        if (maxSegments > 0) {
+            List<Path> paths = segmentPaths();
+            for (int i = 0; i < paths.size() - maxSegments; i++) {
+                Files.deleteIfExists(paths.get(i));
+            }
+        }
+    }
+
+    private void closeSegment() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            log.warn("Audit segment could not be closed", ex);
+        }
+        channel = null;
+    }
+
+    private static String segmentName(long sequence) {
+        return String.format("%s%020d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX);
+    }
+
+    private static long sequenceOf(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    // Oldest first, the zero padded sequence sorts by name
+    public List<Path> segmentPaths() throws IOException {
+        try (Stream<Path> paths = Files.list(directory)) {
+            return paths.filter(path -> path.getFileName().toString().matches(SEGMENT_PREFIX + "\\d{20}" + SEGMENT_SUFFIX))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    // Stops accepting events, waits for the queued ones to be written and closes the current segment
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            closed = true;
+            thread = writerThread;
+        }
+        if (thread == null) {
+            return;
+        }
+        LockSupport.unpark(thread);
+        try {
+            thread.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            log.warn("Audit writer did not finish within " + CLOSE_TIMEOUT_MILLIS + " ms, queued events may be lost");
+        }
+    }
+
+    public long queued() {
+        return Math.max(0, tail.get() - head.get());
+    }
+
+    public int capacity() {
+        return slots.length();
+    }
+
+    public long enqueued() {
+        return enqueued.sum();
+    }
+
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    // Offers that found the ring full and waited, under the BLOCK policy
+    public long blocked() {
+        return blocked.sum();
+    }
+
+    public long written() {
+        return written.sum();
+    }
+
+    public long failed() {
+        return failed.sum();
+    }
+
+    public long batches() {
+        return batches.sum();
+    }
+
+    public long syncs() {
+        return syncs.sum();
+    }
+
+    public long segments() {
+        return segments.sum();
+    }
+
+    public double averageBatchSize() {
+        long batches = batches();
+        return batches == 0 ? 0 : (double) written() / batches;
+    }
+
+    // From the offer to the end of the fsync of the batch holding the event
+    public double averageCommitLatencyMicros() {
+        long written = written();
+        return written == 0 ? 0 : commitLatencyNanos.sum() / 1000.0 / written;
+    }
+}
@@ -0,0 +1,25 @@
+package org.xapps.services.services.events;
+
+import org.xapps.services.entities.User;
+
+import java.time.Instant;
+
+public record UserChange(
+        Long id,
+        Type type,
+        Long userId,
+        User user,
+        Long timestamp
+) {
+    public enum Type {
+        CREATED,
+        UPDATED,
+        DELETED,
+        // Changes up to id never reached the subscriber, dropped by its buffer or gone from the history
+        GAP
+    }
+
+    public static UserChange gap(long lastMissed) {
+        return new UserChange(lastMissed, Type.GAP, null, null, Instant.now().toEpochMilli());
+    }
+}
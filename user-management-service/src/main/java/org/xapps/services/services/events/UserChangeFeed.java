@@ -0,0 +1,134 @@
+package org.xapps.services.services.events;
+
+import akka.NotUsed;
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.japi.Pair;
+import akka.stream.Materializer;
+import akka.stream.OverflowStrategy;
+import akka.stream.javadsl.BroadcastHub;
+import akka.stream.javadsl.Keep;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import akka.stream.typed.javadsl.ActorSource;
+import org.xapps.services.entities.User;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Publishes user mutations to any number of subscribers. The hub only carries sequence
+ * notifications, events themselves are read from a bounded ring buffer, so subscribers can
+ * resume from a Last-Event-ID without gaps as long as it is still retained.
+ * Changes a subscriber misses, dropped by its buffer or no longer retained, are counted and replaced by
+ * one {@link UserChange.Type#GAP} change naming the last missed id.
+ */
+public class UserChangeFeed {
+    public enum SlowSubscriberPolicy {
+        DROP,
+        DISCONNECT;
+
+        public static SlowSubscriberPolicy fromName(String name) {
+            if (name == null || name.isBlank()) {
+                return DROP;
+            }
+            return SlowSubscriberPolicy.valueOf(name.trim().toUpperCase());
+        }
+    }
+
+    private final ActorRef<Long> notifier;
+    private final Source<Long, NotUsed> notifications;
+    private final UserChange[] history;
+    private final int subscriberBufferSize;
+    private final SlowSubscriberPolicy slowSubscriberPolicy;
+    private final Duration catchUpInterval;
+    private final LongAdder skipped = new LongAdder();
+    private long sequence;
+
+    public UserChangeFeed(ActorSystem<?> system, int historySize, int subscriberBufferSize, SlowSubscriberPolicy slowSubscriberPolicy, Duration catchUpInterval) {
+        Materializer materializer = Materializer.matFromSystem(system);
+        Pair<ActorRef<Long>, Source<Long, NotUsed>> hub = ActorSource.<Long>actorRef(
+                        notification -> false,
+                        notification -> Optional.empty(),
+                        16,
+                        OverflowStrategy.dropHead())
+                .toMat(BroadcastHub.of(Long.class, 16), Keep.both())
+                .run(materializer);
+        // Keeps the hub flowing while nobody is subscribed
+        hub.second().runWith(Sink.ignore(), materializer);
+        this.notifier = hub.first();
+        this.notifications = hub.second();
+        this.history = new UserChange[historySize];
+        this.subscriberBufferSize = subscriberBufferSize;
+        this.slowSubscriberPolicy = slowSubscriberPolicy;
+        this.catchUpInterval = catchUpInterval;
+        this.sequence = 0;
+    }
+
+    public synchronized UserChange publish(UserChange.Type type, Long userId, User user) {
+        sequence++;
+        UserChange change = new UserChange(sequence, type, userId, user, Instant.now().toEpochMilli());
+        history[(int) (sequence % history.length)] = change;
+        notifier.tell(sequence);
+        return change;
+    }
+
+    public synchronized long lastSequence() {
+        return sequence;
+    }
+
+    public synchronized List<UserChange> since(long lastSeen) {
+        long oldest = Math.max(1, sequence - history.length + 1);
+        List<UserChange> changes = new ArrayList<>();
+        for (long id = Math.max(lastSeen + 1, oldest); id <= sequence; id++) {
+            changes.add(history[(int) (id % history.length)]);
+        }
+        return changes;
+    }
+
+    public Source<UserChange, NotUsed> subscribe(Optional<Long> lastEventId) {
+        // Ids beyond the current sequence come from a previous process, those subscribers start live
+        long currentSequence = lastSequence();
+        long initialCursor = lastEventId.filter(id -> id <= currentSequence).orElse(currentSequence);
+        OverflowStrategy overflowStrategy = (slowSubscriberPolicy == SlowSubscriberPolicy.DISCONNECT)
+                ? OverflowStrategy.fail()
+                : OverflowStrategy.dropHead();
+        return notifications
+                // A subscriber never holds the hub back, pending notifications collapse into the latest
+                .conflate((previous, latest) -> latest)
+                // The periodic tick replays anything published before this subscriber attached to the hub
+                .merge(Source.tick(Duration.ZERO, catchUpInterval, 0L))
+                .statefulMapConcat(() -> {
+                    AtomicLong cursor = new AtomicLong(initialCursor);
+                    return notification -> {
+                        List<UserChange> changes = since(cursor.get());
+                        if (!changes.isEmpty()) {
+                            cursor.set(changes.get(changes.size() - 1).id());
+                        }
+                        return changes;
+                    };
+                })
+                .buffer(subscriberBufferSize, overflowStrategy)
+                .statefulMapConcat(() -> {
+                    AtomicLong delivered = new AtomicLong(initialCursor);
+                    return change -> {
+                        long missed = change.id() - delivered.getAndSet(change.id()) - 1;
+                        if (missed <= 0) {
+                            return List.of(change);
+                        }
+                        skipped.add(missed);
+                        return List.of(UserChange.gap(change.id() - 1), change);
+                    };
+                });
+    }
+
+    // Changes that subscribers missed, summed over all subscribers
+    public long skipped() {
+        return skipped.sum();
+    }
+}
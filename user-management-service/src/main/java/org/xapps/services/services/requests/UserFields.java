@@ -0,0 +1,48 @@
+package org.xapps.services.services.requests;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Fields of a user requested through {@code ?fields=}, in request order.
+ * The password is never selectable.
+ */
+public record UserFields(
+        Set<String> names
+) {
+    public static final String ID = "id";
+    public static final String EMAIL = "email";
+    public static final String FIRST_NAME = "firstName";
+    public static final String LAST_NAME = "lastName";
+    public static final String ROLES = "roles";
+    public static final String CREATED_AT = "createdAt";
+    public static final String UPDATED_AT = "updatedAt";
+
+    public static final List<String> SELECTABLE = List.of(ID, EMAIL, FIRST_NAME, LAST_NAME, ROLES, CREATED_AT, UPDATED_AT);
+
+    /**
+     * @throws IllegalArgumentException when no field or an unknown field is requested
+     */
+    public static UserFields parse(String fields) {
+        Set<String> names = new LinkedHashSet<>();
+        Arrays.stream(fields.split(","))
+                .map(String::trim)
+                .filter(name -> !name.isEmpty())
+                .forEach(name -> {
+                    if (!SELECTABLE.contains(name)) {
+                        throw new IllegalArgumentException("Unknown field " + name);
+                    }
+                    names.add(name);
+                });
+        if (names.isEmpty()) {
+            throw new IllegalArgumentException("No fields requested");
+        }
+        return new UserFields(names);
+    }
+
+    public boolean includes(String name) {
+        return names.contains(name);
+    }
+}
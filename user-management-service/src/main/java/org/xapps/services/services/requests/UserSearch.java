@@ -0,0 +1,64 @@
+package org.xapps.services.services.requests;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Filters of a user search, every filter is optional and they are combined with AND.
+ * Results are ordered by id and paged by keyset, {@code after} is the last id of the previous page.
+ */
+public record UserSearch(
+        String emailPrefix,
+        String firstNamePrefix,
+        String lastNamePrefix,
+        String role,
+        Long createdFrom,
+        Long createdTo,
+        Long updatedFrom,
+        Long updatedTo,
+        Long after,
+        Integer limit
+) {
+    public static final Set<String> PARAMETERS = Set.of(
+            "email", "firstName", "lastName", "role",
+            "createdFrom", "createdTo", "updatedFrom", "updatedTo",
+            "after", "limit"
+    );
+
+    /**
+     * Builds the search from query parameters, timestamps are epoch milliseconds.
+     * @throws IllegalArgumentException when a numeric parameter can not be parsed or the limit is not positive
+     */
+    public static UserSearch fromParameters(Map<String, String> parameters, int defaultLimit, int maxLimit) {
+        Integer limit = integerOf(parameters.get("limit"));
+        if (limit != null && limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive");
+        }
+        return new UserSearch(
+                textOf(parameters.get("email")),
+                textOf(parameters.get("firstName")),
+                textOf(parameters.get("lastName")),
+                textOf(parameters.get("role")),
+                longOf(parameters.get("createdFrom")),
+                longOf(parameters.get("createdTo")),
+                longOf(parameters.get("updatedFrom")),
+                longOf(parameters.get("updatedTo")),
+                longOf(parameters.get("after")),
+                Math.min(limit != null ? limit : defaultLimit, maxLimit)
+        );
+    }
+
+    private static String textOf(String value) {
+        return (value == null || value.isBlank()) ? null : value.trim();
+    }
+
+    private static Long longOf(String value) {
+        String text = textOf(value);
+        return text == null ? null : Long.parseLong(text);
+    }
+
+    private static Integer integerOf(String value) {
+        String text = textOf(value);
+        return text == null ? null : Integer.parseInt(text);
+    }
+}
@@ -0,0 +1,14 @@
+package org.xapps.services.services.responses;
+
+import akka.NotUsed;
+import akka.stream.javadsl.Source;
+import org.xapps.services.services.events.UserChange;
+
+public record ChangesResponse(
+        ResponseType type,
+        Source<UserChange, NotUsed> changes
+) {
+    public ChangesResponse(ResponseType type) {
+        this(type, null);
+    }
+}
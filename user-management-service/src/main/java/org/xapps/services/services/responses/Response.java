@@ -1,6 +1,8 @@
 package org.xapps.services.services.responses;
 
+import org.xapps.services.services.utils.CborSerializable;
+
 public record Response(
         ResponseType type
-) {
+) implements CborSerializable {
 }
@@ -0,0 +1,12 @@
+package org.xapps.services.services.responses;
+
+import java.util.Map;
+
+public record UserFieldsResponse(
+        ResponseType type,
+        Map<String, Object> user
+) {
+    public UserFieldsResponse(ResponseType type) {
+        this(type, null);
+    }
+}
@@ -2,11 +2,12 @@ package org.xapps.services.services.responses;
 
 import com.sun.istack.Nullable;
 import org.xapps.services.entities.User;
+import org.xapps.services.services.utils.CborSerializable;
 
 public record UserResponse(
         ResponseType type,
         @Nullable User user
-) {
+) implements CborSerializable {
     public UserResponse(ResponseType type) {
         this(type, null);
     }
@@ -0,0 +1,14 @@
+package org.xapps.services.services.responses;
+
+import java.util.List;
+import java.util.Map;
+
+public record UsersFieldsResponse(
+        ResponseType type,
+        List<Map<String, Object>> users,
+        Long next
+) {
+    public UsersFieldsResponse(ResponseType type) {
+        this(type, null, null);
+    }
+}
@@ -7,9 +7,14 @@ import java.util.List;
 
 public record UsersResponse(
         ResponseType type,
-        @Nullable List<User> users
+        @Nullable List<User> users,
+        @Nullable Long next
 ) {
     public UsersResponse(ResponseType type) {
-        this(type, null);
+        this(type, null, null);
+    }
+
+    public UsersResponse(ResponseType type, List<User> users) {
+        this(type, users, null);
     }
 }
@@ -0,0 +1,9 @@
+package org.xapps.services.services.utils;
+
+import java.io.Serializable;
+
+/**
+ * Marker for messages crossing node boundaries in cluster mode, bound to the jackson-cbor serializer in application.conf.
+ */
+public interface CborSerializable extends Serializable {
+}
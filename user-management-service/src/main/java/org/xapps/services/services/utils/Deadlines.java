@@ -0,0 +1,66 @@
+package org.xapps.services.services.utils;
+
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * Absolute deadlines of the requests being handled, as epoch milliseconds.
+ * The deadline of the current request follows the code through a thread local, executors wrapped by
+ * {@link #propagating(Executor)} carry it over to the threads running repository calls and their callbacks.
+ * Deadlines cross node boundaries in cluster mode, so they assume reasonably synchronized clocks.
+ */
+public final class Deadlines {
+    public static final long NONE = Long.MAX_VALUE;
+
+    private static final ThreadLocal<Long> current = new ThreadLocal<>();
+
+    private Deadlines() {
+    }
+
+    public static long after(long millis) {
+        return System.currentTimeMillis() + millis;
+    }
+
+    public static boolean isExpired(long deadline) {
+        return deadline != NONE && System.currentTimeMillis() >= deadline;
+    }
+
+    public static long current() {
+        Long deadline = current.get();
+        return deadline != null ? deadline : NONE;
+    }
+
+    // Milliseconds left before the current deadline, NONE when there is no deadline
+    public static long remainingMillis() {
+        long deadline = current();
+        return deadline == NONE ? NONE : deadline - System.currentTimeMillis();
+    }
+
+    public static <T> T withDeadline(long deadline, Supplier<T> action) {
+        Long previous = current.get();
+        current.set(deadline);
+        try {
+            return action.get();
+        } finally {
+            if (previous != null) {
+                current.set(previous);
+            } else {
+                current.remove();
+            }
+        }
+    }
+
+    public static Executor propagating(Executor executor) {
+        return runnable -> {
+            long deadline = current();
+            if (deadline == NONE) {
+                executor.execute(runnable);
+            } else {
+                executor.execute(() -> withDeadline(deadline, () -> {
+                    runnable.run();
+                    return null;
+                }));
+            }
+        };
+    }
+}
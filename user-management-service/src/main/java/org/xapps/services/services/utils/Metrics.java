@@ -0,0 +1,31 @@
+package org.xapps.services.services.utils;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Process wide registry of named gauges, read on demand by the metrics endpoint.
+ * Registering a name again replaces the previous gauge.
+ */
+public class Metrics {
+    private static final Metrics instance = new Metrics();
+
+    public static Metrics getInstance() {
+        return instance;
+    }
+
+    private final Map<String, Supplier<Number>> gauges = new ConcurrentHashMap<>();
+
+    public void gauge(String name, Supplier<Number> gauge) {
+        gauges.put(name, gauge);
+    }
+
+    public SortedMap<String, Number> snapshot() {
+        SortedMap<String, Number> values = new TreeMap<>();
+        gauges.forEach((name, gauge) -> values.put(name, gauge.get()));
+        return values;
+    }
+}
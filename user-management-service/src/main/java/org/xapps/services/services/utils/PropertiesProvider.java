@@ -1,59 +1,143 @@
 package org.xapps.services.services.utils;
 
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
+import com.typesafe.config.ConfigFactory;
 import lombok.extern.slf4j.Slf4j;
 
-import java.io.InputStream;
-import java.util.Properties;
+import java.io.File;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
+/**
+ * Holds the current settings snapshot, loaded from application.conf with system properties on top.
+ * When settings.override-file is set, the file is layered between both and watched, a changed file builds a new
+ * snapshot that is swapped in atomically. Readers call {@link #current()} once per operation and keep using the
+ * snapshot they got, so an operation never sees a mix of old and new values.
+ * A file that fails to parse or validate is logged and the previous snapshot stays in place.
+ */
 @Slf4j
 public class PropertiesProvider {
-    private static PropertiesProvider instance = null;
+    private static final PropertiesProvider instance = new PropertiesProvider();
 
     public static PropertiesProvider getInstance() {
-        if (instance == null) {
-            instance = new PropertiesProvider();
-        }
         return instance;
     }
 
-    private Properties properties;
+    private final AtomicReference<Settings> current;
+    private final List<Consumer<Settings>> listeners = new CopyOnWriteArrayList<>();
+    private final LongAdder reloads = new LongAdder();
+    private final LongAdder failedReloads = new LongAdder();
+    private ScheduledExecutorService watcher;
+    private long overrideModified;
 
-    public PropertiesProvider() {
+    private PropertiesProvider() {
         try {
-            InputStream inputStream = ClassLoader.getSystemResourceAsStream("application.properties");
-            properties = new Properties();
-            properties.load(inputStream);
-        } catch (Exception ex) {
+            this.current = new AtomicReference<>(new Settings(load()));
+        } catch (ConfigException ex) {
             log.error("Exception captured", ex);
-            throw new RuntimeException("Application properties file could not be loaded");
+            throw new RuntimeException("Application settings could not be loaded", ex);
+        }
+        this.overrideModified = overrideFile(current.get()).map(File::lastModified).orElse(0L);
+        Metrics metrics = Metrics.getInstance();
+        metrics.gauge("settings.reloads", reloads::sum);
+        metrics.gauge("settings.reloads.failed", failedReloads::sum);
+    }
+
+    private static Config load() {
+        ConfigFactory.invalidateCaches();
+        Config config = ConfigFactory.load();
+        String overrideFile = config.getString("settings.override-file");
+        if (!overrideFile.isBlank() && new File(overrideFile).isFile()) {
+            config = ConfigFactory.systemProperties()
+                    .withFallback(ConfigFactory.parseFile(new File(overrideFile)))
+                    .withFallback(config)
+                    .resolve();
         }
+        return config;
+    }
+
+    private static Optional<File> overrideFile(Settings settings) {
+        return settings.overrideFile().isBlank() ? Optional.empty() : Optional.of(new File(settings.overrideFile()));
     }
 
-    public String securityTokenKey() {
-        return (String) properties.get("security.token-key");
+    public Settings current() {
+        return current.get();
     }
 
-    public Long securityValidity() {
-        return Long.parseLong((String) properties.get("security.validity"));
+    /**
+     * Registers a listener called with every new snapshot, for components that have to be rebuilt when a value changes.
+     */
+    public void onReload(Consumer<Settings> listener) {
+        listeners.add(listener);
     }
 
-    public Integer defaultHashRound() {
-        return Integer.parseInt((String) properties.get("defaults.hashrounds"));
+    public void removeOnReload(Consumer<Settings> listener) {
+        listeners.remove(listener);
     }
 
-    public String defaultRootEmail() {
-        return (String) properties.get("defaults.root.email");
+    /**
+     * Builds a new snapshot and swaps it in, returns false and keeps the current one when it can not be built.
+     */
+    public synchronized boolean reload() {
+        Settings settings;
+        try {
+            settings = new Settings(load());
+        } catch (ConfigException ex) {
+            failedReloads.increment();
+            log.warn("Settings could not be reloaded, keeping the current ones: {}", ex.getMessage());
+            return false;
+        }
+        current.set(settings);
+        reloads.increment();
+        log.info("Settings reloaded");
+        for (Consumer<Settings> listener : listeners) {
+            try {
+                listener.accept(settings);
+            } catch (RuntimeException ex) {
+                log.error("Exception captured", ex);
+            }
+        }
+        return true;
     }
 
-    public String defaultRootPassword() {
-        return (String) properties.get("defaults.root.password");
+    /**
+     * Starts checking the override file every settings.reload-interval-millis, does nothing without an override file.
+     */
+    public synchronized void watch() {
+        Settings settings = current.get();
+        if (watcher != null || settings.overrideFile().isBlank()) {
+            return;
+        }
+        watcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "settings-watcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watcher.scheduleWithFixedDelay(this::reloadIfModified, settings.reloadInterval(), settings.reloadInterval(), TimeUnit.MILLISECONDS);
+        log.info("Watching {} for settings changes", settings.overrideFile());
     }
 
-    public String defaultRootFirstName() {
-        return (String) properties.get("defaults.root.first-name");
+    // Stops checking the override file, watch() starts again with the interval of the current snapshot
+    public synchronized void stopWatching() {
+        if (watcher != null) {
+            watcher.shutdownNow();
+            watcher = null;
+        }
     }
 
-    public String defaultRootLastName() {
-        return (String) properties.get("defaults.root.last-name");
+    private synchronized void reloadIfModified() {
+        long modified = overrideFile(current.get()).map(File::lastModified).orElse(0L);
+        if (modified != overrideModified) {
+            overrideModified = modified;
+            reload();
+        }
     }
 }
@@ -0,0 +1,529 @@
+package org.xapps.services.services.utils;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
+import org.xapps.services.repositories.utils.PersistenceBackend;
+import org.xapps.services.repositories.utils.VirtualThreadExecutor;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the service settings, every value is parsed and validated once when the snapshot is built.
+ * A missing key, a value of the wrong type or a value out of its range fails the whole snapshot with a ConfigException,
+ * so a bad reload keeps the previous snapshot.
+ */
+public final class Settings {
+    private static final String MILLIS_SUFFIX = "-millis";
+
+    public record LoginRate(
+            double ipCapacity,
+            double ipRefillPerSecond,
+            double emailCapacity,
+            double emailRefillPerSecond,
+            long idleEvictionMillis,
+            int maxEntries
+    ) {
+    }
+
+    public record Audit(
+            boolean enabled,
+            String directory,
+            int queueCapacity,
+            String queueFullPolicy,
+            long maxBlockMillis,
+            int maxBatchSize,
+            long segmentBytes,
+            int maxSegments,
+            boolean fsync,
+            long idleWaitMicros
+    ) {
+    }
+
+    private final String serverInterface;
+    private final int serverPort;
+    private final String managementInterface;
+    private final int managementPort;
+    private final boolean compressionEnabled;
+    private final long compressionMinimumSize;
+    private final boolean warmUpEnabled;
+    private final int warmUpIterations;
+    private final long warmUpTimeBudget;
+    private final int warmUpPageSize;
+    private final int warmUpHashes;
+    private final Duration defaultAskTimeout;
+    private final Map<String, Duration> askTimeouts;
+    private final String securityTokenKey;
+    private final long securityValidity;
+    private final LoginRate loginRate;
+    private final int defaultHashRound;
+    private final String defaultRootEmail;
+    private final String defaultRootPassword;
+    private final String defaultRootFirstName;
+    private final String defaultRootLastName;
+    private final String persistenceBackend;
+    private final int persistenceMaxConcurrency;
+    private final int idAllocationSize;
+    private final boolean readOnlySessionsEnabled;
+    private final boolean readOnlyTransactionHint;
+    private final List<String> persistenceReplicaUrls;
+    private final String persistenceReplicaSelection;
+    private final boolean persistenceReadYourWrites;
+    private final long persistenceReplicaMaxLag;
+    private final boolean readBatchingEnabled;
+    private final int readBatchingMaxBatchSize;
+    private final long readBatchingMaxDelay;
+    private final int readBatchingMaxConcurrentBatches;
+    private final boolean emailFilterEnabled;
+    private final long emailFilterExpectedEmails;
+    private final double emailFilterFalsePositiveRate;
+    private final long emailFilterMaxMemory;
+    private final boolean circuitBreakerEnabled;
+    private final int circuitBreakerMaxFailures;
+    private final long circuitBreakerCallTimeout;
+    private final long circuitBreakerResetTimeout;
+    private final long circuitBreakerMaxResetTimeout;
+    private final int changesHistorySize;
+    private final int changesSubscriberBufferSize;
+    private final String changesSlowSubscriberPolicy;
+    private final long changesCatchUpInterval;
+    private final long changesKeepAlive;
+    private final boolean clusterEnabled;
+    private final int clusterEntityStashCapacity;
+    private final int searchDefaultPageSize;
+    private final int searchMaxPageSize;
+    private final boolean tracingEnabled;
+    private final double tracingSampleRatio;
+    private final int tracingForcedPerSecond;
+    private final int tracingBufferSize;
+    private final Audit audit;
+    private final String overrideFile;
+    private final long reloadInterval;
+
+    public Settings(Config config) {
+        this.serverInterface = config.getString("server.interface");
+        this.serverPort = intBetween(config, "server.port", 0, 65535);
+        this.managementInterface = config.getString("server.management.interface");
+        this.managementPort = intBetween(config, "server.management.port", 0, 65535);
+        this.compressionEnabled = config.getBoolean("server.compression.enabled");
+        this.compressionMinimumSize = nonNegativeLong(config, "server.compression.minimum-size");
+        this.warmUpEnabled = config.getBoolean("server.warm-up.enabled");
+        this.warmUpIterations = nonNegativeInt(config, "server.warm-up.iterations");
+        this.warmUpTimeBudget = positiveLong(config, "server.warm-up.time-budget-millis");
+        this.warmUpPageSize = positiveInt(config, "server.warm-up.page-size");
+        this.warmUpHashes = nonNegativeInt(config, "server.warm-up.hashes");
+        Config askTimeoutConfig = config.getConfig("server.ask-timeout");
+        Map<String, Duration> routeTimeouts = new HashMap<>();
+        for (String key : askTimeoutConfig.root().keySet()) {
+            if (key.endsWith(MILLIS_SUFFIX)) {
+                routeTimeouts.put(key.substring(0, key.length() - MILLIS_SUFFIX.length()), Duration.ofMillis(positiveLong(askTimeoutConfig, key)));
+            }
+        }
+        this.defaultAskTimeout = Duration.ofMillis(positiveLong(askTimeoutConfig, "default-millis"));
+        this.askTimeouts = Map.copyOf(routeTimeouts);
+        // Otherwise the server answers 503 for a request its route is still waiting for
+        String requestTimeoutPath = "akka.http.server.request-timeout";
+        if (!"infinite".equals(config.getString(requestTimeoutPath))) {
+            Duration longestAsk = routeTimeouts.values().stream().reduce(defaultAskTimeout, (a, b) -> a.compareTo(b) >= 0 ? a : b);
+            if (config.getDuration(requestTimeoutPath).compareTo(longestAsk) <= 0) {
+                throw new ConfigException.BadValue(requestTimeoutPath, "must be above the longest ask timeout, " + longestAsk.toMillis() + " ms");
+            }
+        }
+        this.securityTokenKey = config.getString("security.token-key");
+        this.securityValidity = positiveLong(config, "security.validity");
+        this.loginRate = new LoginRate(
+                positiveDouble(config, "security.login-rate.ip.capacity"),
+                positiveDouble(config, "security.login-rate.ip.refill-per-second"),
+                positiveDouble(config, "security.login-rate.email.capacity"),
+                positiveDouble(config, "security.login-rate.email.refill-per-second"),
+                positiveLong(config, "security.login-rate.idle-eviction-millis"),
+                positiveInt(config, "security.login-rate.max-entries")
+        );
+        this.defaultHashRound = intBetween(config, "defaults.hashrounds", 4, 31);
+        this.defaultRootEmail = config.getString("defaults.root.email");
+        this.defaultRootPassword = config.getString("defaults.root.password");
+        this.defaultRootFirstName = config.getString("defaults.root.first-name");
+        this.defaultRootLastName = config.getString("defaults.root.last-name");
+        this.persistenceBackend = config.getString("persistence.backend");
+        PersistenceBackend backend;
+        try {
+            backend = PersistenceBackend.fromName(persistenceBackend);
+        } catch (IllegalArgumentException ex) {
+            throw new ConfigException.BadValue("persistence.backend", "must be blocking, async or virtual, was " + persistenceBackend);
+        }
+        if (backend == PersistenceBackend.VIRTUAL && !VirtualThreadExecutor.isSupported()) {
+            throw new ConfigException.BadValue("persistence.backend", "virtual needs a Java 21 runtime, this one is " + Runtime.version());
+        }
+        this.persistenceMaxConcurrency = positiveInt(config, "persistence.max-concurrency");
+        this.idAllocationSize = positiveInt(config, "persistence.id-allocation-size");
+        this.readOnlySessionsEnabled = config.getBoolean("persistence.read-only.enabled");
+        this.readOnlyTransactionHint = config.getBoolean("persistence.read-only.transaction-hint");
+        this.persistenceReplicaUrls = Arrays.stream(config.getString("persistence.replicas.urls").split(","))
+                .map(String::trim)
+                .filter(url -> !url.isEmpty())
+                .toList();
+        this.persistenceReplicaSelection = config.getString("persistence.replicas.selection");
+        this.persistenceReadYourWrites = config.getBoolean("persistence.replicas.read-your-writes");
+        this.persistenceReplicaMaxLag = nonNegativeLong(config, "persistence.replicas.max-lag-millis");
+        this.readBatchingEnabled = config.getBoolean("persistence.read-batching.enabled");
+        this.readBatchingMaxBatchSize = positiveInt(config, "persistence.read-batching.max-batch-size");
+        this.readBatchingMaxDelay = nonNegativeLong(config, "persistence.read-batching.max-delay-micros");
+        this.readBatchingMaxConcurrentBatches = positiveInt(config, "persistence.read-batching.max-concurrent-batches");
+        this.emailFilterEnabled = config.getBoolean("persistence.email-filter.enabled");
+        this.emailFilterExpectedEmails = positiveLong(config, "persistence.email-filter.expected-emails");
+        this.emailFilterFalsePositiveRate = ratio(config, "persistence.email-filter.false-positive-rate");
+        if (emailFilterFalsePositiveRate == 0 || emailFilterFalsePositiveRate == 1) {
+            throw new ConfigException.BadValue("persistence.email-filter.false-positive-rate", "must be strictly between 0 and 1");
+        }
+        this.emailFilterMaxMemory = positiveLong(config, "persistence.email-filter.max-memory-bytes");
+        this.circuitBreakerEnabled = config.getBoolean("persistence.circuit-breaker.enabled");
+        this.circuitBreakerMaxFailures = positiveInt(config, "persistence.circuit-breaker.max-failures");
+        this.circuitBreakerCallTimeout = positiveLong(config, "persistence.circuit-breaker.call-timeout-millis");
+        this.circuitBreakerResetTimeout = positiveLong(config, "persistence.circuit-breaker.reset-timeout-millis");
+        this.circuitBreakerMaxResetTimeout = positiveLong(config, "persistence.circuit-breaker.max-reset-timeout-millis");
+        if (circuitBreakerMaxResetTimeout < circuitBreakerResetTimeout) {
+            throw new ConfigException.BadValue("persistence.circuit-breaker.max-reset-timeout-millis", "must not be below reset-timeout-millis");
+        }
+        this.changesHistorySize = positiveInt(config, "changes.history-size");
+        this.changesSubscriberBufferSize = positiveInt(config, "changes.subscriber-buffer-size");
+        this.changesSlowSubscriberPolicy = config.getString("changes.slow-subscriber-policy");
+        this.changesCatchUpInterval = positiveLong(config, "changes.catch-up-interval-seconds");
+        this.changesKeepAlive = positiveLong(config, "changes.keep-alive-seconds");
+        this.clusterEnabled = config.getBoolean("cluster.enabled");
+        this.clusterEntityStashCapacity = positiveInt(config, "cluster.entity-stash-capacity");
+        this.searchDefaultPageSize = positiveInt(config, "search.default-page-size");
+        this.searchMaxPageSize = positiveInt(config, "search.max-page-size");
+        if (searchMaxPageSize < searchDefaultPageSize) {
+            throw new ConfigException.BadValue("search.max-page-size", "must not be below default-page-size");
+        }
+        this.tracingEnabled = config.getBoolean("tracing.enabled");
+        this.tracingSampleRatio = ratio(config, "tracing.sample-ratio");
+        this.tracingForcedPerSecond = nonNegativeInt(config, "tracing.forced-per-second");
+        this.tracingBufferSize = positiveInt(config, "tracing.buffer-size");
+        this.audit = new Audit(
+                config.getBoolean("audit.enabled"),
+                config.getString("audit.directory"),
+                positiveInt(config, "audit.queue-capacity"),
+                config.getString("audit.queue-full-policy"),
+                nonNegativeLong(config, "audit.max-block-millis"),
+                positiveInt(config, "audit.max-batch-size"),
+                positiveBytes(config, "audit.segment-bytes"),
+                nonNegativeInt(config, "audit.max-segments"),
+                config.getBoolean("audit.fsync"),
+                positiveLong(config, "audit.idle-wait-micros")
+        );
+        this.overrideFile = config.getString("settings.override-file");
+        this.reloadInterval = positiveLong(config, "settings.reload-interval-millis");
+    }
+
+    public String serverInterface() {
+        return serverInterface;
+    }
+
+    public int serverPort() {
+        return serverPort;
+    }
+
+    public String managementInterface() {
+        return managementInterface;
+    }
+
+    public int managementPort() {
+        return managementPort;
+    }
+
+    public boolean compressionEnabled() {
+        return compressionEnabled;
+    }
+
+    public long compressionMinimumSize() {
+        return compressionMinimumSize;
+    }
+
+    public boolean warmUpEnabled() {
+        return warmUpEnabled;
+    }
+
+    public int warmUpIterations() {
+        return warmUpIterations;
+    }
+
+    public long warmUpTimeBudget() {
+        return warmUpTimeBudget;
+    }
+
+    public int warmUpPageSize() {
+        return warmUpPageSize;
+    }
+
+    public int warmUpHashes() {
+        return warmUpHashes;
+    }
+
+    // Ask timeout of a route, routes without their own key use server.ask-timeout.default-millis
+    public Duration askTimeout(String route) {
+        return askTimeouts.getOrDefault(route, defaultAskTimeout);
+    }
+
+    public String securityTokenKey() {
+        return securityTokenKey;
+    }
+
+    public long securityValidity() {
+        return securityValidity;
+    }
+
+    public LoginRate loginRate() {
+        return loginRate;
+    }
+
+    public double loginRateIpCapacity() {
+        return loginRate.ipCapacity();
+    }
+
+    public double loginRateIpRefillPerSecond() {
+        return loginRate.ipRefillPerSecond();
+    }
+
+    public double loginRateEmailCapacity() {
+        return loginRate.emailCapacity();
+    }
+
+    public double loginRateEmailRefillPerSecond() {
+        return loginRate.emailRefillPerSecond();
+    }
+
+    public long loginRateIdleEviction() {
+        return loginRate.idleEvictionMillis();
+    }
+
+    public int loginRateMaxEntries() {
+        return loginRate.maxEntries();
+    }
+
+    public int defaultHashRound() {
+        return defaultHashRound;
+    }
+
+    public String defaultRootEmail() {
+        return defaultRootEmail;
+    }
+
+    public String defaultRootPassword() {
+        return defaultRootPassword;
+    }
+
+    public String defaultRootFirstName() {
+        return defaultRootFirstName;
+    }
+
+    public String defaultRootLastName() {
+        return defaultRootLastName;
+    }
+
+    public String persistenceBackend() {
+        return persistenceBackend;
+    }
+
+    public int persistenceMaxConcurrency() {
+        return persistenceMaxConcurrency;
+    }
+
+    public int idAllocationSize() {
+        return idAllocationSize;
+    }
+
+    public boolean readOnlySessionsEnabled() {
+        return readOnlySessionsEnabled;
+    }
+
+    public boolean readOnlyTransactionHint() {
+        return readOnlyTransactionHint;
+    }
+
+    public List<String> persistenceReplicaUrls() {
+        return persistenceReplicaUrls;
+    }
+
+    public String persistenceReplicaSelection() {
+        return persistenceReplicaSelection;
+    }
+
+    public boolean persistenceReadYourWrites() {
+        return persistenceReadYourWrites;
+    }
+
+    public long persistenceReplicaMaxLag() {
+        return persistenceReplicaMaxLag;
+    }
+
+    public boolean readBatchingEnabled() {
+        return readBatchingEnabled;
+    }
+
+    public int readBatchingMaxBatchSize() {
+        return readBatchingMaxBatchSize;
+    }
+
+    public long readBatchingMaxDelay() {
+        return readBatchingMaxDelay;
+    }
+
+    public int readBatchingMaxConcurrentBatches() {
+        return readBatchingMaxConcurrentBatches;
+    }
+
+    public boolean emailFilterEnabled() {
+        return emailFilterEnabled;
+    }
+
+    public long emailFilterExpectedEmails() {
+        return emailFilterExpectedEmails;
+    }
+
+    public double emailFilterFalsePositiveRate() {
+        return emailFilterFalsePositiveRate;
+    }
+
+    public long emailFilterMaxMemory() {
+        return emailFilterMaxMemory;
+    }
+
+    public boolean circuitBreakerEnabled() {
+        return circuitBreakerEnabled;
+    }
+
+    public int circuitBreakerMaxFailures() {
+        return circuitBreakerMaxFailures;
+    }
+
+    public long circuitBreakerCallTimeout() {
+        return circuitBreakerCallTimeout;
+    }
+
+    public long circuitBreakerResetTimeout() {
+        return circuitBreakerResetTimeout;
+    }
+
+    public long circuitBreakerMaxResetTimeout() {
+        return circuitBreakerMaxResetTimeout;
+    }
+
+    public int changesHistorySize() {
+        return changesHistorySize;
+    }
+
+    public int changesSubscriberBufferSize() {
+        return changesSubscriberBufferSize;
+    }
+
+    public String changesSlowSubscriberPolicy() {
+        return changesSlowSubscriberPolicy;
+    }
+
+    public long changesCatchUpInterval() {
+        return changesCatchUpInterval;
+    }
+
+    public long changesKeepAlive() {
+        return changesKeepAlive;
+    }
+
+    public boolean clusterEnabled() {
+        return clusterEnabled;
+    }
+
+    public int clusterEntityStashCapacity() {
+        return clusterEntityStashCapacity;
+    }
+
+    public int searchDefaultPageSize() {
+        return searchDefaultPageSize;
+    }
+
+    public int searchMaxPageSize() {
+        return searchMaxPageSize;
+    }
+
+    public boolean tracingEnabled() {
+        return tracingEnabled;
+    }
+
+    public double tracingSampleRatio() {
+        return tracingSampleRatio;
+    }
+
+    public int tracingForcedPerSecond() {
+        return tracingForcedPerSecond;
+    }
+
+    public int tracingBufferSize() {
+        return tracingBufferSize;
+    }
+
+    public Audit audit() {
+        return audit;
+    }
+
+    public String overrideFile() {
+        return overrideFile;
+    }
+
+    public long reloadInterval() {
+        return reloadInterval;
+    }
+
+    private static int intBetween(Config config, String path, int min, int max) {
+        int value = config.getInt(path);
+        if (value < min || value > max) {
+            throw new ConfigException.BadValue(path, "must be between " + min + " and " + max + ", was " + value);
+        }
+        return value;
+    }
+
+    private static int positiveInt(Config config, String path) {
+        return intBetween(config, path, 1, Integer.MAX_VALUE);
+    }
+
+    private static int nonNegativeInt(Config config, String path) {
+        return intBetween(config, path, 0, Integer.MAX_VALUE);
+    }
+
+    private static long atLeast(String path, long value, long min) {
+        if (value < min) {
+            throw new ConfigException.BadValue(path, "must be at least " + min + ", was " + value);
+        }
+        return value;
+    }
+
+    private static long positiveLong(Config config, String path) {
+        return atLeast(path, config.getLong(path), 1);
+    }
+
+    private static long nonNegativeLong(Config config, String path) {
+        return atLeast(path, config.getLong(path), 0);
+    }
+
+    private static long positiveBytes(Config config, String path) {
+        return atLeast(path, config.getBytes(path), 1);
+    }
+
+    private static double positiveDouble(Config config, String path) {
+        double value = config.getDouble(path);
+        if (!(value > 0) || Double.isInfinite(value)) {
+            throw new ConfigException.BadValue(path, "must be positive, was " + value);
+        }
+        return value;
+    }
+
+    private static double ratio(Config config, String path) {
+        double value = config.getDouble(path);
+        if (!(value >= 0 && value <= 1)) {
+            throw new ConfigException.BadValue(path, "must be between 0 and 1, was " + value);
+        }
+        return value;
+    }
+}
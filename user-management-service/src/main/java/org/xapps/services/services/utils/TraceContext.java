@@ -0,0 +1,38 @@
+package org.xapps.services.services.utils;
+
+import java.io.Serial;
+
+/**
+ * Trace position carried by commands, sentAt is the epoch time in microseconds at which the command was sent.
+ * Can be read from and written to a W3C traceparent header.
+ */
+public record TraceContext(
+        String traceId,
+        String spanId,
+        boolean sampled,
+        long sentAt
+) implements CborSerializable {
+    @Serial
+    private static final long serialVersionUID = 4410923847561209L;
+
+    // Null when the header is absent or malformed
+    public static TraceContext fromTraceparent(String traceparent) {
+        if (traceparent == null) {
+            return null;
+        }
+        String[] parts = traceparent.trim().split("-");
+        if (parts.length != 4 || parts[1].length() != 32 || parts[2].length() != 16 || parts[3].length() != 2) {
+            return null;
+        }
+        try {
+            int flags = Integer.parseInt(parts[3], 16);
+            return new TraceContext(parts[1], parts[2], (flags & 1) == 1, Tracing.nowMicros());
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    public String toTraceparent() {
+        return "00-" + traceId + "-" + spanId + (sampled ? "-01" : "-00");
+    }
+}
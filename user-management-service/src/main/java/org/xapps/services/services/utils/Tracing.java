@@ -0,0 +1,261 @@
+package org.xapps.services.services.utils;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+/**
+ * Process wide tracer keeping the last finished spans in a ring buffer, read on demand by the traces endpoint.
+ * Sampling is decided once per trace, at its root, and inherited by every span of the trace.
+ * The current span follows the code through a thread local, executors wrapped by {@link #propagating(Executor)}
+ * carry it over to the threads running repository calls and their callbacks.
+ */
+public class Tracing {
+    private static final Tracing instance = new Tracing();
+
+    public static Tracing getInstance() {
+        return instance;
+    }
+
+    private volatile boolean enabled;
+    private volatile double sampleRatio;
+    private volatile int forcedPerSecond;
+    private final AtomicLong forcedSecond = new AtomicLong();
+    private final AtomicLong forcedInSecond = new AtomicLong();
+    private final AtomicLong forcedRefused = new AtomicLong();
+    private final AtomicReferenceArray<SpanData> buffer;
+    private final AtomicLong recorded = new AtomicLong();
+    private final ThreadLocal<Span> current = new ThreadLocal<>();
+
+    public record SpanData(
+            String traceId,
+            String spanId,
+            String parentSpanId,
+            String name,
+            long start,
+            long duration,
+            String error
+    ) {
+    }
+
+    public final class Span {
+        private final String traceId;
+        private final String spanId;
+        private final String parentSpanId;
+        private final String name;
+        private final boolean sampled;
+        private final long start;
+        private final long startNanos;
+        private final AtomicBoolean ended = new AtomicBoolean();
+
+        private Span(String traceId, String parentSpanId, String name, boolean sampled) {
+            this.traceId = traceId;
+            this.spanId = randomId(8);
+            this.parentSpanId = parentSpanId;
+            this.name = name;
+            this.sampled = sampled;
+            this.start = nowMicros();
+            this.startNanos = System.nanoTime();
+        }
+
+        public boolean sampled() {
+            return sampled;
+        }
+
+        // Context for a command sent now, the receiver measures its queue time from it
+        public TraceContext context() {
+            return new TraceContext(traceId, spanId, sampled, nowMicros());
+        }
+
+        public void end() {
+            end(null);
+        }
+
+        public void end(Throwable failure) {
+            if (sampled && ended.compareAndSet(false, true)) {
+                record(new SpanData(traceId, spanId, parentSpanId, name, start, (System.nanoTime() - startNanos) / 1000,
+                        failure != null ? failure.toString() : null));
+            }
+        }
+    }
+
+    private Tracing() {
+        this(
+                PropertiesProvider.getInstance().current().tracingEnabled(),
+                PropertiesProvider.getInstance().current().tracingSampleRatio(),
+                PropertiesProvider.getInstance().current().tracingForcedPerSecond(),
+                PropertiesProvider.getInstance().current().tracingBufferSize()
+        );
+        Metrics.getInstance().gauge("tracing.spans.recorded", recorded::get);
+        Metrics.getInstance().gauge("tracing.forced.refused", forcedRefused::get);
+        PropertiesProvider.getInstance().onReload(settings -> configure(settings.tracingEnabled(), settings.tracingSampleRatio(), settings.tracingForcedPerSecond()));
+    }
+
+    public Tracing(boolean enabled, double sampleRatio, int forcedPerSecond, int bufferSize) {
+        this.enabled = enabled;
+        this.sampleRatio = sampleRatio;
+        this.forcedPerSecond = forcedPerSecond;
+        this.buffer = new AtomicReferenceArray<>(bufferSize);
+    }
+
+    // Applies to traces started afterwards, the buffer size is fixed at startup
+    public void configure(boolean enabled, double sampleRatio, int forcedPerSecond) {
+        this.enabled = enabled;
+        this.sampleRatio = sampleRatio;
+        this.forcedPerSecond = forcedPerSecond;
+    }
+
+    public static long nowMicros() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000 + now.getNano() / 1000;
+    }
+
+    private static String randomId(int bytes) {
+        StringBuilder id = new StringBuilder(bytes * 2);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < bytes; i++) {
+            id.append(String.format("%02x", random.nextInt(256)));
+        }
+        return id.toString();
+    }
+
+    private void record(SpanData span) {
+        buffer.set((int) (recorded.getAndIncrement() % buffer.length()), span);
+    }
+
+    /**
+     * Starts a span under the given parent, or the root span of a new trace when there is no parent.
+     */
+    public Span start(String name, TraceContext parent) {
+        if (parent != null) {
+            return new Span(parent.traceId(), parent.spanId(), name, enabled && parent.sampled());
+        }
+        return new Span(randomId(16), null, name, enabled && ThreadLocalRandom.current().nextDouble() < sampleRatio);
+    }
+
+    /**
+     * Starts the server span of a request under the traceparent sent by the client. Clients can force sampling
+     * with the sampled flag, that is honoured about tracing.forced-per-second times per second, beyond that
+     * the trace continues under the same trace id unsampled.
+     */
+    public Span startIncoming(String name, TraceContext remote) {
+        if (remote != null && remote.sampled() && !allowForced()) {
+            forcedRefused.incrementAndGet();
+            return new Span(remote.traceId(), remote.spanId(), name, false);
+        }
+        return start(name, remote);
+    }
+
+    // Fixed one second window, shared by all request threads
+    private boolean allowForced() {
+        long second = System.currentTimeMillis() / 1000;
+        long window = forcedSecond.get();
+        if (window != second && forcedSecond.compareAndSet(window, second)) {
+            forcedInSecond.set(0);
+        }
+        return forcedInSecond.incrementAndGet() <= forcedPerSecond;
+    }
+
+    // Null outside of a span
+    public Span current() {
+        return current.get();
+    }
+
+    public <T> T withCurrent(Span span, Supplier<T> action) {
+        Span previous = current.get();
+        current.set(span);
+        try {
+            return action.get();
+        } finally {
+            current.set(previous);
+        }
+    }
+
+    /**
+     * Runs the action in a child span of the current span, or untraced when the current trace is not sampled.
+     */
+    public <T> T inSpan(String name, Supplier<T> action) {
+        Span parent = current.get();
+        if (parent == null || !parent.sampled) {
+            return action.get();
+        }
+        Span span = new Span(parent.traceId, parent.spanId, name, true);
+        try {
+            T result = withCurrent(span, action);
+            span.end();
+            return result;
+        } catch (RuntimeException ex) {
+            span.end(ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Records the time a command waited in the mailbox and runs its handler in a span lasting until the response completes.
+     */
+    public <R> CompletionStage<R> handle(String name, TraceContext trace, Supplier<CompletionStage<R>> handler) {
+        if (!enabled || trace == null || !trace.sampled()) {
+            return handler.get();
+        }
+        long now = nowMicros();
+        record(new SpanData(trace.traceId(), randomId(8), trace.spanId(), name + ".queue", trace.sentAt(), Math.max(0, now - trace.sentAt()), null));
+        Span span = start(name, trace);
+        CompletionStage<R> response;
+        try {
+            response = withCurrent(span, handler);
+        } catch (RuntimeException ex) {
+            span.end(ex);
+            throw ex;
+        }
+        return response.whenComplete((value, throwable) -> span.end(throwable));
+    }
+
+    /**
+     * Executor running each task, and the callbacks it completes, under the span current at submission.
+     */
+    public Executor propagating(Executor executor) {
+        return runnable -> {
+            Span span = current.get();
+            if (span == null) {
+                executor.execute(runnable);
+            } else {
+                executor.execute(() -> withCurrent(span, () -> {
+                    runnable.run();
+                    return null;
+                }));
+            }
+        };
+    }
+
+    public List<SpanData> recent() {
+        List<SpanData> spans = new ArrayList<>();
+        for (int i = 0; i < buffer.length(); i++) {
+            SpanData span = buffer.get(i);
+            if (span != null) {
+                spans.add(span);
+            }
+        }
+        spans.sort(Comparator.comparingLong(SpanData::start));
+        return spans;
+    }
+
+    // Recent spans grouped by trace, most recently started trace first
+    public Map<String, List<SpanData>> traces() {
+        Map<String, List<SpanData>> grouped = new LinkedHashMap<>();
+        List<SpanData> spans = recent();
+        for (int i = spans.size() - 1; i >= 0; i--) {
+            grouped.computeIfAbsent(spans.get(i).traceId(), traceId -> new ArrayList<>()).add(0, spans.get(i));
+        }
+        return grouped;
+    }
+}
@@ -0,0 +1,161 @@
+package org.xapps.services.integrations;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.javadsl.AskPattern;
+import akka.cluster.MemberStatus;
+import akka.cluster.typed.Cluster;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Test;
+import org.xapps.services.entities.User;
+import org.xapps.services.services.UserService;
+import org.xapps.services.services.responses.Response;
+import org.xapps.services.services.responses.ResponseType;
+import org.xapps.services.services.responses.UserResponse;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.StreamSupport;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ClusterShardingTests {
+    private static final Duration TIMEOUT = Duration.ofSeconds(30);
+    private static final int USERS = 16;
+    private static final int OPERATIONS = 800;
+
+    private static Config nodeConfig(String name, int port, int seedPort) {
+        return ConfigFactory.parseString(
+                "akka.actor.provider = cluster\n"
+                        + "akka.remote.artery.canonical.port = " + port + "\n"
+                        + "akka.cluster.seed-nodes = [\"akka://" + name + "@127.0.0.1:" + seedPort + "\"]\n"
+                        + "akka.cluster.jmx.multi-mbeans-in-same-jvm = on\n"
+        ).withFallback(ConfigFactory.load());
+    }
+
+    private static List<ActorSystem<UserService.Command>> startCluster(String name, int nodes, int basePort) throws InterruptedException {
+        List<ActorSystem<UserService.Command>> systems = new ArrayList<>();
+        for (int i = 0; i < nodes; i++) {
+            systems.add(ActorSystem.create(UserService.create(), name, nodeConfig(name, basePort + i, basePort)));
+        }
+        long deadline = System.currentTimeMillis() + TIMEOUT.toMillis();
+        for (ActorSystem<UserService.Command> system : systems) {
+            while (upMembers(system) < nodes) {
+                assertTrue(System.currentTimeMillis() < deadline, "Cluster " + name + " did not form in time");
+                Thread.sleep(100);
+            }
+        }
+        return systems;
+    }
+
+    private static long upMembers(ActorSystem<?> system) {
+        return StreamSupport.stream(Cluster.get(system).state().getMembers().spliterator(), false)
+                .filter(member -> member.status() == MemberStatus.up())
+                .count();
+    }
+
+    private static void stopCluster(List<ActorSystem<UserService.Command>> systems) {
+        systems.forEach(ActorSystem::terminate);
+        systems.forEach(system -> system.getWhenTerminated().toCompletableFuture().join());
+    }
+
+    private static <R> CompletableFuture<R> ask(ActorSystem<UserService.Command> node, akka.japi.function.Function<ActorRef<R>, UserService.Command> command) {
+        return AskPattern.ask(node, command, TIMEOUT, node.scheduler()).toCompletableFuture();
+    }
+
+    private static <R> R request(ActorSystem<UserService.Command> node, akka.japi.function.Function<ActorRef<R>, UserService.Command> command) {
+        return ask(node, command).join();
+    }
+
+    private static List<User> createUsers(ActorSystem<UserService.Command> node, String prefix) {
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < USERS; i++) {
+            User user = new User(prefix + i + "@gmail.com", "123456", "Cluster", "User" + i, null);
+            UserResponse response = request(node, replyTo -> new UserService.CreateCommand(user, replyTo));
+            assertEquals(ResponseType.OK, response.type());
+            users.add(response.user());
+        }
+        return users;
+    }
+
+    private static void deleteUsers(ActorSystem<UserService.Command> node, List<User> users) {
+        users.forEach(user -> {
+            Response response = request(node, replyTo -> new UserService.DeleteCommand(user.getId(), replyTo));
+            assertEquals(ResponseType.OK, response.type());
+        });
+    }
+
+    // Spreads the updates over all nodes, every one of them must succeed
+    private static void updateFromEveryNode(List<ActorSystem<UserService.Command>> nodes, List<User> users) {
+        List<CompletableFuture<UserResponse>> responses = new ArrayList<>();
+        for (int i = 0; i < OPERATIONS; i++) {
+            ActorSystem<UserService.Command> node = nodes.get(i % nodes.size());
+            User user = users.get(i % users.size());
+            User userData = new User(user.getEmail(), null, "Cluster" + i, user.getLastName(), null);
+            responses.add(ask(node, replyTo -> new UserService.UpdateCommand(user.getId(), userData, replyTo)));
+        }
+        long succeeded = responses.stream()
+                .filter(response -> response.join().type() == ResponseType.OK)
+                .count();
+        assertEquals(OPERATIONS, succeeded);
+    }
+
+    // Each user lives in one sharded entity, so every node must read the same state back
+    private static void assertSameStateOnEveryNode(List<ActorSystem<UserService.Command>> nodes, List<User> users) {
+        for (User user : users) {
+            UserResponse first = request(nodes.get(0), replyTo -> new UserService.ReadCommand(user.getId(), replyTo));
+            String firstName = first.user().getFirstName();
+            assertTrue(firstName.startsWith("Cluster"));
+            for (ActorSystem<UserService.Command> node : nodes) {
+                UserResponse response = request(node, replyTo -> new UserService.ReadCommand(user.getId(), replyTo));
+                assertEquals(ResponseType.OK, response.type());
+                assertEquals(firstName, response.user().getFirstName());
+            }
+        }
+    }
+
+    @Test
+    public void read_servedByEveryNode() throws InterruptedException {
+        List<ActorSystem<UserService.Command>> nodes = startCluster("UserClusterReadTests", 3, 25711);
+        try {
+            List<User> users = createUsers(nodes.get(0), "cluster_read_");
+            for (ActorSystem<UserService.Command> node : nodes) {
+                for (User user : users) {
+                    UserResponse response = request(node, replyTo -> new UserService.ReadCommand(user.getId(), replyTo));
+                    assertEquals(ResponseType.OK, response.type());
+                    assertEquals(user.getEmail(), response.user().getEmail());
+                }
+            }
+            deleteUsers(nodes.get(1), users);
+            UserResponse response = request(nodes.get(2), replyTo -> new UserService.ReadCommand(users.get(0).getId(), replyTo));
+            assertEquals(ResponseType.NOT_FOUND, response.type());
+        } finally {
+            stopCluster(nodes);
+        }
+    }
+
+    @Test
+    public void update_succeedsFromEveryNode() throws InterruptedException {
+        List<ActorSystem<UserService.Command>> single = startCluster("UserClusterSingleTests", 1, 25721);
+        List<User> users;
+        try {
+            users = createUsers(single.get(0), "cluster_update_");
+            updateFromEveryNode(single, users);
+            assertSameStateOnEveryNode(single, users);
+        } finally {
+            stopCluster(single);
+        }
+
+        List<ActorSystem<UserService.Command>> triple = startCluster("UserClusterTripleTests", 3, 25731);
+        try {
+            updateFromEveryNode(triple, users);
+            assertSameStateOnEveryNode(triple, users);
+            deleteUsers(triple.get(0), users);
+        } finally {
+            stopCluster(triple);
+        }
+    }
+}
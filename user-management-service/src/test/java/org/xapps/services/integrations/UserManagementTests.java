@@ -1,6 +1,8 @@
 package org.xapps.services.integrations;
 
+import akka.actor.typed.ActorRef;
 import akka.actor.typed.ActorSystem;
+import akka.actor.typed.javadsl.AskPattern;
 import akka.http.javadsl.marshallers.jackson.Jackson;
 import akka.http.javadsl.model.ContentTypes;
 import akka.http.javadsl.model.HttpHeader;
@@ -16,14 +18,30 @@ import org.junit.Test;
 import org.junit.jupiter.api.Assertions;
 import org.xapps.services.entities.Role;
 import org.xapps.services.entities.User;
+import org.xapps.services.repositories.utils.DatabaseCircuitBreaker;
 import org.xapps.services.server.UserRoutes;
+import org.xapps.services.server.utils.ContentFormat;
+import org.xapps.services.services.UserOperations;
 import org.xapps.services.services.UserService;
 import org.xapps.services.services.requests.Login;
 import org.xapps.services.services.responses.*;
-
+import org.xapps.services.services.utils.Metrics;
+import org.xapps.services.services.utils.PropertiesProvider;
+import org.xapps.services.services.utils.Tracing;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLTransientConnectionException;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -31,7 +49,7 @@ public class UserManagementTests  extends JUnitRouteTest {
 
     private ObjectMapper objectMapper = new ObjectMapper();
     private ActorSystem system = ActorSystem.create(UserService.create(), "UserManagementTests");
-    private UserRoutes userRoutes = new UserRoutes(system, system.scheduler());
+    private UserRoutes userRoutes = new UserRoutes(system, system);
     private TestRoute appRoute = testRoute(userRoutes.create());
 
     @Before
@@ -55,6 +73,31 @@ public class UserManagementTests  extends JUnitRouteTest {
         assertNotNull(loginResponse.authentication().validity());
     }
 
+    @Test
+    public void loginRoot_successWithCbor() throws JsonProcessingException {
+        Login login = new Login("root@gmail.com", "123456");
+        LoginResponse loginResponse = appRoute.run(
+                HttpRequest.POST("/users/login")
+                    .withHeaders(Collections.singleton(HttpHeader.parse("Accept", "application/cbor")))
+                    .withEntity(ContentFormat.CBOR.contentType(), ContentFormat.CBOR.encode(login))
+            )
+            .assertStatusCode(StatusCodes.OK)
+            .assertContentType(ContentFormat.CBOR.contentType())
+            .entity(ContentFormat.unmarshaller(LoginResponse.class));
+
+        assertEquals(ResponseType.OK, loginResponse.type());
+        assertNotNull(loginResponse.authentication().token());
+    }
+
+    @Test
+    public void login_malformedCborIsBadRequest() {
+        appRoute.run(
+                HttpRequest.POST("/users/login")
+                    .withEntity(ContentFormat.CBOR.contentType(), new byte[]{(byte) 0xbf, (byte) 0x61})
+            )
+            .assertStatusCode(StatusCodes.BAD_REQUEST);
+    }
+
     @Test
     public void loginRoot_failByInvalidPassword() throws JsonProcessingException {
         Login login = new Login("root@gmail.com", "invalid");
@@ -81,6 +124,190 @@ public class UserManagementTests  extends JUnitRouteTest {
         assertEquals(ResponseType.UNAUTHORIZED, loginResponse.type());
     }
 
+    @Test
+    public void login_failByRateLimit() throws JsonProcessingException {
+        Login login = new Login("ratelimited@gmail.com", "123456");
+        int capacity = (int) PropertiesProvider.getInstance().current().loginRateEmailCapacity();
+        for (int i = 0; i < capacity; i++) {
+            appRoute.run(
+                    HttpRequest.POST("/users/login")
+                        .withEntity(ContentTypes.APPLICATION_JSON, objectMapper.writeValueAsString(login))
+                )
+                .assertStatusCode(StatusCodes.OK);
+        }
+
+        appRoute.run(
+                HttpRequest.POST("/users/login")
+                    .withEntity(ContentTypes.APPLICATION_JSON, objectMapper.writeValueAsString(login))
+            )
+            .assertStatusCode(StatusCodes.TOO_MANY_REQUESTS);
+    }
+
+    @Test
+    public void logout_revokesToken() throws JsonProcessingException {
+        Login login = new Login("root@gmail.com", "123456");
+        LoginResponse loginResponse = appRoute.run(
+                HttpRequest.POST("/users/login")
+                    .withEntity(ContentTypes.APPLICATION_JSON, objectMapper.writeValueAsString(login))
+            )
+            .assertStatusCode(StatusCodes.OK)
+            .entity(Jackson.unmarshaller(LoginResponse.class));
+
+        assertEquals(ResponseType.OK, loginResponse.type());
+        HttpHeader authorization = HttpHeader.parse("Authorization", String.format("Bearer %s", loginResponse.authentication().token()));
+
+        appRoute.run(
+                HttpRequest.GET("/users")
+                    .withHeaders(Collections.singleton(authorization))
+            )
+            .assertStatusCode(StatusCodes.OK);
+
+        Response logoutResponse = appRoute.run(
+                HttpRequest.POST("/users/logout")
+                    .withHeaders(Collections.singleton(authorization))
+            )
+            .assertStatusCode(StatusCodes.OK)
+            .entity(Jackson.unmarshaller(Response.class));
+
+        assertEquals(ResponseType.OK, logoutResponse.type());
+
+        appRoute.run(
+                HttpRequest.GET("/users")
+                    .withHeaders(Collections.singleton(authorization))
+            )
+            .assertStatusCode(StatusCodes.UNAUTHORIZED);
+    }
+
+    @Test
+    public void searchUsers_byLastNamePrefixWithKeysetPages() throws JsonProcessingException {
+        Login login = new Login("root@gmail.com", "123456");
+        LoginResponse loginResponse = appRoute.run(
+                HttpRequest.POST("/users/login")
+                    .withEntity(ContentTypes.APPLICATION_JSON, objectMapper.writeValueAsString(login))
+            )
+            .assertStatusCode(StatusCodes.OK)
+            .entity(Jackson.unmarshaller(LoginResponse.class));
+        HttpHeader authorization = HttpHeader.parse("Authorization", String.format("Bearer %s", loginResponse.authentication().token()));
+
+        List<User> createdUsers = new ArrayList<>();
+        for (String firstName : List.of("Ann", "Bob")) {
+            User user = new User(firstName.toLowerCase() + "searchdoe@gmail.com", "qwerty", firstName, "Searchdoe", null);
+            UserResponse userResponse = appRoute.run(
+                    HttpRequest.POST("/users")
+                        .withEntity(ContentTypes.APPLICATION_JSON, objectMapper.writeValueAsString(user))
+                )
+                .assertStatusCode(StatusCodes.OK)
+                .entity(Jackson.unmarshaller(UserResponse.class));
+            assertEquals(ResponseType.OK, userResponse.type());
+            createdUsers.add(userResponse.user());
+        }
+
+        UsersResponse firstPage = appRoute.run(
+                HttpRequest.GET("/users?lastName=Searchd&role=Guest&limit=1")
+                    .withHeaders(Collections.singleton(authorization))
+            )
+            .assertStatusCode(StatusCodes.OK)
+            .entity(Jackson.unmarshaller(UsersResponse.class));
+
+        assertEquals(ResponseType.OK, firstPage.type());
+        assertEquals(1, firstPage.users().size());
+        assertEquals(createdUsers.get(0).getId(), firstPage.users().get(0).getId());
+        assertEquals(createdUsers.get(0).getId(), firstPage.next());
+
+        UsersResponse secondPage = appRoute.run(
+                HttpRequest.GET(String.format("/users?lastName=Searchd&role=Guest&limit=1&after=%d", firstPage.next()))
+                    .withHeaders(Collections.singleton(authorization))
+            )
+            .assertStatusCode(StatusCodes.OK)
+            .entity(Jackson.unmarshaller(UsersResponse.class));
+
+        assertEquals(1, secondPage.users().size());
+        assertEquals(createdUsers.get(1).getId(), secondPage.users().get(0).getId());
+
+        UsersResponse administrators = appRoute.run(
+                HttpRequest.GET("/users?lastName=Searchd&role=Administrator")
+                    .withHeaders(Collections.singleton(authorization))
+            )
+            .assertStatusCode(StatusCodes.OK)
+            .entity(Jackson.unmarshaller(UsersResponse.class));
+
+        assertTrue(administrators.users().isEmpty());
+        assertNull(administrators.next());
+
+        appRoute.run(
+                HttpRequest.GET("/users?limit=none")
+                    .withHeaders(Collections.singleton(authorization))
+            )
+            .assertStatusCode(StatusCodes.BAD_REQUEST);
+
+        for (User createdUser : createdUsers) {
+            appRoute.run(
+                    HttpRequest.DELETE(String.format("/users/%d", createdUser.getId()))
+                        .withHeaders(Collections.singleton(authorization))
+                )
+                .assertStatusCode(StatusCodes.OK);
+        }
+    }
+
+    @Test
+    public void readUsers_withSparseFields() throws JsonProcessingException {
+        Login login = new Login("root@gmail.com", "123456");
+        LoginResponse loginResponse = appRoute.run(
+                HttpRequest.POST("/users/login")
+                    .withEntity(ContentTypes.APPLICATION_JSON, objectMapper.writeValueAsString(login))
+            )
+            .assertStatusCode(StatusCodes.OK)
+            .entity(Jackson.unmarshaller(LoginResponse.class));
+        HttpHeader authorization = HttpHeader.parse("Authorization", String.format("Bearer %s", loginResponse.authentication().token()));
+
+        UsersFieldsResponse usersResponse = appRoute.run(
+                HttpRequest.GET("/users?fields=email,roles")
+                    .withHeaders(Collections.singleton(authorization))
+            )
+            .assertStatusCode(StatusCodes.OK)
+            .entity(Jackson.unmarshaller(UsersFieldsResponse.class));
+
+        assertEquals(ResponseType.OK, usersResponse.type());
+        assertFalse(usersResponse.users().isEmpty());
+        usersResponse.users().forEach(user -> assertEquals(List.of("email", "roles"), new ArrayList<>(user.keySet())));
+
+        UsersFieldsResponse firstPageResponse = appRoute.run(
+                HttpRequest.GET("/users?fields=email&limit=1")
+                    .withHeaders(Collections.singleton(authorization))
+            )
+            .assertStatusCode(StatusCodes.OK)
+            .entity(Jackson.unmarshaller(UsersFieldsResponse.class));
+
+        assertEquals(1, firstPageResponse.users().size());
+        assertNotNull(firstPageResponse.next());
+
+        UsersResponse allUsersResponse = appRoute.run(
+                HttpRequest.GET("/users")
+                    .withHeaders(Collections.singleton(authorization))
+            )
+            .assertStatusCode(StatusCodes.OK)
+            .entity(Jackson.unmarshaller(UsersResponse.class));
+        User root = allUsersResponse.users().stream().filter(it -> it.getEmail().equals("root@gmail.com")).findFirst().orElse(null);
+        assertNotNull(root);
+
+        UserFieldsResponse userResponse = appRoute.run(
+                HttpRequest.GET(String.format("/users/%d?fields=id,email", root.getId()))
+                    .withHeaders(Collections.singleton(authorization))
+            )
+            .assertStatusCode(StatusCodes.OK)
+            .entity(Jackson.unmarshaller(UserFieldsResponse.class));
+
+        assertEquals(ResponseType.OK, userResponse.type());
+        assertEquals(List.of("id", "email"), new ArrayList<>(userResponse.user().keySet()));
+        assertEquals("root@gmail.com", userResponse.user().get("email"));
+
+        appRoute.run(
+                HttpRequest.GET(String.format("/users/%d?fields=password", root.getId()))
+                    .withHeaders(Collections.singleton(authorization))
+            )
+            .assertStatusCode(StatusCodes.BAD_REQUEST);
+    }
+
     @Test
     public void createAndEditUserWithDefaultRole_success() throws JsonProcessingException {
         User user = new User("vladdoe@gmail.com", "qwerty", "Vlad", "Doe", null);
@@ -231,6 +458,32 @@ public class UserManagementTests  extends JUnitRouteTest {
         assertEquals(ResponseType.EMAIL_NOT_AVAILABLE, userResponse.type());
     }
 
+    // Runs the creates on the async backend, the blocking one handles them one at a time on the UserService actor
+    // and never reaches the unique key of the email
+    @Test
+    public void concurrentCreates_acceptTheEmailOnce() {
+        System.setProperty("persistence.backend", "async");
+        PropertiesProvider.getInstance().reload();
+        UserOperations operations;
+        try {
+            operations = new UserOperations(system);
+        } finally {
+            System.clearProperty("persistence.backend");
+            PropertiesProvider.getInstance().reload();
+        }
+        List<CompletableFuture<UserResponse>> responses = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            User user = new User("concurrent@gmail.com", "qwerty", "Concurrent", "User" + i, null);
+            responses.add(operations.create(user, null).toCompletableFuture());
+        }
+
+        List<UserResponse> results = responses.stream().map(CompletableFuture::join).toList();
+        List<User> created = results.stream().filter(response -> response.type() == ResponseType.OK).map(UserResponse::user).toList();
+        created.forEach(user -> operations.delete(user.getId(), null).toCompletableFuture().join());
+        assertEquals(1, created.size());
+        assertTrue(results.stream().allMatch(response -> response.type() == ResponseType.OK || response.type() == ResponseType.EMAIL_NOT_AVAILABLE));
+    }
+
     @Test
     public void createAndEditUserWithUserCredentials_failByWrongId() throws JsonProcessingException {
         User user = new User("robdoe@gmail.com", "qwerty", "Rob", "Doe", null);
@@ -514,4 +767,127 @@ public class UserManagementTests  extends JUnitRouteTest {
             )
             .assertStatusCode(StatusCodes.FORBIDDEN);
     }
+
+    @Test
+    public void login_recordsSampledTrace() throws JsonProcessingException {
+        String traceId = "4bf92f3577b34da6a3ce929d0e0e4736";
+        Login login = new Login("root@gmail.com", "123456");
+        appRoute.run(
+                HttpRequest.POST("/users/login")
+                    .withHeaders(Collections.singleton(HttpHeader.parse("traceparent", "00-" + traceId + "-00f067aa0ba902b7-01")))
+                    .withEntity(ContentTypes.APPLICATION_JSON, objectMapper.writeValueAsString(login))
+            )
+            .assertStatusCode(StatusCodes.OK);
+
+        List<String> spans = Tracing.getInstance().traces().get(traceId).stream().map(Tracing.SpanData::name).toList();
+        assertTrue(spans.contains("UserService.login.queue"));
+        assertTrue(spans.contains("UserService.login"));
+        assertTrue(spans.contains("UserRepository.getByEmail"));
+        assertTrue(spans.contains("bcrypt.verify"));
+    }
+
+    @Test
+    public void expiredCommand_isDroppedWithoutResponse() {
+        CompletionStage<UserResponse> response = AskPattern.ask(
+                system,
+                (ActorRef<UserResponse> replyTo) -> new UserService.ReadCommand(1L, replyTo, null, System.currentTimeMillis() - 1),
+                Duration.ofMillis(500),
+                system.scheduler()
+        );
+
+        assertThrows(CompletionException.class, () -> response.toCompletableFuture().join());
+        assertTrue(Metrics.getInstance().snapshot().get("users.commands.expired").longValue() >= 1);
+    }
+
+    @Test
+    public void openCircuitBreaker_failsRequestsFastWith503() throws JsonProcessingException {
+        DatabaseCircuitBreaker circuitBreaker = DatabaseCircuitBreaker.get(system);
+        for (int i = 0; i < PropertiesProvider.getInstance().current().circuitBreakerMaxFailures(); i++) {
+            CompletionStage<Object> failed = circuitBreaker.call(() -> CompletableFuture.failedFuture(new SQLTransientConnectionException("Database unreachable")));
+            assertThrows(CompletionException.class, () -> failed.toCompletableFuture().join());
+        }
+        assertTrue(circuitBreaker.isOpen());
+
+        Login login = new Login("root@gmail.com", "123456");
+        appRoute.run(
+                HttpRequest.POST("/users/login")
+                    .withEntity(ContentTypes.APPLICATION_JSON, objectMapper.writeValueAsString(login))
+            )
+            .assertStatusCode(StatusCodes.SERVICE_UNAVAILABLE);
+    }
+
+    // Audit is disabled for the test JVM, this test enables it for a system of its own with a directory of its own
+    @Test
+    public void handlers_recordAuditEvents() throws IOException, InterruptedException {
+        Path directory = Files.createTempDirectory("audit");
+        String previousEnabled = System.getProperty("audit.enabled");
+        System.setProperty("audit.enabled", "true");
+        System.setProperty("audit.directory", directory.toString());
+        PropertiesProvider.getInstance().reload();
+        ActorSystem audited = ActorSystem.create(UserService.create(), "AuditedUserManagementTests");
+        try {
+            TestRoute auditedRoute = testRoute(new UserRoutes(audited, audited).create());
+            audited.tell(new UserService.SeedCommand());
+            auditedRoute.run(
+                    HttpRequest.POST("/users/login")
+                        .withEntity(ContentTypes.APPLICATION_JSON, objectMapper.writeValueAsString(new Login("root@gmail.com", "invalid")))
+                )
+                .assertStatusCode(StatusCodes.OK);
+            User createdUser = auditedRoute.run(
+                    HttpRequest.POST("/users")
+                        .withEntity(ContentTypes.APPLICATION_JSON, objectMapper.writeValueAsString(new User("auditdoe@gmail.com", "qwerty", "Audit", "Doe", null)))
+                )
+                .assertStatusCode(StatusCodes.OK)
+                .entity(Jackson.unmarshaller(UserResponse.class))
+                .user();
+            Authentication authentication = auditedRoute.run(
+                    HttpRequest.POST("/users/login")
+                        .withEntity(ContentTypes.APPLICATION_JSON, objectMapper.writeValueAsString(new Login("auditdoe@gmail.com", "qwerty")))
+                )
+                .assertStatusCode(StatusCodes.OK)
+                .entity(Jackson.unmarshaller(LoginResponse.class))
+                .authentication();
+            auditedRoute.run(
+                    HttpRequest.DELETE(String.format("/users/%d", createdUser.getId()))
+                        .withHeaders(Collections.singleton(HttpHeader.parse("Authorization", String.format("Bearer %s", authentication.token()))))
+                )
+                .assertStatusCode(StatusCodes.OK);
+
+            List<String> expected = List.of(
+                    "\"type\":\"LOGIN_FAILED\",\"actorId\":null",
+                    "\"type\":\"CREATED\",\"actorId\":null,\"userId\":" + createdUser.getId(),
+                    "\"type\":\"LOGIN\",\"actorId\":" + createdUser.getId(),
+                    "\"type\":\"DELETED\",\"actorId\":" + createdUser.getId() + ",\"userId\":" + createdUser.getId()
+            );
+            long deadline = System.currentTimeMillis() + 5000;
+            List<String> lines = auditLines(directory);
+            while (!expected.stream().allMatch(event -> lines.stream().anyMatch(line -> line.contains(event))) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+                lines.clear();
+                lines.addAll(auditLines(directory));
+            }
+            for (String event : expected) {
+                assertTrue(lines.stream().anyMatch(line -> line.contains(event)), event + " not in " + lines);
+            }
+        } finally {
+            audited.terminate();
+            if (previousEnabled != null) {
+                System.setProperty("audit.enabled", previousEnabled);
+            } else {
+                System.clearProperty("audit.enabled");
+            }
+            System.clearProperty("audit.directory");
+            PropertiesProvider.getInstance().reload();
+        }
+    }
+
+    private static List<String> auditLines(Path directory) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (Stream<Path> segments = Files.list(directory)) {
+            for (Path segment : segments.filter(path -> path.getFileName().toString().endsWith(".log")).sorted().toList()) {
+                lines.addAll(Files.readAllLines(segment));
+            }
+        }
+        return lines;
+    }
 }
@@ -0,0 +1,71 @@
+package org.xapps.services.repositories;
+
+import org.junit.Test;
+import org.xapps.services.repositories.utils.CountingBloomFilter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CountingBloomFilterTests {
+
+    @Test
+    public void addedKeys_areNeverReportedAbsent() {
+        CountingBloomFilter filter = CountingBloomFilter.create(10_000, 0.01, 1 << 20);
+        for (int i = 0; i < 10_000; i++) {
+            filter.add("user" + i + "@gmail.com");
+        }
+
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(filter.mightContain("user" + i + "@gmail.com"));
+        }
+        assertEquals(10_000, filter.size());
+    }
+
+    @Test
+    public void unknownKeys_stayNearTheFalsePositiveRate() {
+        CountingBloomFilter filter = CountingBloomFilter.create(10_000, 0.01, 1 << 20);
+        for (int i = 0; i < 10_000; i++) {
+            filter.add("user" + i + "@gmail.com");
+        }
+
+        int falsePositives = 0;
+        for (int i = 0; i < 100_000; i++) {
+            if (filter.mightContain("unknown" + i + "@gmail.com")) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 2_000, "False positives: " + falsePositives);
+        assertTrue(filter.expectedFalsePositiveRate() < 0.02);
+    }
+
+    @Test
+    public void removedKey_isAbsentWhileOthersRemain() {
+        CountingBloomFilter filter = CountingBloomFilter.create(1_000, 0.01, 1 << 20);
+        filter.add("root@gmail.com");
+        filter.add("guest@gmail.com");
+
+        filter.remove("root@gmail.com");
+
+        assertFalse(filter.mightContain("root@gmail.com"));
+        assertTrue(filter.mightContain("guest@gmail.com"));
+        assertEquals(1, filter.size());
+    }
+
+    @Test
+    public void duplicateKey_remainsUntilRemovedAsManyTimes() {
+        CountingBloomFilter filter = CountingBloomFilter.create(1_000, 0.01, 1 << 20);
+        filter.add("root@gmail.com");
+        filter.add("root@gmail.com");
+
+        filter.remove("root@gmail.com");
+        assertTrue(filter.mightContain("root@gmail.com"));
+        filter.remove("root@gmail.com");
+        assertFalse(filter.mightContain("root@gmail.com"));
+    }
+
+    @Test
+    public void memoryBudget_capsTheCounters() {
+        CountingBloomFilter filter = CountingBloomFilter.create(1_000_000, 0.01, 64 * 1024);
+
+        assertEquals(64 * 1024, filter.memoryBytes());
+    }
+}
@@ -0,0 +1,98 @@
+package org.xapps.services.repositories;
+
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.pattern.CircuitBreakerOpenException;
+import org.hibernate.exception.ConstraintViolationException;
+import org.junit.Test;
+import org.xapps.services.repositories.utils.DatabaseCircuitBreaker;
+import org.xapps.services.repositories.utils.DeadlineExceededException;
+import org.xapps.services.services.utils.Deadlines;
+import org.xapps.services.services.utils.Metrics;
+import org.xapps.services.services.utils.PropertiesProvider;
+
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DatabaseCircuitBreakerTests {
+
+    @Test
+    public void consecutiveFailures_openBreakerAndFailFast() {
+        ActorSystem<Void> system = ActorSystem.create(Behaviors.empty(), "DatabaseCircuitBreakerTests");
+        try {
+            DatabaseCircuitBreaker circuitBreaker = DatabaseCircuitBreaker.get(system);
+            int maxFailures = PropertiesProvider.getInstance().current().circuitBreakerMaxFailures();
+            AtomicInteger calls = new AtomicInteger();
+            for (int i = 0; i < maxFailures; i++) {
+                CompletableFuture<String> failed = circuitBreaker.<String>call(() -> {
+                    calls.incrementAndGet();
+                    return CompletableFuture.failedFuture(new SQLTransientConnectionException("Database unreachable"));
+                }).toCompletableFuture();
+                assertThrows(CompletionException.class, failed::join);
+            }
+
+            assertTrue(circuitBreaker.isOpen());
+            CompletableFuture<String> rejected = circuitBreaker.<String>call(() -> {
+                calls.incrementAndGet();
+                return CompletableFuture.completedFuture("user-1");
+            }).toCompletableFuture();
+            CompletionException exception = assertThrows(CompletionException.class, rejected::join);
+            assertInstanceOf(CircuitBreakerOpenException.class, exception.getCause());
+            assertEquals(maxFailures, calls.get());
+            assertEquals(2, Metrics.getInstance().snapshot().get("database.circuit-breaker.state").intValue());
+            assertEquals(1L, Metrics.getInstance().snapshot().get("database.circuit-breaker.opened").longValue());
+            assertEquals(1L, Metrics.getInstance().snapshot().get("database.circuit-breaker.rejected").longValue());
+        } finally {
+            system.terminate();
+        }
+    }
+
+    @Test
+    public void call_timesOutAtTheRequestDeadline() {
+        ActorSystem<Void> system = ActorSystem.create(Behaviors.empty(), "DatabaseCircuitBreakerDeadlineTests");
+        try {
+            DatabaseCircuitBreaker circuitBreaker = DatabaseCircuitBreaker.get(system);
+            long startedAt = System.currentTimeMillis();
+            CompletableFuture<String> pending = Deadlines.withDeadline(Deadlines.after(200), () ->
+                    circuitBreaker.<String>call(CompletableFuture::new)).toCompletableFuture();
+
+            CompletionException exception = assertThrows(CompletionException.class, pending::join);
+            assertInstanceOf(TimeoutException.class, exception.getCause());
+            assertTrue(System.currentTimeMillis() - startedAt < PropertiesProvider.getInstance().current().circuitBreakerCallTimeout());
+        } finally {
+            system.terminate();
+        }
+    }
+
+    @Test
+    public void constraintViolationsAndExpiredDeadlines_leaveBreakerClosed() {
+        ActorSystem<Void> system = ActorSystem.create(Behaviors.empty(), "DatabaseCircuitBreakerFailureTests");
+        try {
+            DatabaseCircuitBreaker circuitBreaker = DatabaseCircuitBreaker.get(system);
+            int maxFailures = PropertiesProvider.getInstance().current().circuitBreakerMaxFailures();
+            AtomicInteger calls = new AtomicInteger();
+            for (int i = 0; i < maxFailures * 2; i++) {
+                CompletableFuture<String> duplicate = circuitBreaker.<String>call(() -> CompletableFuture.failedFuture(new ConstraintViolationException(
+                        "Duplicate entry", new SQLIntegrityConstraintViolationException("Duplicate entry"), "uk_users_email"))).toCompletableFuture();
+                assertThrows(CompletionException.class, duplicate::join);
+                CompletableFuture<String> expired = Deadlines.withDeadline(System.currentTimeMillis() - 1, () -> circuitBreaker.<String>call(() -> {
+                    calls.incrementAndGet();
+                    return CompletableFuture.completedFuture("user-1");
+                })).toCompletableFuture();
+                CompletionException exception = assertThrows(CompletionException.class, expired::join);
+                assertInstanceOf(DeadlineExceededException.class, exception.getCause());
+            }
+
+            assertFalse(circuitBreaker.isOpen());
+            assertEquals(0, calls.get());
+        } finally {
+            system.terminate();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package org.xapps.services.repositories;
+
+import org.junit.Test;
+import org.xapps.services.repositories.utils.ReadBatcher;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReadBatcherTests {
+
+    private final List<List<Long>> batches = new CopyOnWriteArrayList<>();
+    private final List<CompletableFuture<Map<Long, String>>> results = new CopyOnWriteArrayList<>();
+
+    private CompletionStage<Map<Long, String>> load(List<Long> ids) {
+        batches.add(ids);
+        CompletableFuture<Map<Long, String>> result = new CompletableFuture<>();
+        results.add(result);
+        return result;
+    }
+
+    private static Map<Long, String> users(List<Long> ids) {
+        return ids.stream().filter(id -> id > 0).collect(Collectors.toMap(id -> id, id -> "user-" + id));
+    }
+
+    private void completeBatch(int index) {
+        results.get(index).complete(users(batches.get(index)));
+    }
+
+    @Test
+    public void idleLoad_isDispatchedAtOnce() {
+        ReadBatcher<Long, String> batcher = new ReadBatcher<>(this::load, 100, Duration.ofMinutes(1), 1);
+
+        CompletionStage<String> user = batcher.load(1L);
+
+        assertEquals(List.of(List.of(1L)), batches);
+        completeBatch(0);
+        assertEquals("user-1", user.toCompletableFuture().join());
+    }
+
+    @Test
+    public void loadsWhileBusy_areBatchedTogether() {
+        ReadBatcher<Long, String> batcher = new ReadBatcher<>(this::load, 100, Duration.ofMinutes(1), 1);
+
+        CompletionStage<String> first = batcher.load(1L);
+        CompletionStage<String> second = batcher.load(2L);
+        CompletionStage<String> third = batcher.load(3L);
+        CompletionStage<String> duplicate = batcher.load(2L);
+        CompletionStage<String> missing = batcher.load(-1L);
+        completeBatch(0);
+
+        assertEquals(List.of(List.of(1L), List.of(2L, 3L, -1L)), batches);
+        completeBatch(1);
+        assertEquals("user-1", first.toCompletableFuture().join());
+        assertEquals("user-2", second.toCompletableFuture().join());
+        assertEquals("user-3", third.toCompletableFuture().join());
+        assertEquals("user-2", duplicate.toCompletableFuture().join());
+        assertNull(missing.toCompletableFuture().join());
+        assertEquals(5, batcher.loads());
+        assertEquals(2, batcher.batches());
+    }
+
+    @Test
+    public void batches_areCappedAtMaxSize() {
+        ReadBatcher<Long, String> batcher = new ReadBatcher<>(this::load, 2, Duration.ofMinutes(1), 1);
+
+        batcher.load(1L);
+        for (long id = 2; id <= 6; id++) {
+            batcher.load(id);
+        }
+        completeBatch(0);
+        completeBatch(1);
+        completeBatch(2);
+
+        assertEquals(List.of(List.of(1L), List.of(2L, 3L), List.of(4L, 5L), List.of(6L)), batches);
+    }
+
+    @Test
+    public void pendingLoads_areFlushedAfterMaxDelay() {
+        ReadBatcher<Long, String> batcher = new ReadBatcher<>(this::load, 100, Duration.ofMillis(2), 2);
+
+        batcher.load(1L);
+        CompletionStage<String> second = batcher.load(2L);
+        CompletionStage<String> third = batcher.load(3L);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (batches.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.onSpinWait();
+        }
+        assertEquals(List.of(List.of(1L), List.of(2L, 3L)), batches);
+        completeBatch(1);
+        assertEquals("user-2", second.toCompletableFuture().join());
+        assertEquals("user-3", third.toCompletableFuture().join());
+    }
+
+    @Test
+    public void failedBatch_failsEveryWaiter() {
+        ReadBatcher<Long, String> batcher = new ReadBatcher<>(this::load, 100, Duration.ofMinutes(1), 1);
+
+        CompletionStage<String> first = batcher.load(1L);
+        CompletionStage<String> second = batcher.load(2L);
+        results.get(0).completeExceptionally(new IllegalStateException("connection lost"));
+        results.get(1).completeExceptionally(new IllegalStateException("connection lost"));
+
+        assertTrue(first.toCompletableFuture().isCompletedExceptionally());
+        assertTrue(second.toCompletableFuture().isCompletedExceptionally());
+    }
+}
@@ -0,0 +1,68 @@
+package org.xapps.services.repositories;
+
+import org.junit.Test;
+import org.xapps.services.repositories.utils.ReplicaRouter;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReplicaRouterTests {
+
+    private final AtomicLong clock = new AtomicLong(0);
+
+    private ReplicaRouter<String> router(ReplicaRouter.Selection selection, boolean readYourWrites) {
+        return new ReplicaRouter<>("primary", List.of("replica-1", "replica-2"), selection, readYourWrites, 1000, clock::get);
+    }
+
+    @Test
+    public void roundRobin_alternatesReplicas() {
+        ReplicaRouter<String> router = router(ReplicaRouter.Selection.ROUND_ROBIN, true);
+
+        assertEquals("replica-1", router.read("users:1", target -> target));
+        assertEquals("replica-2", router.read("users:1", target -> target));
+        assertEquals("replica-1", router.read("users:1", target -> target));
+    }
+
+    @Test
+    public void leastLoaded_skipsBusyReplica() {
+        ReplicaRouter<String> router = new ReplicaRouter<>("primary", List.of("replica-1", "replica-2", "replica-3"), ReplicaRouter.Selection.LEAST_LOADED, true, 1000, clock::get);
+
+        String selected = router.read("users:1", busy -> {
+            router.read("users:2", target -> target);
+            router.read("users:3", target -> target);
+            return router.read("users:4", target -> target);
+        });
+
+        assertEquals("replica-2", selected);
+    }
+
+    @Test
+    public void readYourWrites_routesToPrimaryWithinLagTolerance() {
+        ReplicaRouter<String> router = router(ReplicaRouter.Selection.ROUND_ROBIN, true);
+        router.recordWrite("users:1");
+
+        assertEquals("primary", router.read("users:1", target -> target));
+        assertNotEquals("primary", router.read("users:2", target -> target));
+
+        clock.addAndGet(1001);
+
+        assertNotEquals("primary", router.read("users:1", target -> target));
+    }
+
+    @Test
+    public void readYourWrites_disabledKeepsReadsOnReplicas() {
+        ReplicaRouter<String> router = router(ReplicaRouter.Selection.ROUND_ROBIN, false);
+        router.recordWrite("users:1");
+
+        assertNotEquals("primary", router.read("users:1", target -> target));
+    }
+
+    @Test
+    public void noReplicas_readsFromPrimary() {
+        ReplicaRouter<String> router = new ReplicaRouter<>("primary", List.of(), ReplicaRouter.Selection.ROUND_ROBIN, true, 1000);
+
+        assertEquals("primary", router.read("users:1", target -> target));
+    }
+}
@@ -0,0 +1,92 @@
+package org.xapps.services.repositories;
+
+import org.junit.Test;
+import org.xapps.services.repositories.utils.SingleFlight;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SingleFlightTests {
+
+    @Test
+    public void concurrentCalls_shareOneExecution() {
+        SingleFlight<Long, String> flight = new SingleFlight<>();
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<String> query = new CompletableFuture<>();
+
+        CompletionStage<String> first = flight.execute(1L, () -> {
+            calls.incrementAndGet();
+            return query;
+        });
+        CompletionStage<String> second = flight.execute(1L, () -> {
+            calls.incrementAndGet();
+            return CompletableFuture.completedFuture("other");
+        });
+        query.complete("user-1");
+
+        assertEquals("user-1", first.toCompletableFuture().join());
+        assertEquals("user-1", second.toCompletableFuture().join());
+        assertEquals(1, calls.get());
+        assertEquals(2, flight.requests());
+        assertEquals(1, flight.executions());
+        assertEquals(0.5, flight.coalescingRatio());
+    }
+
+    @Test
+    public void completedCall_isNotReused() {
+        SingleFlight<Long, String> flight = new SingleFlight<>();
+
+        flight.execute(1L, () -> CompletableFuture.completedFuture("first")).toCompletableFuture().join();
+        String second = flight.execute(1L, () -> CompletableFuture.completedFuture("second")).toCompletableFuture().join();
+
+        assertEquals("second", second);
+        assertEquals(2, flight.executions());
+    }
+
+    @Test
+    public void differentKeys_executeSeparately() {
+        SingleFlight<Long, String> flight = new SingleFlight<>();
+        CompletableFuture<String> firstQuery = new CompletableFuture<>();
+        CompletableFuture<String> secondQuery = new CompletableFuture<>();
+
+        CompletionStage<String> first = flight.execute(1L, () -> firstQuery);
+        CompletionStage<String> second = flight.execute(2L, () -> secondQuery);
+        firstQuery.complete("user-1");
+        secondQuery.complete("user-2");
+
+        assertEquals("user-1", first.toCompletableFuture().join());
+        assertEquals("user-2", second.toCompletableFuture().join());
+        assertEquals(2, flight.executions());
+    }
+
+    @Test
+    public void failure_isSharedAndNotCached() {
+        SingleFlight<Long, String> flight = new SingleFlight<>();
+        CompletableFuture<String> query = new CompletableFuture<>();
+
+        CompletionStage<String> first = flight.execute(1L, () -> query);
+        CompletionStage<String> second = flight.execute(1L, () -> query);
+        query.completeExceptionally(new IllegalStateException("connection lost"));
+
+        assertTrue(first.toCompletableFuture().isCompletedExceptionally());
+        assertTrue(second.toCompletableFuture().isCompletedExceptionally());
+        assertEquals("user-1", flight.execute(1L, () -> CompletableFuture.completedFuture("user-1")).toCompletableFuture().join());
+    }
+
+    @Test
+    public void forget_detachesInFlightCall() {
+        SingleFlight<Long, String> flight = new SingleFlight<>();
+        CompletableFuture<String> staleQuery = new CompletableFuture<>();
+
+        CompletionStage<String> stale = flight.execute(1L, () -> staleQuery);
+        flight.forget(1L);
+        CompletionStage<String> fresh = flight.execute(1L, () -> CompletableFuture.completedFuture("fresh"));
+        staleQuery.complete("stale");
+
+        assertEquals("stale", stale.toCompletableFuture().join());
+        assertEquals("fresh", fresh.toCompletableFuture().join());
+    }
+}
@@ -0,0 +1,48 @@
+package org.xapps.services.server;
+
+import org.junit.Test;
+import org.xapps.services.entities.Role;
+import org.xapps.services.server.utils.AccessPolicy;
+import org.xapps.services.server.utils.Principal;
+import org.xapps.services.server.utils.RoleMask;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AccessPolicyTests {
+    private static final Principal ADMINISTRATOR = new Principal(1L, RoleMask.ADMINISTRATOR | RoleMask.GUEST);
+    private static final Principal GUEST = new Principal(2L, RoleMask.GUEST);
+
+    @Test
+    public void roleMask_ignoresUnknownRoles() {
+        int mask = RoleMask.of(List.of(new Role(Role.GUEST), new Role("Auditor"), new Role(Role.ADMINISTRATOR)));
+
+        assertEquals(RoleMask.ADMINISTRATOR | RoleMask.GUEST, mask);
+        assertEquals(RoleMask.NONE, RoleMask.of(null));
+    }
+
+    @Test
+    public void administratorOnlyRows_rejectOthers() {
+        assertTrue(AccessPolicy.LIST_USERS.allows(ADMINISTRATOR));
+        assertFalse(AccessPolicy.LIST_USERS.allows(GUEST));
+        assertFalse(AccessPolicy.READ_CHANGES.allows(null));
+    }
+
+    @Test
+    public void ownerRows_allowOnlyTheTargetedUser() {
+        assertTrue(AccessPolicy.READ_USER.allows(GUEST, 2L, RoleMask.NONE));
+        assertFalse(AccessPolicy.READ_USER.allows(GUEST, 3L, RoleMask.NONE));
+        assertTrue(AccessPolicy.DELETE_USER.allows(ADMINISTRATOR, 3L, RoleMask.NONE));
+        assertFalse(AccessPolicy.DELETE_USER.allows(null, 2L, RoleMask.NONE));
+    }
+
+    @Test
+    public void restrictedGrants_requireTheRowRoles() {
+        assertFalse(AccessPolicy.UPDATE_USER.allows(GUEST, 2L, RoleMask.ADMINISTRATOR));
+        assertTrue(AccessPolicy.UPDATE_USER.allows(GUEST, 2L, RoleMask.GUEST));
+        assertTrue(AccessPolicy.CREATE_USER.allows(null, null, RoleMask.GUEST));
+        assertFalse(AccessPolicy.CREATE_USER.allows(null, null, RoleMask.ADMINISTRATOR));
+        assertTrue(AccessPolicy.CREATE_USER.allows(ADMINISTRATOR, null, RoleMask.ADMINISTRATOR));
+    }
+}
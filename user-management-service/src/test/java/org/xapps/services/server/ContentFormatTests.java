@@ -0,0 +1,31 @@
+package org.xapps.services.server;
+
+import org.junit.Test;
+import org.xapps.services.server.utils.ContentFormat;
+
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ContentFormatTests {
+
+    private static ContentFormat negotiate(String accept) {
+        return ContentFormat.negotiate(Optional.of(accept));
+    }
+
+    @Test
+    public void highestQuality_isSelected() {
+        assertEquals(ContentFormat.CBOR, negotiate("application/cbor, application/json"));
+        assertEquals(ContentFormat.JSON, negotiate("application/cbor;q=0, application/json"));
+        assertEquals(ContentFormat.SMILE, negotiate("application/json;q=0.5, application/x-jackson-smile"));
+        assertEquals(ContentFormat.JSON, negotiate("text/html"));
+        assertEquals(ContentFormat.JSON, ContentFormat.negotiate(Optional.empty()));
+    }
+
+    @Test
+    public void explicitType_overridesWildcard() {
+        assertEquals(ContentFormat.JSON, negotiate("*/*"));
+        assertEquals(ContentFormat.CBOR, negotiate("application/json;q=0, application/*"));
+        assertEquals(ContentFormat.JSON, negotiate("application/cbor;q=0.5, */*"));
+    }
+}
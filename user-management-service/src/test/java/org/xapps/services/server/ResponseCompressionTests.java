@@ -0,0 +1,35 @@
+package org.xapps.services.server;
+
+import org.junit.Test;
+import org.xapps.services.server.utils.ResponseCompression;
+
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ResponseCompressionTests {
+    private final ResponseCompression compression = new ResponseCompression(true, 1024);
+
+    private Optional<ResponseCompression.Encoding> negotiate(String acceptEncoding) {
+        return compression.negotiate(Optional.of(acceptEncoding));
+    }
+
+    @Test
+    public void highestQuality_isSelected() {
+        assertEquals(Optional.of(ResponseCompression.Encoding.GZIP), negotiate("gzip, deflate"));
+        assertEquals(Optional.of(ResponseCompression.Encoding.DEFLATE), negotiate("gzip;q=0.5, deflate"));
+        assertEquals(Optional.empty(), negotiate("br"));
+    }
+
+    @Test
+    public void explicitZero_overridesWildcard() {
+        assertEquals(Optional.of(ResponseCompression.Encoding.GZIP), negotiate("*"));
+        assertEquals(Optional.of(ResponseCompression.Encoding.DEFLATE), negotiate("gzip;q=0, *"));
+        assertEquals(Optional.empty(), negotiate("gzip;q=0, deflate;q=0, *"));
+    }
+
+    @Test
+    public void disabledCompression_neverNegotiates() {
+        assertEquals(Optional.empty(), new ResponseCompression(false, 1024).negotiate(Optional.of("gzip")));
+    }
+}
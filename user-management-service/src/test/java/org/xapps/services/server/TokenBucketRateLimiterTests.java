@@ -0,0 +1,74 @@
+package org.xapps.services.server;
+
+import org.junit.Test;
+import org.xapps.services.server.utils.TokenBucketRateLimiter;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TokenBucketRateLimiterTests {
+
+    @Test
+    public void exhaustedBucket_rejectsUntilRefilled() {
+        AtomicLong clock = new AtomicLong();
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(2, 1, 60_000, 100, clock::get);
+
+        assertTrue(limiter.tryAcquire("root@gmail.com"));
+        assertTrue(limiter.tryAcquire("root@gmail.com"));
+        assertFalse(limiter.tryAcquire("root@gmail.com"));
+
+        clock.addAndGet(1_000_000_000L);
+        assertTrue(limiter.tryAcquire("root@gmail.com"));
+    }
+
+    @Test
+    public void fullMap_refusesNewKeysUntilBucketsRefill() {
+        AtomicLong clock = new AtomicLong();
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(5, 1, 60_000, 16, clock::get);
+        for (int i = 0; i < 1_000; i++) {
+            clock.incrementAndGet();
+            assertEquals(i < 16, limiter.tryAcquire("sprayed" + i + "@gmail.com"));
+        }
+
+        assertEquals(16, limiter.size());
+        assertEquals(1_000 - 16, limiter.refused());
+        clock.addAndGet(1_000_000_000L);
+        assertTrue(limiter.tryAcquire("late@gmail.com"));
+        assertEquals(1, limiter.size());
+    }
+
+    @Test
+    public void floodOfNewKeys_neverResetsALimitedKey() {
+        AtomicLong clock = new AtomicLong();
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(3, 0.2, 60_000, 16, clock::get);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(limiter.tryAcquire("root@gmail.com"));
+        }
+        assertFalse(limiter.tryAcquire("root@gmail.com"));
+        for (int i = 0; i < 10_000; i++) {
+            clock.addAndGet(1_000L);
+            limiter.tryAcquire("sprayed" + i + "@gmail.com");
+        }
+
+        assertFalse(limiter.tryAcquire("root@gmail.com"));
+    }
+
+    @Test
+    public void copiedBuckets_keepLimitedKeysLimitedUnderNewRates() {
+        AtomicLong clock = new AtomicLong();
+        TokenBucketRateLimiter previous = new TokenBucketRateLimiter(5, 1, 60_000, 100, clock::get);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(previous.tryAcquire("root@gmail.com"));
+        }
+        assertTrue(previous.tryAcquire("other@gmail.com"));
+
+        TokenBucketRateLimiter retuned = new TokenBucketRateLimiter(2, 1, 60_000, 100, clock::get).copyBuckets(previous);
+
+        assertEquals(2, retuned.size());
+        assertFalse(retuned.tryAcquire("root@gmail.com"));
+        assertTrue(retuned.tryAcquire("other@gmail.com"));
+        assertTrue(retuned.tryAcquire("other@gmail.com"));
+        assertFalse(retuned.tryAcquire("other@gmail.com"));
+    }
+}
@@ -0,0 +1,160 @@
+package org.xapps.services.services;
+
+import org.junit.Test;
+import org.xapps.services.services.audit.AuditEvent;
+import org.xapps.services.services.audit.AuditLog;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AuditLogTests {
+
+    private static List<String> lines(AuditLog auditLog) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (Path segment : auditLog.segmentPaths()) {
+            lines.addAll(Files.readAllLines(segment));
+        }
+        return lines;
+    }
+
+    @Test
+    public void offeredEvents_areWrittenInOrderOnClose() throws IOException {
+        Path directory = Files.createTempDirectory("audit");
+        AuditLog auditLog = new AuditLog(directory, 1024, AuditLog.QueueFullPolicy.BLOCK, 1000, 64, 1 << 20, 0, true, 100);
+        auditLog.start();
+        for (long i = 1; i <= 500; i++) {
+            assertTrue(auditLog.offer(new AuditEvent(i, AuditEvent.Type.LOGIN, i, i, "user" + i + "@gmail.com")));
+        }
+        auditLog.close();
+
+        List<String> lines = lines(auditLog);
+        assertEquals(500, lines.size());
+        assertEquals("{\"timestamp\":1,\"type\":\"LOGIN\",\"actorId\":1,\"userId\":1,\"email\":\"user1@gmail.com\"}", lines.get(0));
+        assertTrue(lines.get(499).contains("\"userId\":500"));
+        assertEquals(500, auditLog.written());
+        assertEquals(auditLog.batches(), auditLog.syncs());
+    }
+
+    @Test
+    public void fullQueue_dropsAndCountsUnderDropPolicy() throws IOException {
+        Path directory = Files.createTempDirectory("audit");
+        AuditLog auditLog = new AuditLog(directory, 8, AuditLog.QueueFullPolicy.DROP, 1000, 64, 1 << 20, 0, false, 100);
+        for (long i = 1; i <= 10; i++) {
+            auditLog.offer(AuditEvent.now(AuditEvent.Type.CREATED, null, i, null));
+        }
+
+        assertEquals(8, auditLog.enqueued());
+        assertEquals(2, auditLog.dropped());
+
+        auditLog.start();
+        auditLog.close();
+        assertEquals(8, lines(auditLog).size());
+        assertFalse(auditLog.offer(AuditEvent.now(AuditEvent.Type.DELETED, null, 1L, null)));
+    }
+
+    @Test
+    public void fullSegments_rotateAndOldestAreDeleted() throws IOException {
+        Path directory = Files.createTempDirectory("audit");
+        AuditLog auditLog = new AuditLog(directory, 16, AuditLog.QueueFullPolicy.BLOCK, 1000, 1, 1, 3, false, 100);
+        auditLog.start();
+        for (long i = 1; i <= 10; i++) {
+            auditLog.offer(AuditEvent.now(AuditEvent.Type.UPDATED, null, i, "user" + i + "@gmail.com"));
+        }
+        auditLog.close();
+
+        assertEquals(10, auditLog.segments());
+        assertEquals(3, auditLog.segmentPaths().size());
+        assertTrue(lines(auditLog).get(2).contains("\"userId\":10"));
+    }
+
+    @Test
+    public void restart_appendsToANewSegment() throws IOException {
+        Path directory = Files.createTempDirectory("audit");
+        AuditLog first = new AuditLog(directory, 16, AuditLog.QueueFullPolicy.BLOCK, 1000, 16, 1 << 20, 0, false, 100);
+        first.start();
+        first.offer(AuditEvent.now(AuditEvent.Type.CREATED, null, 1L, "root@gmail.com"));
+        first.close();
+        AuditLog second = new AuditLog(directory, 16, AuditLog.QueueFullPolicy.BLOCK, 1000, 16, 1 << 20, 0, false, 100);
+        second.start();
+        second.offer(AuditEvent.now(AuditEvent.Type.DELETED, null, 1L, "root@gmail.com"));
+        second.close();
+
+        List<Path> segments = second.segmentPaths();
+        assertEquals(2, segments.size());
+        assertTrue(Files.readString(segments.get(0)).contains("CREATED"));
+        assertTrue(Files.readString(segments.get(1)).contains("DELETED"));
+    }
+
+    @Test
+    public void lockedDirectory_failsToStartUntilTheOwnerCloses() throws IOException {
+        Path directory = Files.createTempDirectory("audit");
+        AuditLog owner = new AuditLog(directory, 16, AuditLog.QueueFullPolicy.BLOCK, 1000, 16, 1 << 20, 0, false, 100);
+        owner.start();
+        AuditLog other = new AuditLog(directory, 16, AuditLog.QueueFullPolicy.BLOCK, 1000, 16, 1 << 20, 0, false, 100);
+
+        assertThrows(IOException.class, other::start);
+        owner.close();
+        other.start();
+        other.close();
+    }
+
+    @Test
+    public void existingSegment_movesToTheNextSequence() throws IOException {
+        Path directory = Files.createTempDirectory("audit");
+        AuditLog auditLog = new AuditLog(directory, 16, AuditLog.QueueFullPolicy.BLOCK, 1000, 16, 1 << 20, 0, false, 100);
+        auditLog.start();
+        Files.writeString(directory.resolve(String.format("audit-%020d.log", 1)), "restored\n");
+        auditLog.offer(AuditEvent.now(AuditEvent.Type.CREATED, null, 1L, "root@gmail.com"));
+        auditLog.close();
+
+        List<Path> segments = auditLog.segmentPaths();
+        assertEquals(2, segments.size());
+        assertEquals("restored", Files.readString(segments.get(0)).trim());
+        assertTrue(Files.readString(segments.get(1)).contains("CREATED"));
+    }
+
+    @Test
+    public void longEmail_isCutAndBlankPolicyBlocks() {
+        AuditEvent event = AuditEvent.now(AuditEvent.Type.LOGIN_FAILED, null, null, "x".repeat(10_000) + "@gmail.com");
+
+        assertEquals(AuditEvent.MAX_EMAIL_LENGTH, event.email().length());
+        assertEquals(AuditLog.QueueFullPolicy.BLOCK, 1000, AuditLog.QueueFullPolicy.fromName(""));
+    }
+
+    @Test
+    public void acceptedEvents_areWrittenWhenClosingConcurrently() throws IOException, InterruptedException {
+        Path directory = Files.createTempDirectory("audit");
+        AuditLog auditLog = new AuditLog(directory, 1024, AuditLog.QueueFullPolicy.BLOCK, 1000, 64, 1 << 20, 0, false, 100);
+        auditLog.start();
+        LongAdder accepted = new LongAdder();
+        CountDownLatch started = new CountDownLatch(4);
+        List<Thread> producers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread producer = new Thread(() -> {
+                started.countDown();
+                for (long i = 1; i <= 100_000; i++) {
+                    if (auditLog.offer(AuditEvent.now(AuditEvent.Type.UPDATED, null, i, null))) {
+                        accepted.increment();
+                    }
+                }
+            });
+            producer.start();
+            producers.add(producer);
+        }
+        started.await();
+        auditLog.close();
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        assertEquals(accepted.sum(), auditLog.written());
+        assertEquals(accepted.sum(), lines(auditLog).size());
+    }
+}
@@ -0,0 +1,112 @@
+package org.xapps.services.services;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Test;
+import org.xapps.services.services.utils.PropertiesProvider;
+import org.xapps.services.services.utils.Settings;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SettingsTests {
+
+    private static Settings settings(String overrides) {
+        return new Settings(ConfigFactory.parseString(overrides).withFallback(ConfigFactory.load()).resolve());
+    }
+
+    @Test
+    public void askTimeout_fallsBackToDefaultForUnknownRoutes() {
+        Settings settings = settings("server.ask-timeout { default-millis = 1500, read-millis = 300 }");
+
+        assertEquals(Duration.ofMillis(300), settings.askTimeout("read"));
+        assertEquals(Duration.ofMillis(1500), settings.askTimeout("unknown"));
+    }
+
+    @Test
+    public void replicaUrls_areSplitOnce() {
+        Settings settings = settings("persistence.replicas.urls = \"jdbc:mysql://a:3306/users, ,jdbc:mysql://b:3306/users\"");
+
+        assertEquals(List.of("jdbc:mysql://a:3306/users", "jdbc:mysql://b:3306/users"), settings.persistenceReplicaUrls());
+        assertTrue(settings("").persistenceReplicaUrls().isEmpty());
+    }
+
+    @Test
+    public void loginRate_comparesByValue() {
+        Settings first = settings("defaults.hashrounds = 10");
+        Settings second = settings("defaults.hashrounds = 11");
+        Settings changed = settings("security.login-rate.email.capacity = 3");
+
+        assertEquals(first.loginRate(), second.loginRate());
+        assertNotEquals(first.loginRate(), changed.loginRate());
+        assertEquals(3, changed.loginRateEmailCapacity());
+    }
+
+    @Test
+    public void invalidValue_failsTheWholeSnapshot() {
+        Config config = ConfigFactory.parseString("defaults.hashrounds = twelve").withFallback(ConfigFactory.load());
+
+        assertThrows(ConfigException.WrongType.class, () -> new Settings(config));
+    }
+
+    @Test
+    public void outOfRangeValue_failsTheWholeSnapshot() {
+        assertThrows(ConfigException.BadValue.class, () -> settings("defaults.hashrounds = 40"));
+        assertThrows(ConfigException.BadValue.class, () -> settings("tracing.sample-ratio = 1.5"));
+        assertThrows(ConfigException.BadValue.class, () -> settings("search.max-page-size = 0"));
+        assertThrows(ConfigException.BadValue.class, () -> settings("persistence.email-filter.false-positive-rate = 0"));
+        assertEquals(4, settings("defaults.hashrounds = 4").defaultHashRound());
+        assertThrows(ConfigException.BadValue.class, () -> settings("server.ask-timeout.read-all-millis = 12000"));
+        assertThrows(ConfigException.BadValue.class, () -> settings("akka.http.server.request-timeout = 5 s"));
+        assertThrows(ConfigException.BadValue.class, () -> settings("persistence.backend = reactive"));
+        if (Runtime.version().feature() < 21) {
+            assertThrows(ConfigException.BadValue.class, () -> settings("persistence.backend = virtual"));
+        }
+    }
+
+    @Test
+    public void reload_appliesTheOverrideFileAndKeepsThePreviousSnapshotOnFailure() throws IOException, InterruptedException {
+        Path overrideFile = Files.createTempFile("settings", ".conf");
+        PropertiesProvider provider = PropertiesProvider.getInstance();
+        List<Settings> notified = new CopyOnWriteArrayList<>();
+        Consumer<Settings> listener = notified::add;
+        provider.onReload(listener);
+        System.setProperty("settings.override-file", overrideFile.toString());
+        try {
+            Files.writeString(overrideFile, "settings.reload-interval-millis = 50\ndefaults.hashrounds = 5\n");
+            assertTrue(provider.reload());
+            Settings reloaded = provider.current();
+            assertEquals(5, reloaded.defaultHashRound());
+            assertEquals(List.of(reloaded), notified);
+
+            Files.writeString(overrideFile, "settings.reload-interval-millis = 50\ndefaults.hashrounds = 40\n");
+            assertFalse(provider.reload());
+            assertSame(reloaded, provider.current());
+            assertEquals(1, notified.size());
+
+            provider.watch();
+            Files.writeString(overrideFile, "settings.reload-interval-millis = 50\ndefaults.hashrounds = 6\n");
+            assertTrue(overrideFile.toFile().setLastModified(overrideFile.toFile().lastModified() + 2000));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (provider.current().defaultHashRound() != 6 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertEquals(6, provider.current().defaultHashRound());
+            assertSame(provider.current(), notified.get(notified.size() - 1));
+        } finally {
+            provider.stopWatching();
+            provider.removeOnReload(listener);
+            System.clearProperty("settings.override-file");
+            provider.reload();
+            Files.deleteIfExists(overrideFile);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package org.xapps.services.services;
+
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.stream.javadsl.Sink;
+import org.junit.Test;
+import org.xapps.services.services.events.UserChange;
+import org.xapps.services.services.events.UserChangeFeed;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UserChangeFeedTests {
+
+    @Test
+    public void resumeBeyondHistory_signalsTheGap() throws Exception {
+        ActorSystem<Void> system = ActorSystem.create(Behaviors.empty(), "UserChangeFeedTests");
+        try {
+            UserChangeFeed feed = new UserChangeFeed(system, 4, 16, UserChangeFeed.SlowSubscriberPolicy.DROP, Duration.ofSeconds(1));
+            for (long i = 1; i <= 10; i++) {
+                feed.publish(UserChange.Type.UPDATED, i, null);
+            }
+
+            List<UserChange> changes = feed.subscribe(Optional.of(1L))
+                    .take(5)
+                    .runWith(Sink.seq(), system)
+                    .toCompletableFuture()
+                    .get(5, TimeUnit.SECONDS);
+
+            assertEquals(UserChange.Type.GAP, changes.get(0).type());
+            assertEquals(6L, changes.get(0).id());
+            assertEquals(List.of(7L, 8L, 9L, 10L), changes.subList(1, 5).stream().map(UserChange::id).toList());
+            assertEquals(5, feed.skipped());
+        } finally {
+            system.terminate();
+        }
+    }
+}